@@ -1,31 +1,61 @@
 
 package edu.caltech.vao.vospace;
 
+import edu.caltech.vao.vospace.VOSpaceException.VOFault;
 import edu.caltech.vao.vospace.storage.StorageManager;
+import edu.caltech.vao.vospace.storage.StoredBytes;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import java.math.BigInteger;
 
 import java.net.URI;
 
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
 import java.security.MessageDigest;
 import java.security.DigestInputStream;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+
 import javax.ws.rs.GET;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
 import static edu.noirlab.datalab.vos.Utils.log_error;
 
@@ -36,6 +66,15 @@ public class DataResource extends VOSpaceResource {
 //    private final String ROOTNODE = "vos://nvo.caltech!vospace";
 //    private final String ROOTNODE = "vos://datalab.noao.edu!vospace";
     private StorageManager backend;
+    // Request attributes of the servlet container's (Tomcat's) sendfile support
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final int PARTIAL_CONTENT = 206;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+    // Ranges beyond which a Range header is ignored and the whole data sent
+    private static final int MAX_RANGES = 100;
 
     public DataResource() throws VOSpaceException {
         super();
@@ -43,7 +82,8 @@ public class DataResource extends VOSpaceResource {
     }
 
     /**
-     * This method retrieves the specified data.
+     * This method retrieves the specified data, or the byte ranges of it
+     * asked for in a Range header.
      *
      * @param fileid The identifier for the data to return.
      * @return the specified data
@@ -51,21 +91,70 @@ public class DataResource extends VOSpaceResource {
     @Path("{fileid}")
     @GET
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public Response getData(@PathParam("fileid") String fileid) throws VOSpaceException {
+    public Response getData(@PathParam("fileid") String fileid, @Context HttpServletRequest request) throws VOSpaceException {
         log.info("getData[fileID:" + fileid + "]");
         String location = null;
         try {
             location = manager.resolveLocation(fileid, true);
-            // Invalidating after an hour
-            //if (manager.hasExpired(fileid)) 
+            String range = request.getHeader("Range");
+            if (range == null) {
+                // Invalidating after an hour
+                //if (manager.hasExpired(fileid)) 
+                    manager.invalidateLocation(fileid);
+            } else if (manager.hasExpired(fileid, manager.RANGE_TTL)) {
+                // A ranged download takes several requests, so the endpoint
+                // serves them until it is as old as this
                 manager.invalidateLocation(fileid);
+                throw new VOSpaceException(VOFault.InvalidURI, "The specified URI is no longer valid.");
+            }
             //      System.err.println(fileid + " " + location);
             //      return new File(new URI(location));
-            InputStream in = backend.getBytes(location);
-            ResponseBuilder responseBuilder = Response.ok(in, MediaType.APPLICATION_OCTET_STREAM);
-            Response response = responseBuilder.header("Content-Length", Long.toString(backend.size(location))).build();
-//          String hashText = getMD5(location);
-//          Response response = responseBuilder.header("Content-MD5", hashText).build();
+            File file = backend.getFile(location);
+            long size = backend.size(location);
+            long modified = backend.lastModified(location);
+            List<long[]> ranges = null;
+            if (range != null && isCurrent(request.getHeader("If-Range"), modified)) ranges = getRanges(range, size);
+            ResponseBuilder responseBuilder;
+            if (ranges == null) {
+                if (file != null && sendfile(request, file, 0L, size)) {
+                    // The container writes the file itself once the (empty)
+                    // response is done with, straight from the page cache
+                    responseBuilder = Response.ok().type(MediaType.APPLICATION_OCTET_STREAM);
+                } else if (file != null) {
+                    responseBuilder = Response.ok(new RangeOutput(file, null, null, 0L, size), MediaType.APPLICATION_OCTET_STREAM);
+                } else {
+                    InputStream in = backend.getBytes(location);
+                    responseBuilder = Response.ok(in, MediaType.APPLICATION_OCTET_STREAM);
+                }
+                responseBuilder.header("Content-Length", Long.toString(size));
+            } else if (ranges.isEmpty()) {
+                return Response.status(RANGE_NOT_SATISFIABLE).header("Content-Range", "bytes */" + size).build();
+            } else if (ranges.size() == 1) {
+                long first = ranges.get(0)[0];
+                long length = ranges.get(0)[1] - first + 1;
+                responseBuilder = Response.status(PARTIAL_CONTENT).type(MediaType.APPLICATION_OCTET_STREAM);
+                if (file == null || !sendfile(request, file, first, first + length)) {
+                    responseBuilder.entity(new RangeOutput(file, backend, location, first, length));
+                }
+                responseBuilder.header("Content-Range", contentRange(ranges.get(0), size))
+                    .header("Content-Length", Long.toString(length));
+            } else {
+                String boundary = UUID.randomUUID().toString();
+                RangeOutput output = new RangeOutput(file, backend, location, ranges, boundary, size);
+                responseBuilder = Response.status(PARTIAL_CONTENT).entity(output)
+                    .type("multipart/byteranges; boundary=" + boundary)
+                    .header("Content-Length", Long.toString(output.length()));
+            }
+            responseBuilder.header("Accept-Ranges", "bytes");
+            if (modified > 0) responseBuilder.lastModified(new Date(modified));
+            // The sum stored when the data was written: of the whole data, so
+            // it is the Content-MD5 of a full response only
+            String encoded = encodeMD5(manager.getMD5(fileid));
+            if (encoded != null) {
+                responseBuilder.header("Digest", "md5=" + encoded);
+                if (ranges == null) responseBuilder.header("Content-MD5", encoded);
+            }
+            Response response = responseBuilder.build();
             return response;
         } catch (VOSpaceException ve) {
             throw ve;
@@ -76,6 +165,208 @@ public class DataResource extends VOSpaceResource {
     }
 
 
+    /*
+     * Hand the specified part of a file to the servlet container's sendfile
+     * support, if it has it
+     * @return whether the container will send the file
+     */
+    private boolean sendfile(HttpServletRequest request, File file, long start, long end) throws IOException {
+        if (!manager.SENDFILE || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) return false;
+        request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+        request.setAttribute(SENDFILE_START, Long.valueOf(start));
+        request.setAttribute(SENDFILE_END, Long.valueOf(end));
+        return true;
+    }
+
+
+    /*
+     * Check an If-Range header against when the data was last modified. Only
+     * dates are validators here: the data has no entity tags, so an If-Range
+     * with one always asks for the whole of the data.
+     */
+    static boolean isCurrent(String ifRange, long modified) {
+        if (ifRange == null) return true;
+        if (modified <= 0) return false;
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.parse(ifRange.trim()).getTime() == modified / 1000 * 1000;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+
+    /*
+     * Parse the byte ranges of a Range header against data of the specified size.
+     * Ranges are returned as {first, last} positions, sorted, with overlapping and
+     * adjacent ranges merged.
+     * @return the ranges, null if the header is one to ignore (and send the whole
+     *         of the data), or empty if none of its ranges can be satisfied
+     */
+    static List<long[]> getRanges(String header, long size) {
+        if (!header.startsWith("bytes=")) return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            long first, last;
+            try {
+                if (dash == 0) {
+                    // The last bytes of the data
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) return null;
+                    if (suffix == 0) continue;
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) return null;
+                    last = Math.min(last, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < size) ranges.add(new long[] {first, last});
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+
+    /*
+     * Encode a hex MD5 sum in base64, as the Content-MD5 and Digest headers
+     * have it, or return null if there is no (valid) sum
+     */
+    private static String encodeMD5(String md5) {
+        if (md5 == null) return null;
+        try {
+            return Base64.getEncoder().encodeToString(Hex.decodeHex(md5.toCharArray()));
+        } catch (DecoderException e) {
+            return null;
+        }
+    }
+
+
+    private static String contentRange(long[] range, long size) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + size;
+    }
+
+
+    /*
+     * Writes one or more parts of the data to the response, as a single body or
+     * as the parts of a multipart/byteranges body. Parts of a local file are
+     * transferred from the file's channel rather than read through a heap
+     * buffer; the servlet output stream is not a file descriptor, so the
+     * container still takes one copy of what is written to it. Parts of other
+     * backends are read with positional reads.
+     */
+    private static class RangeOutput implements StreamingOutput {
+        private final File file;
+        private final StorageManager backend;
+        private final String location;
+        private final List<long[]> ranges;
+        private final List<byte[]> heads;
+        private final byte[] tail;
+
+        /*
+         * A single part, written as it is
+         */
+        RangeOutput(File file, StorageManager backend, String location, long offset, long length) {
+            this.file = file;
+            this.backend = backend;
+            this.location = location;
+            this.ranges = Collections.singletonList(new long[] {offset, offset + length - 1});
+            this.heads = null;
+            this.tail = null;
+        }
+
+        /*
+         * Several parts, written between the boundaries of a multipart body
+         */
+        RangeOutput(File file, StorageManager backend, String location, List<long[]> ranges, String boundary, long size) {
+            this.file = file;
+            this.backend = backend;
+            this.location = location;
+            this.ranges = ranges;
+            this.heads = new ArrayList<byte[]>();
+            for (long[] range : ranges) {
+                heads.add(("\r\n--" + boundary + "\r\nContent-Type: " + MediaType.APPLICATION_OCTET_STREAM
+                    + "\r\nContent-Range: " + contentRange(range, size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            this.tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /*
+         * The number of bytes written
+         */
+        long length() {
+            long length = tail == null ? 0 : tail.length;
+            for (int i = 0; i < ranges.size(); i++) {
+                length += ranges.get(i)[1] - ranges.get(i)[0] + 1;
+                if (heads != null) length += heads.get(i).length;
+            }
+            return length;
+        }
+
+        public void write(OutputStream out) throws IOException {
+            FileChannel channel = file == null ? null : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                WritableByteChannel target = Channels.newChannel(out);
+                for (int i = 0; i < ranges.size(); i++) {
+                    if (heads != null) out.write(heads.get(i));
+                    long first = ranges.get(i)[0];
+                    long length = ranges.get(i)[1] - first + 1;
+                    if (channel != null) {
+                        transfer(channel, first, length, target);
+                    } else {
+                        InputStream in = null;
+                        try {
+                            in = backend.getBytes(location, first, length);
+                            IOUtils.copyLarge(in, out);
+                        } catch (VOSpaceException e) {
+                            throw new IOException(e);
+                        } finally {
+                            IOUtils.closeQuietly(in);
+                        }
+                    }
+                }
+                if (tail != null) out.write(tail);
+            } finally {
+                if (channel != null) channel.close();
+            }
+        }
+
+        private static void transfer(FileChannel channel, long offset, long length, WritableByteChannel target) throws IOException {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, target);
+                // The file was truncated under the transfer
+                if (sent <= 0 && position >= channel.size()) throw new EOFException(position + " of " + end);
+                position += sent;
+            }
+        }
+    }
+
+
     public String getMD5(String location) throws VOSpaceException {
         try {
             InputStream in = new FileInputStream(new File(location));
@@ -95,25 +386,24 @@ public class DataResource extends VOSpaceResource {
 
 
     /**
-     * This method deals with the uploaded data.
+     * This method deals with the uploaded data, streaming it to the backend as
+     * it arrives rather than spooling it to a local file first.
      *
      * @param fileid The endpoint for the uploaded data (contents of HTTP PUT).
      */
     @Path("{fileid}")
     @PUT
 //    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
-    public void putNode(@PathParam("fileid") String fileid, File file) throws VOSpaceException {
+    public void putNode(@PathParam("fileid") String fileid, InputStream in) throws VOSpaceException {
         log.info("putNode[fileID:" + fileid + "]");
-        FileInputStream in = null;
         FileOutputStream out = null;
         String location = null;
         try {
             location = manager.resolveLocation(fileid, false);
-            in = new FileInputStream(file);
-            backend.putBytes(location, in);
-            manager.updateSize(fileid, Long.toString(backend.size(location)));
-            // Remove bytes from temporary file
-            backend.removeBytes("file://" + file.getAbsolutePath(), false);
+            // The upload is counted and digested as it is written, so its
+            // size and sum need no further read of the backend
+            StoredBytes stored = backend.storeBytes(location, in);
+            manager.updateSize(fileid, Long.toString(stored.getSize()), stored.getMD5());
             /*
             out = new FileOutputStream(new File(new URI(location)));
             byte[] buffer = new byte[4096]; // To hold file contents
@@ -36,14 +36,17 @@ public class NodeResource extends VOSpaceResource {
      */
     @GET
     @Produces(MediaType.APPLICATION_XML)
-    public edu.noirlab.datalab.vos.Node getNode(@QueryParam("detail") String detail, @QueryParam("limit") int limit) throws VOSpaceException {
-        log.info("getRootNode[nodeId:" + manager.ROOT_NODE + ", detail=" + detail + ", limit=" + limit + "]");
-        edu.noirlab.datalab.vos.Node node = manager.getNodeJDOM2(manager.ROOT_NODE, detail, limit);
-        return node;
+    public Response getNode(@QueryParam("detail") String detail, @QueryParam("limit") int limit, @QueryParam("token") String token) throws VOSpaceException {
+        log.info("getRootNode[nodeId:" + manager.ROOT_NODE + ", detail=" + detail + ", limit=" + limit + ", token=" + token + "]");
+        edu.noirlab.datalab.vos.Node node = manager.getNodeJDOM2(manager.ROOT_NODE, detail, limit, token);
+        return nodeResponse(node);
     }
 
     /**
-     * This method retrieves the specified node.
+     * This method retrieves the specified node. When limit is set, the
+     * children of a container are listed one page at a time: the token of
+     * the next page is returned in the X-DL-Next-Token header and is passed
+     * back as the token query parameter.
      *
      * @param nodeid The VOSpace identifier for the node to return.
      * @return the specified node {nodeid:[^/]+?}
@@ -51,12 +54,12 @@ public class NodeResource extends VOSpaceResource {
     @Path("{nodeid: .*}")
     @GET
     @Produces(MediaType.APPLICATION_XML)
-    public edu.noirlab.datalab.vos.Node getNode(@PathParam("nodeid") String nodeid, @QueryParam("detail") String detail, @QueryParam("limit") int limit, @HeaderParam("X-DL-AuthToken") String authToken) throws VOSpaceException {
-        log.info("getNode[nodeId:" + nodeid + ", detail=" + detail + ", limit=" + limit + "]");
+    public Response getNode(@PathParam("nodeid") String nodeid, @QueryParam("detail") String detail, @QueryParam("limit") int limit, @QueryParam("token") String token, @HeaderParam("X-DL-AuthToken") String authToken) throws VOSpaceException {
+        log.info("getNode[nodeId:" + nodeid + ", detail=" + detail + ", limit=" + limit + ", token=" + token + "]");
         String id = getId(nodeid);
         manager.validateAccess(authToken, id, true);
-        edu.noirlab.datalab.vos.Node node = manager.getNodeJDOM2(id, detail, limit);
-        return node;
+        edu.noirlab.datalab.vos.Node node = manager.getNodeJDOM2(id, detail, limit, token);
+        return nodeResponse(node);
     }
 
     /**
@@ -124,6 +127,12 @@ public class NodeResource extends VOSpaceResource {
         manager.delete(id);
     }
 
+    private Response nodeResponse(edu.noirlab.datalab.vos.Node node) {
+        Response.ResponseBuilder response = Response.ok(node);
+        if (node.getNextToken() != null) response.header("X-DL-Next-Token", node.getNextToken());
+        return response.build();
+    }
+
     private String getId(String nodeid) {
         return manager.ROOT_NODE + "/" + nodeid;
     }
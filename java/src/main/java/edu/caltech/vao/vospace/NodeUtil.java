@@ -28,7 +28,7 @@ public class NodeUtil {
 	if (id.endsWith(".auto") || id.endsWith(".null")) {
      	    if (!id.substring(id.length() - 6, id.length() - 5).matches("/")) reserved = false;
 	}
-	boolean result =  (m.matches() && reserved);
+	boolean result =  (m.matches() && reserved && id.length() - id.lastIndexOf("/") - 1 <= VOSpaceManager.MAX_NAME_LENGTH);
 	return result;
     }
 
@@ -19,6 +19,8 @@ public class Props {
     public static String BTIME_URI;   // creation time
     public static String CTIME_URI;   // metadata mod time
     public static String MTIME_URI;   // data mod time
+    // The nodes under a container (a Data Lab property, kept by the store)
+    public static final String NODES_URI = "ivo://datalab.noirlab/vospace/core#nodes";
 
     public static void initialize(String propFile) throws VOSpaceException {
         try {
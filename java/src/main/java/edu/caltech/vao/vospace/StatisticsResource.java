@@ -0,0 +1,41 @@
+
+package edu.caltech.vao.vospace;
+
+import java.util.Map;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.log4j.Logger;
+
+@Path("statistics")
+public class StatisticsResource extends VOSpaceResource {
+
+    private static Logger log = Logger.getLogger(StatisticsResource.class);
+
+    public StatisticsResource() throws VOSpaceException {
+        super();
+    }
+
+    /**
+     * This method retrieves the statistics the components of the service
+     * keep: the metadata cache and store, the storage backend, etc.
+     *
+     * @return the statistics of each component
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_XML)
+    public String getStatistics() throws VOSpaceException {
+        log.info("getStatistics");
+        StringBuffer sbuf = new StringBuffer("<statistics xmlns=\"http://www.ivoa.net/xml/VOSpace/v2.0\">");
+        for (Map.Entry<String, String> component : manager.getStatistics().entrySet()) {
+            sbuf.append("<component name=\"" + component.getKey() + "\">"
+                + StringEscapeUtils.escapeXml(component.getValue()) + "</component>");
+        }
+        sbuf.append("</statistics>");
+        return sbuf.toString();
+    }
+}
@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.UUID;
 
 import edu.caltech.vao.vospace.xml.*;
@@ -19,10 +21,13 @@ import uws.job.UWSJob;
 
 import edu.caltech.vao.vospace.meta.MetaStore;
 import edu.caltech.vao.vospace.meta.MetaStoreFactory;
+import edu.caltech.vao.vospace.meta.NodeAccess;
+import edu.caltech.vao.vospace.meta.TransferDetails;
 import edu.caltech.vao.vospace.capability.Capability;
 import edu.caltech.vao.vospace.protocol.ProtocolHandler;
 import edu.caltech.vao.vospace.storage.StorageManager;
 import edu.caltech.vao.vospace.storage.StorageManagerFactory;
+import edu.caltech.vao.vospace.storage.StoredBytes;
 
 import static edu.noirlab.datalab.vos.Utils.*;
 import edu.noirlab.datalab.xml.Protocol;
@@ -73,10 +78,11 @@ public class TransferJob extends JobThread {
             }
             // Validate access
             String token = getToken();
+            NodeAccess access = null;
             if (direction.equals("pushToVoSpace") || direction.equals("pullToVoSpace")) {
-                manager.validateAccess(token, target, false);
+                access = manager.validateAccess(token, target, false);
             } else if (direction.equals("pullFromVoSpace") || direction.equals("pushFromVoSpace")) {
-                manager.validateAccess(token, target, true);
+                access = manager.validateAccess(token, target, true);
             }
             //
             // NEED TO DO MOVE AND COPY AS WELL
@@ -86,11 +92,12 @@ public class TransferJob extends JobThread {
             if (!external && !utils.validId(direction)) throw new UWSException(UWSException.BAD_REQUEST, "The requested direction URI is invalid");
             // Parent node
             if (!external && !utils.validParent(direction)) throw new UWSException(UWSException.BAD_REQUEST, "The parent node is not valid");
-            // Existence
-            if (store.isStored(target)) {
+            // Existence: already known from the access check if there was one
+            if (access != null ? access.isOf(target) : store.isStored(target)) {
                 if (direction.equals("pushToVoSpace") || direction.equals("pullToVoSpace")) {
                     // Container
-                    if (store.getType(target) == NodeType.CONTAINER_NODE.ordinal()) throw new UWSException(UWSException.BAD_REQUEST, "Data cannot be uploaded to a container");
+                    int type = access != null ? access.getType() : store.getType(target);
+                    if (type == NodeType.CONTAINER_NODE.ordinal()) throw new UWSException(UWSException.BAD_REQUEST, "Data cannot be uploaded to a container");
                 }
             } else {
                 if (!external || (direction.equals("pullFromVoSpace") || direction.equals("pushFromVoSpace"))) throw new UWSException(UWSException.NOT_FOUND, "A Node does not exist with the requested URI");
@@ -234,40 +241,15 @@ public class TransferJob extends JobThread {
                     }
                 }
 
-                // Update length property for pushToVoSpace
-                try {
-                    if (manager.hasBeenUpdated(target)) {
-                        Node node = getNode(target);
-                        // Avoid a NullPointer Exception if for some reason the
-                        // node was deleted in the mean time.
-                        if (node != null) {
-                            // Update length property for pushToVoSpace
-                            node = manager.setLength(node);
-                            // Change the timestamps in the properties.
-                            String date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date());
-                            node.setProperty(Props.CTIME_URI, date);
-                            node.setProperty(Props.MTIME_URI, date);
-                            store.updateData(target, node.toString());
-                        } else {
-                            logger.info("target [" + target + "] doesn't exist");
-                        }
-                    }
-                } catch (SQLException e) {
-                    log_error(logger, "for target [" + target + "]", e);
-                    throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, e);
-                } catch (VOSpaceException e) {
-                    log_error(logger, "for target [" + target + "]", e);
-                    throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, e, e.getMessage());
-                } catch (NullPointerException e) {
-                    log_warn(logger, "target [" + target + "] deleted?", e);
-                }
+                // The length property of a pushToVoSpace target is updated
+                // by DataResource.putNode as the bytes are written, so the
+                // backend is not checked for it here
             }
 
             if (!isInterrupted()) {
                 // Reset node status
                 if (direction.equals("pushToVoSpace") || direction.equals("pullToVoSpace")) {
-                    Node node = getNode(target);
-                    if (node != null) setNodeStatus(node, STATUS_FREE);
+                    setNodeStatus(target, STATUS_FREE);
                 }
             }
         }
@@ -348,9 +330,9 @@ public class TransferJob extends JobThread {
             // Negotiate protocol details
             completeProtocols(target, ProtocolHandler.SERVER);
             // Register transfer endpoints
-            registerEndpoint();
+            registerEndpoint(uri);
             // Set node status to busy
-            setNodeStatus(node, STATUS_BUSY);
+            setNodeStatus(node.getUri(), STATUS_BUSY);
             // Add to results
             if (target.endsWith(".auto")) transfer.setTarget(uri);
             store.addResult(getJobId(), transfer.toString());
@@ -377,7 +359,7 @@ public class TransferJob extends JobThread {
             target = transfer.getTarget();
             Node node = getNode(target);
             // Perform data transfer
-            performTransfer(node);
+            performTransfer(node, false);
         } catch (VOSpaceException e) {
             log_error(logger, "for target [" + target + "]", e);
             throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, e, e.getMessage());
@@ -407,9 +389,10 @@ public class TransferJob extends JobThread {
             // Negotiate protocol details
             completeProtocols(target, ProtocolHandler.CLIENT);
             // Set node status to busy
-            setNodeStatus(node, STATUS_BUSY);
+            setNodeStatus(node.getUri(), STATUS_BUSY);
             // Perform data transfer
-            performTransfer(node);
+            StoredBytes stored = performTransfer(node, true);
+            updateLength(node.getUri(), stored);
         } catch (VOSpaceException e) {
             log_error(logger, "for target [" + target + "]", e);
             throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, e, e.getMessage());
@@ -419,6 +402,30 @@ public class TransferJob extends JobThread {
         }
     }
 
+    /**
+     * Update the length and MD5 properties of a node to those of the bytes
+     * just written to it, with its timestamps
+     * @param identifier The identifier of the node
+     * @param stored The size and MD5 sum of the bytes
+     */
+    private void updateLength(String identifier, StoredBytes stored) throws SQLException, VOSpaceException {
+        // Avoid a NullPointer Exception if for some reason the
+        // node was deleted in the mean time.
+        if (!store.isStored(identifier)) {
+            logger.info("target [" + identifier + "] doesn't exist");
+            return;
+        }
+        HashMap<String, String> properties = new HashMap<String, String>();
+        properties.put(Props.LENGTH_URI, Long.toString(stored.getSize()));
+        // A sum the protocol did not take is left unknown rather than read back
+        properties.put(Props.MD5_URI, stored.getMD5() != null ? stored.getMD5() : "");
+        // Change the timestamps in the properties.
+        String date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date());
+        properties.put(Props.CTIME_URI, date);
+        properties.put(Props.MTIME_URI, date);
+        store.updateAttributes(identifier, properties, null);
+    }
+
     /**
      * Request a URL to retrieve data from the space
      */
@@ -430,7 +437,7 @@ public class TransferJob extends JobThread {
             // Negotiate protocol details
             completeProtocols(target, ProtocolHandler.SERVER);
             // Register transfer endpoints
-            registerEndpoint();
+            registerEndpoint(target);
             // Add to results
             store.addResult(getJobId(), transfer.toString());
             getJob().addResult(new Result(getJob(), "transferDetails", manager.BASE_URL + "transfers/" + getJobId() + "/results/transferDetails"));
@@ -505,10 +512,6 @@ public class TransferJob extends JobThread {
         // Get node
         String[] result = store.getData(new String[] {target}, null, 0);
         if (result.length == 0) throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, "Node not in metastore");
-        Node node = null;
-        for (String item: result) {
-            node = factory.getNode(item);
-        }
         // Check whether endpoint is reserved URI
         if (direction.endsWith(".null")) {
             manager.delete(target);
@@ -516,31 +519,15 @@ public class TransferJob extends JobThread {
             if (direction.endsWith(".auto")) direction = generateUri(direction, ".auto");
             // Check whether endpoint is a container
             if (isContainer(direction)) direction += target.substring(target.lastIndexOf("/"));
-            // Change identifier
-            node.setUri(direction);
             // Change the timestamps in the properties.
             String date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date());
-            node.setProperty(Props.CTIME_URI, date);
+            HashMap<String, String> properties = new HashMap<String, String>();
+            properties.put(Props.CTIME_URI, date);
             // Move bytes
             String newLocation = getLocation(direction);
             if (!moveBytes(store.getLocation(target), newLocation)) throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, "Unable to move bytes between target and direction");
-            // Store update node
-            store.updateData(target, direction, newLocation, node.toString());
-            // Check if target is a container
-
-            if (node instanceof ContainerNode) {
-            // Move directory
-                // Update metadata
-                for (String child: store.getAllChildren(target)) {
-                    // Update uri
-                    Node childNode = manager.getNode(child, "max", 1);
-                    childNode.setUri(child.replace(target, direction));
-                    // Change the timestamps in the properties.
-                    childNode.setProperty(Props.CTIME_URI, date);
-                    // Store moved node
-                    store.updateData(child, childNode.getUri(), getLocation(childNode.getUri()), childNode.toString());
-                }
-            }
+            // Move the node and, for a container, everything below it in one go
+            store.moveTree(target, direction, newLocation, properties);
         }
         // Update job results with details
 //      if (direction.endsWith(".auto")) {
@@ -559,10 +546,6 @@ public class TransferJob extends JobThread {
         // Get node
         String[] result = store.getData(new String[] {target}, null, 0);
         if (result.length == 0) throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, "Node not in metastore");
-        Node node = null;
-        for (String item: result) {
-            node = factory.getNode(item);
-        }
         // Check whether endpoint is reserved URI
         if (direction.endsWith(".null")) {
             manager.delete(target);
@@ -570,32 +553,16 @@ public class TransferJob extends JobThread {
             if (direction.endsWith(".auto")) direction = generateUri(direction, ".auto");
             // Check whether endpoint is a container
             if (isContainer(direction)) direction += target.substring(target.lastIndexOf("/"));
-            // Change identifier
-            node.setUri(direction);
             // Change the timestamps in the properties.
             String date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date());
-            node.setProperty(Props.BTIME_URI, date);
-            node.setProperty(Props.CTIME_URI, date);
+            HashMap<String, String> properties = new HashMap<String, String>();
+            properties.put(Props.BTIME_URI, date);
+            properties.put(Props.CTIME_URI, date);
             // Copy bytes
             String newLocation = getLocation(direction);
             if (!copyBytes(store.getLocation(target), newLocation)) throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, "Unable to move bytes between target and direction");
-            // Store new node
-            store.storeData(direction, getType(node.getType()), getUser(), newLocation, node.toString());
-            // Check if target is a container
-
-            if (node instanceof ContainerNode) {
-                // Update metadata
-                for (String child: store.getAllChildren(target)) {
-                    // Update uri
-                    Node childNode = manager.getNode(child, "max", 1);
-                    childNode.setUri(child.replace(target, direction));
-                    // Change the timestamps in the properties.
-                    childNode.setProperty(Props.BTIME_URI, date);
-                    childNode.setProperty(Props.CTIME_URI, date);
-                    // Store copy node
-                    store.storeData(childNode.getUri(), getType(childNode.getType()), getUser(), getLocation(childNode.getUri()), childNode.toString());
-                }
-            }
+            // Copy the node and, for a container, everything below it in one go
+            store.copyTree(target, direction, newLocation, getUser(), properties);
         }
     }
 
@@ -754,13 +721,12 @@ public class TransferJob extends JobThread {
     }
 
     /*
-     * Set the status for the node
+     * Set the status for the node; the busy flag is not part of the stored
+     * node description, so only the status (and modification time) change
      */
-    private void setNodeStatus(Node node, boolean busy) throws UWSException {
+    private void setNodeStatus(String identifier, boolean busy) throws UWSException {
         try {
-            if (node instanceof DataNode) ((DataNode) node).setBusy(busy);
-            store.setStatus(node.getUri(), busy);
-            store.updateData(node.getUri(), node.toString());
+            if (store.isStored(identifier)) store.updateAttributes(identifier, Collections.<String, String>emptyMap(), busy);
         } catch (SQLException e) {
             log_error(logger,e);
             throw new UWSException(UWSException.INTERNAL_SERVER_ERROR, e);
@@ -771,13 +737,18 @@ public class TransferJob extends JobThread {
     }
 
     /**
-     * Register the transfer endpoints
+     * Register the transfer endpoints, with the details of the target node
+     * that the data requests made to them need
+     * @param target The identifier of the target node
      */
-    private void registerEndpoint() throws UWSException {
+    private void registerEndpoint(String target) throws UWSException {
         try {
             String jobId = getJobId();
+            String location = store.getLocation(target);
+            String view = transfer.getViewURI();
+            String owner = store.getOwner(target);
             for (Protocol protocol : transfer.getProtocol()) {
-                store.storeTransfer(jobId, protocol.getEndpoint());
+                store.storeTransfer(new TransferDetails(jobId, protocol.getEndpoint(), target, location, view, owner));
             }
         } catch (Exception e) {
             log_error(logger,e);
@@ -806,16 +777,25 @@ public class TransferJob extends JobThread {
     /**
      * Perform the transfer using the negotiated protocols
      * @param node The node associated with the data transfer
+     * @param into Whether the data is brought into the space
+     * @return the size and MD5 sum of data brought into the space
      */
-    private void performTransfer(Node node) throws UWSException {
+    private StoredBytes performTransfer(Node node, boolean into) throws UWSException {
         // Loop through negotiated protocols until one works
         boolean success = false;
+        StoredBytes stored = null;
         try {
             for (Protocol protocol : transfer.getProtocol()) {
                 ProtocolHandler handler = manager.PROTOCOLS.get(protocol.getURI());
-                if (handler.invoke(protocol, getLocation(node.getUri()), backend)) {
+                if (into) {
+                    // Data brought into the space is counted and digested as it is stored
+                    stored = handler.retrieve(protocol, getLocation(node.getUri()), backend);
+                    success = stored != null;
+                } else {
+                    success = handler.invoke(protocol, getLocation(node.getUri()), backend);
+                }
+                if (success) {
                     store.completeTransfer(protocol.getEndpoint());
-                    success = true;
                     break;
                 }
             }
@@ -835,6 +815,7 @@ public class TransferJob extends JobThread {
             logger.error(uwse.toString());
             throw uwse;
         }
+        return stored;
     }
 
 
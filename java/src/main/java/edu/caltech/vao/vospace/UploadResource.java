@@ -0,0 +1,317 @@
+
+package edu.caltech.vao.vospace;
+
+import edu.caltech.vao.vospace.VOSpaceException.VOFault;
+import edu.caltech.vao.vospace.storage.StorageManager;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import static edu.noirlab.datalab.vos.Utils.log_error;
+
+/**
+ * The endpoints of resumable uploads (HttpResumablePutProtocolHandler). The
+ * chunks of an upload are written to a part file next to the target, whose
+ * size is the offset committed so far, so an upload survives dropped
+ * connections and service restarts; the part is renamed over the target
+ * when the upload is committed. An upload that is not written to for longer
+ * than server.upload.ttl is abandoned: its endpoint is invalidated and its
+ * part file removed.
+ */
+@Path("uploads")
+public class UploadResource extends VOSpaceResource {
+
+    private static Logger log = Logger.getLogger(UploadResource.class);
+    // Uploads in progress (in this instance), whose chunks are written one at a time
+    private static final Map<String, Upload> UPLOADS = new ConcurrentHashMap<String, Upload>();
+    // Abandoned uploads are looked for at most this often (ms)
+    private static final long SWEEP_INTERVAL = 60000;
+    private static final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+    private StorageManager backend;
+
+    public UploadResource() throws VOSpaceException {
+        super();
+        backend = manager.getStorageManager();
+    }
+
+    /*
+     * The MD5 sum of an upload, taken over its chunks while they come in
+     * order; it is dropped (and the sum of the data left unknown) when one
+     * does not, fails, or the upload was begun before the service started.
+     * The upload is abandoned once it is not touched for the time to live.
+     */
+    private static class Upload {
+        final String part;
+        MessageDigest md;
+        long digested = 0;
+        volatile long touched = System.currentTimeMillis();
+        boolean abandoned = false;
+
+        Upload(String part) {
+            this.part = part;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                md = null;
+            }
+        }
+    }
+
+    /**
+     * This method retrieves the offset committed so far.
+     *
+     * @param token The endpoint of the upload.
+     * @return the number of bytes committed
+     */
+    @Path("{token}")
+    @GET
+    @Produces(MediaType.APPLICATION_XML)
+    public Response getUpload(@PathParam("token") String token) throws VOSpaceException {
+        log.info("getUpload[token:" + token + "]");
+        String location = manager.resolveLocation(token, false);
+        return status(token, backend.size(getPart(location, token)));
+    }
+
+    /**
+     * This method writes a chunk of the upload. A chunk with a Content-Range
+     * header (bytes first-last/total, or bytes first-last/*) is written at its
+     * first byte, which cannot be past the offset committed so far, and no
+     * byte past its last is written; one without is written at the offset
+     * committed so far.
+     *
+     * @param token The endpoint of the upload.
+     * @param range The Content-Range of the chunk, if any.
+     * @param contentLength The Content-Length of the chunk, if known.
+     * @param in The bytes of the chunk.
+     * @return the number of bytes committed
+     */
+    @Path("{token}")
+    @PUT
+    @Produces(MediaType.APPLICATION_XML)
+    public Response putChunk(@PathParam("token") String token, @HeaderParam("Content-Range") String range,
+            @HeaderParam("Content-Length") Long contentLength, InputStream in) throws VOSpaceException {
+        log.info("putChunk[token:" + token + ", range:" + range + "]");
+        String location = manager.resolveLocation(token, false);
+        String part = getPart(location, token);
+        Upload upload = upload(token, part);
+        synchronized (upload) {
+            check(upload, token);
+            long committed = backend.size(part);
+            long offset = committed;
+            long length = -1;
+            InputStream chunk = in;
+            if (range != null) {
+                long[] bytes = parseRange(range);
+                offset = bytes[0];
+                length = bytes[1] - bytes[0] + 1;
+                if (offset > committed) {
+                    throw new VOSpaceException(VOFault.InvalidArgument, "The chunk starts at " + offset
+                        + " but only " + committed + " bytes are committed.", token);
+                }
+                if (contentLength != null && contentLength.longValue() != length) {
+                    throw new VOSpaceException(VOFault.InvalidData, "The chunk has " + contentLength + " bytes, not "
+                        + length + "; " + committed + " bytes are committed.", token);
+                }
+                // Whatever the body holds, nothing is written past the range
+                BoundedInputStream bounded = new BoundedInputStream(in, length);
+                bounded.setPropagateClose(false);
+                chunk = bounded;
+            }
+            boolean digesting = upload.md != null && offset == upload.digested;
+            if (!digesting) upload.md = null;
+            long written;
+            try {
+                written = backend.putBytes(part, digesting ? new DigestInputStream(chunk, upload.md) : chunk, offset);
+            } catch (VOSpaceException ve) {
+                upload.md = null;
+                throw ve;
+            }
+            if (digesting) upload.digested += written;
+            upload.touched = System.currentTimeMillis();
+            committed = Math.max(committed, offset + written);
+            if (length >= 0 && written != length) {
+                throw new VOSpaceException(VOFault.InvalidData, "The chunk has " + written + " bytes, not "
+                    + length + "; " + committed + " bytes are committed.", token);
+            }
+            if (length >= 0 && hasMore(in)) {
+                throw new VOSpaceException(VOFault.InvalidData, "The chunk has more than " + length
+                    + " bytes, which were not written; " + committed + " bytes are committed.", token);
+            }
+            return status(token, committed);
+        }
+    }
+
+    /**
+     * This method commits the upload: the data is put in place and the length
+     * of the node set, and the endpoint is no longer valid.
+     *
+     * @param token The endpoint of the upload.
+     * @param length The total number of bytes expected, if it is to be checked.
+     * @return the number of bytes committed
+     */
+    @Path("{token}")
+    @POST
+    @Produces(MediaType.APPLICATION_XML)
+    public Response commitUpload(@PathParam("token") String token, @QueryParam("length") Long length) throws VOSpaceException {
+        log.info("commitUpload[token:" + token + "]");
+        String location = manager.resolveLocation(token, false);
+        String part = getPart(location, token);
+        Upload upload = upload(token, part);
+        synchronized (upload) {
+            try {
+                check(upload, token);
+                long size = backend.size(part);
+                if (length != null && length.longValue() != size) {
+                    throw new VOSpaceException(VOFault.InvalidData, "The upload has " + size + " bytes, not "
+                        + length + ".", token);
+                }
+                // Make sure that there is a part to rename, even for no data
+                backend.putBytes(part, new ByteArrayInputStream(new byte[0]), size);
+                backend.replaceBytes(part, location);
+                String md5 = upload.md != null && upload.digested == size ? new String(Hex.encodeHex(upload.md.digest())) : null;
+                manager.updateSize(token, Long.toString(size), md5);
+                manager.invalidateLocation(token);
+                UPLOADS.remove(token);
+                return status(token, size);
+            } catch (VOSpaceException ve) {
+                log_error(log, ve);
+                throw ve;
+            }
+        }
+    }
+
+    /**
+     * This method abandons the upload: the chunks written are removed and the
+     * endpoint is no longer valid.
+     *
+     * @param token The endpoint of the upload.
+     */
+    @Path("{token}")
+    @DELETE
+    public void deleteUpload(@PathParam("token") String token) throws VOSpaceException {
+        log.info("deleteUpload[token:" + token + "]");
+        String location = manager.resolveLocation(token, false);
+        String part = getPart(location, token);
+        Upload upload = upload(token, part);
+        synchronized (upload) {
+            check(upload, token);
+            backend.removeBytes(part, false);
+            manager.invalidateLocation(token);
+            UPLOADS.remove(token);
+        }
+    }
+
+    /*
+     * Get the upload in progress of the endpoint, marking it as touched, and
+     * look for abandoned uploads if that has not been done for a while
+     */
+    private Upload upload(String token, String part) {
+        sweep();
+        Upload upload = UPLOADS.computeIfAbsent(token, t -> new Upload(part));
+        upload.touched = System.currentTimeMillis();
+        return upload;
+    }
+
+    private static void check(Upload upload, String token) throws VOSpaceException {
+        if (upload.abandoned) throw new VOSpaceException(VOFault.InvalidURI, "The specified URI is no longer valid.", token);
+    }
+
+    /*
+     * Abandon the uploads that have not been touched for the time to live:
+     * their endpoints are invalidated and their part files removed
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) return;
+        long ttl = manager.UPLOAD_TTL;
+        for (Iterator<Map.Entry<String, Upload>> it = UPLOADS.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Upload> entry = it.next();
+            Upload upload = entry.getValue();
+            if (now - upload.touched < ttl) continue;
+            synchronized (upload) {
+                if (upload.abandoned || now - upload.touched < ttl) continue;
+                upload.abandoned = true;
+                it.remove();
+                log.info("Abandoning upload " + entry.getKey());
+                try {
+                    backend.removeBytes(upload.part, false);
+                    manager.invalidateLocation(entry.getKey());
+                } catch (VOSpaceException ve) {
+                    log_error(log, ve);
+                }
+            }
+        }
+    }
+
+    /*
+     * Whether a stream has bytes left beyond the bound it was read to
+     */
+    private static boolean hasMore(InputStream in) throws VOSpaceException {
+        try {
+            return in.read() >= 0;
+        } catch (IOException e) {
+            throw new VOSpaceException(e);
+        }
+    }
+
+    /*
+     * The location of the part file of an upload: a hidden file next to the
+     * target, so that it is renamed into place within the same directory
+     */
+    static String getPart(String location, String token) {
+        int slash = location.lastIndexOf("/");
+        return location.substring(0, slash + 1) + "." + location.substring(slash + 1) + "." + token + ".part";
+    }
+
+    /*
+     * Parse a Content-Range header (bytes first-last/total or bytes first-last/*)
+     * into its first and last positions
+     */
+    static long[] parseRange(String range) throws VOSpaceException {
+        try {
+            String spec = range.trim();
+            if (!spec.startsWith("bytes ")) throw new IllegalArgumentException();
+            spec = spec.substring(6).trim();
+            int dash = spec.indexOf('-');
+            int slash = spec.indexOf('/');
+            long first = Long.parseLong(spec.substring(0, dash));
+            long last = Long.parseLong(slash < 0 ? spec.substring(dash + 1) : spec.substring(dash + 1, slash));
+            if (first < 0 || last < first) throw new IllegalArgumentException();
+            return new long[] {first, last};
+        } catch (RuntimeException e) {
+            throw new VOSpaceException(VOFault.InvalidArgument, "The Content-Range " + range + " is invalid.");
+        }
+    }
+
+    private Response status(String token, long committed) {
+        return Response.ok("<upload xmlns=\"http://www.ivoa.net/xml/VOSpace/v2.0\" token=\"" + token + "\">"
+            + "<offset>" + committed + "</offset></upload>", MediaType.APPLICATION_XML)
+            .header("Upload-Offset", Long.toString(committed)).build();
+    }
+}
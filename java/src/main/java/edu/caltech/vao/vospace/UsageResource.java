@@ -0,0 +1,61 @@
+
+package edu.caltech.vao.vospace;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import edu.caltech.vao.vospace.meta.Usage;
+import org.apache.log4j.Logger;
+
+@Path("usage")
+public class UsageResource extends VOSpaceResource {
+
+    private static Logger log = Logger.getLogger(UsageResource.class);
+
+    public UsageResource() throws VOSpaceException {
+        super();
+    }
+
+    /**
+     * This method retrieves the space used by the user of the token.
+     *
+     * @return the bytes and the number of nodes the user owns
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_XML)
+    public String getUsage(@HeaderParam("X-DL-AuthToken") String authToken) throws VOSpaceException {
+        if (authToken == null) throw new VOSpaceException(VOSpaceException.VOFault.PermissionDenied);
+        String user = authToken.split("\\.")[0];
+        log.info("getUsage[owner:" + user + "]");
+        manager.validateAccess(authToken, manager.ROOT_NODE + "/" + user, true);
+        Usage usage = manager.getOwnerUsage(user);
+        return "<usage xmlns=\"http://www.ivoa.net/xml/VOSpace/v2.0\" owner=\"" + user + "\">"
+            + usageElements(usage) + "</usage>";
+    }
+
+    /**
+     * This method retrieves the space used under the specified container.
+     *
+     * @param nodeid The VOSpace identifier for the container.
+     * @return the bytes and the number of nodes under the container
+     */
+    @Path("{nodeid: .*}")
+    @GET
+    @Produces(MediaType.APPLICATION_XML)
+    public String getUsage(@PathParam("nodeid") String nodeid, @HeaderParam("X-DL-AuthToken") String authToken) throws VOSpaceException {
+        log.info("getUsage[nodeId:" + nodeid + "]");
+        String id = manager.ROOT_NODE + "/" + nodeid;
+        manager.validateAccess(authToken, id, true);
+        Usage usage = manager.getUsage(id);
+        return "<usage xmlns=\"http://www.ivoa.net/xml/VOSpace/v2.0\" uri=\"" + id + "\">"
+            + usageElements(usage) + "</usage>";
+    }
+
+    private String usageElements(Usage usage) {
+        return "<bytes>" + usage.getBytes() + "</bytes><nodes>" + usage.getNodes() + "</nodes>";
+    }
+}
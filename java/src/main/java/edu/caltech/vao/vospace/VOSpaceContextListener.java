@@ -0,0 +1,19 @@
+
+package edu.caltech.vao.vospace;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Releases the resources of the service when the web application is
+ * stopped or redeployed (see VOSpaceManager.shutdown)
+ */
+public class VOSpaceContextListener implements ServletContextListener {
+
+    public void contextInitialized(ServletContextEvent event) {
+    }
+
+    public void contextDestroyed(ServletContextEvent event) {
+        VOSpaceManager.shutdown();
+    }
+}
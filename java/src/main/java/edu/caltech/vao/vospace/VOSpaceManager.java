@@ -3,18 +3,17 @@ package edu.caltech.vao.vospace;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.events.XMLEvent;
 
 import ca.nrc.cadc.vos.NodeProperty;
 import org.apache.commons.lang.StringUtils;
@@ -23,7 +22,6 @@ import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.log4j.Logger;
 
-import org.codehaus.stax2.XMLStreamReader2;
 
 import edu.caltech.vao.vospace.meta.*;
 import edu.caltech.vao.vospace.capability.Capability;
@@ -48,13 +46,21 @@ public class VOSpaceManager {
     private final static boolean OVERWRITE_DATA = true;
     private final static boolean STATUS_BUSY = true;
     private final static boolean STATUS_FREE = false;
+    // The longest node name (last part of an identifier), as held by the nodes table
+    protected final static int MAX_NAME_LENGTH = 255;
     protected String BASE_URL = "http://localhost:8080/vospace";
     protected String ROOT_NODE = "vos://";
+    protected boolean SENDFILE = true;
+    protected long RANGE_TTL = 3600000;
+    protected long UPLOAD_TTL = 86400000;
     protected int ROOT_NODE_LENGTH = 6;   //precalculate the length of the ROOT NODE string
     protected final static int PROPERTIES_SPACE_ACCEPTS = 1;
     protected final static int PROPERTIES_SPACE_PROVIDES = 2;
     protected final static int PROPERTIES_SPACE_CONTAINS = 4;
     private final static String INHERITABLE_PROPERTY = "10";
+    // The properties a new node takes from its parent when it has none
+    private final static String[] INHERITED_PROPERTIES = {Props.GROUPREAD_URI, Props.GROUPWRITE_URI,
+            Props.ISPUBLIC_URI, Props.PUBLICREAD_URI};
 
     protected ArrayList<Views.View> SPACE_ACCEPTS_IMAGE;
     protected ArrayList<Views.View> SPACE_ACCEPTS_TABLE;
@@ -80,12 +86,14 @@ public class VOSpaceManager {
     private String SPACE_AUTH;
     private String AUTH_URL;
     private MetaStore store;
+    private AsyncMetaStore asyncStore;
     private StorageManager backend;
     private TransformEngine engine;
     protected final String BASEURI;
     private String USER;
     boolean structure = false;
     private NodeFactory nfactory;
+    private final LongAdder requests = new LongAdder();
 
     private static VOSpaceManager ref;
 
@@ -122,6 +130,9 @@ public class VOSpaceManager {
             String httpUrl = props.getProperty("server.http.url");
             BASE_URL = httpUrl.substring(0, httpUrl.lastIndexOf("/") + 1);
             AUTH_URL = props.containsKey("server.auth.url") ? props.getProperty("server.auth.url") : "";
+            SENDFILE = Boolean.parseBoolean(props.getProperty("server.http.sendfile", "true"));
+            RANGE_TTL = Long.parseLong(props.getProperty("server.http.range.ttl", "3600000"));
+            UPLOAD_TTL = Long.parseLong(props.getProperty("server.upload.ttl", "86400000"));
             SPACE_ACCEPTS_IMAGE = getViewList(props.getProperty("space.accepts.image"));
             SPACE_ACCEPTS_TABLE = getViewList(props.getProperty("space.accepts.table"));
             SPACE_ACCEPTS_ARCHIVE = getViewList(props.getProperty("space.accepts.archive"));
@@ -137,6 +148,7 @@ public class VOSpaceManager {
             MetaStoreFactory factory = MetaStoreFactory.getInstance(propFile);
             String storeType = props.getProperty("store.type");
             store = factory.getMetaStore("store.type." + storeType);
+            asyncStore = factory.getAsyncMetaStore();
             // Set backend storage
             StorageManagerFactory smf = StorageManagerFactory.getInstance(propFile);
             String backendType = props.getProperty("backend.type");
@@ -176,8 +188,21 @@ public class VOSpaceManager {
             logger.debug(voe + ": ID:" + uri);
             throw voe;
         }
+        // The parent and node lookups below are independent, so they are
+        // all started at once
+        String parent = uri.substring(0, uri.lastIndexOf("/"));
+        CompletableFuture<Integer> parentType = asyncStore.getType(parent);
+        CompletableFuture<Boolean> stored = asyncStore.isStored(uri);
+        CompletableFuture<String[]> parentProps = asyncStore.getPropertyValues(parent, INHERITED_PROPERTIES);
         // Is the parent a valid container?
-        if (!validParent(uri)) {
+        boolean validParent;
+        try {
+            validParent = AsyncMetaStore.join(parentType) == NodeType.CONTAINER_NODE.ordinal();
+        } catch (SQLException e) {
+            log_error(logger, e);
+            throw new VOSpaceException(e, uri);
+        }
+        if (!validParent) {
             // Check for a LinkNode in the path.
             String linkedURI = resolveLinks(uri);
             if (linkedURI != null) {
@@ -192,7 +217,7 @@ public class VOSpaceManager {
         }
         try {
             // Does node already exist?
-            boolean exists = store.isStored(uri);
+            boolean exists = AsyncMetaStore.join(stored);
             if (exists && !overwrite) {
                 VOSpaceException voe = new VOSpaceException(VOFault.DuplicateNode, "", uri);
                 logger.debug(voe + ": ID:" + uri);
@@ -273,20 +298,17 @@ public class VOSpaceManager {
                 node.setProperty(Props.BTIME_URI, date);
                 node.setProperty(Props.MTIME_URI, date);
                 // Inherit permissions from parent if none set
-                String parent = uri.substring(0, uri.lastIndexOf("/"));
+                String[] parentValues = AsyncMetaStore.join(parentProps);
                 String grpRdVal = nodeProps.get(Props.GROUPREAD_URI);
                 String grpWrVal = nodeProps.get(Props.GROUPWRITE_URI);
                 String isPubVal = nodeProps.get(Props.ISPUBLIC_URI);
                 String pubRdVal = nodeProps.get(Props.PUBLICREAD_URI);
-                if (grpRdVal == null || grpRdVal == "") node.setProperty(Props.GROUPREAD_URI,
-                        store.getPropertyValue(parent, Props.GROUPREAD_URI));
-                if (grpWrVal == null || grpWrVal == "") node.setProperty(Props.GROUPWRITE_URI,
-                        store.getPropertyValue(parent, Props.GROUPWRITE_URI));
+                if (grpRdVal == null || grpRdVal == "") node.setProperty(Props.GROUPREAD_URI, parentValues[0]);
+                if (grpWrVal == null || grpWrVal == "") node.setProperty(Props.GROUPWRITE_URI, parentValues[1]);
                 if ((isPubVal == null || isPubVal == "") && (pubRdVal == null || pubRdVal == "")) {
                     // If both are empty, set from parent; logical OR of the two properties
                     String parentIsPub = Boolean.toString(
-                               Boolean.parseBoolean(store.getPropertyValue(parent, Props.ISPUBLIC_URI))
-                            || Boolean.parseBoolean(store.getPropertyValue(parent, Props.PUBLICREAD_URI)));
+                               Boolean.parseBoolean(parentValues[2]) || Boolean.parseBoolean(parentValues[3]));
                     node.setProperty(Props.ISPUBLIC_URI, parentIsPub);
                     node.setProperty(Props.PUBLICREAD_URI, parentIsPub);
                 } else {
@@ -296,6 +318,7 @@ public class VOSpaceManager {
                     node.setProperty(Props.PUBLICREAD_URI, nodeIsPub);
                 }
                 node.setProperty(Props.LENGTH_URI, "0");
+                // Unknown until the bytes are written, when it is taken
                 node.setProperty(Props.MD5_URI, "");
                 // node.setProperty(Props.get(Props.Property.LENGTH), Long.toString(backend.size(getLocation(node.getUri()))));
             }
@@ -507,11 +530,12 @@ public class VOSpaceManager {
 //                      }
                     }
                 }
-                // Set properties
-                node = setLength(node);
-                // We are ignoring setting the MD5 attribute for now as
-                // it is not used by the storeClient and represents an
-                // important performance hit for bigger files.
+                // The length property is maintained when the bytes are
+                // written (putNode, registerNode, pullToVoSpace), so it is
+                // not read from the backend here
+                // Nor is the MD5 attribute: reading it back is an important
+                // performance hit for bigger files, so it is taken as the
+                // bytes are written instead
                 // if (!(node instanceof ContainerNode) && !(node instanceof LinkNode)) node = setMD5(node);
             }
         } catch (SQLException e) {
@@ -528,6 +552,19 @@ public class VOSpaceManager {
      * @return the retrieved node as an edu.noirlab.datalab.vos.Node object
      */
     public edu.noirlab.datalab.vos.Node getNodeJDOM2(String identifier, String detail, int limit) throws VOSpaceException {
+        return getNodeJDOM2(identifier, detail, limit, null);
+    }
+
+    /**
+     * Retrieve the specified node with JDOM2 XML serialization logic, listing
+     * the children of a container one page at a time
+     * @param identifier The identifier of the node to retrieve
+     * @param detail The level of detail to apply to the node representation
+     * @param limit The maximum number of children in the response
+     * @param token The token of the page of children to return, if any
+     * @return the retrieved node as an edu.noirlab.datalab.vos.Node object
+     */
+    public edu.noirlab.datalab.vos.Node getNodeJDOM2(String identifier, String detail, int limit, String token) throws VOSpaceException {
         // Is identifier syntactically valid?
         if (!validId(identifier)) {
             VOSpaceException voe = new VOSpaceException(VOFault.InvalidURI);
@@ -535,7 +572,8 @@ public class VOSpaceManager {
             throw voe;
         }
         ca.nrc.cadc.vos.Node node = null;
-        // Retrieve original node
+        String nextToken = null;
+        detail = (detail == null) ? "max" : detail;
         try {
             ca.nrc.cadc.vos.Node[] result = store.getDataJDOM2(new String[] {identifier}, null, limit);
             if (result.length == 0) {
@@ -553,7 +591,6 @@ public class VOSpaceManager {
             }
             for (ca.nrc.cadc.vos.Node _node: result) {
                 // Just copying the same logic we have in the original getNode method
-                detail = (detail == null) ? "max" : detail;
                 if (!detail.equals("max")) {
                     if (_node instanceof ca.nrc.cadc.vos.DataNode ||
                         _node instanceof ca.nrc.cadc.vos.ContainerNode ||
@@ -572,18 +609,30 @@ public class VOSpaceManager {
                 } else {
                     if (_node instanceof ca.nrc.cadc.vos.ContainerNode) {
                         ca.nrc.cadc.vos.ContainerNode container = (ca.nrc.cadc.vos.ContainerNode) _node;
-                        // Get children
+                        // Get children, while the usage of the container is read
+                        CompletableFuture<ca.nrc.cadc.vos.Node[]> children = asyncStore.getChildrenNodesJDOM2(identifier, token, limit);
+                        setUsage(_node, identifier);
                         ca.nrc.cadc.vos.Node[] childNodes = null;
                         try {
-                            childNodes = store.getChildrenNodesJDOM2(identifier);
+                            childNodes = AsyncMetaStore.join(children);
+                        } catch (VOSpaceException e) {
+                            throw e;
                         } catch (Exception e) {
                             log_error(logger, e);
                             throw new VOSpaceException(e);
                         }
 
                         container.setNodes(Arrays.asList(childNodes));
+                        // A full page may be followed by more children
+                        if (limit > 0 && childNodes.length == limit) {
+                            String last = childNodes[childNodes.length - 1].getUri().getURI().toString();
+                            nextToken = ListingToken.encode(last, new String[] {identifier});
+                        }
                     }
                 }
+                if (_node instanceof ca.nrc.cadc.vos.ContainerNode && !detail.equals("min") && !detail.equals("max")) {
+                    setUsage(_node, identifier);
+                }
                 node = _node;
                 // The original code sets the length no matter what
                 // which makes no sense to me, as the length property is
@@ -596,6 +645,7 @@ public class VOSpaceManager {
             throw new VOSpaceException(e);
         }
         edu.noirlab.datalab.vos.Node retNode = new edu.noirlab.datalab.vos.Node(node);
+        retNode.setNextToken(nextToken);
 
         return retNode;
     }
@@ -609,6 +659,71 @@ public class VOSpaceManager {
         return node;
     }
 
+    /**
+     * Set the usage of a container as read-only properties: its length is
+     * the bytes of the data nodes under it, and the nodes property the
+     * number of nodes under it
+     */
+    private void setUsage(ca.nrc.cadc.vos.Node node, String identifier) throws SQLException {
+        Usage usage = store.getUsage(identifier);
+        if (usage == null) return;
+        List<NodeProperty> properties = new ArrayList<>();
+        for (NodeProperty property : node.getProperties()) {
+            String uri = property.getPropertyURI();
+            if (!uri.equals(Props.LENGTH_URI) && !uri.equals(Props.NODES_URI)) properties.add(property);
+        }
+        NodeProperty length = new NodeProperty(Props.LENGTH_URI, Long.toString(usage.getBytes()));
+        length.setReadOnly(true);
+        properties.add(length);
+        NodeProperty nodes = new NodeProperty(Props.NODES_URI, Long.toString(usage.getNodes()));
+        nodes.setReadOnly(true);
+        properties.add(nodes);
+        node.setProperties(properties);
+    }
+
+    /**
+     * Get the bytes and the number of nodes under the specified container
+     * @param identifier The identifier of the container
+     * @return the usage of the container
+     */
+    public Usage getUsage(String identifier) throws VOSpaceException {
+        if (!validId(identifier)) throw new VOSpaceException(VOFault.InvalidURI);
+        try {
+            if (!ROOT_NODE.equals(identifier) && store.getType(identifier) != NodeType.CONTAINER_NODE.ordinal()) {
+                throw new VOSpaceException(VOFault.ContainerNotFound, "", identifier);
+            }
+            Usage usage = store.getUsage(identifier);
+            if (usage == null) throw new VOSpaceException(VOFault.InternalFault, "Usage is not kept by the metadata store");
+            return usage;
+        } catch (SQLException e) {
+            log_error(logger, e);
+            throw new VOSpaceException(e);
+        }
+    }
+
+    /**
+     * Get the bytes and the number of nodes owned by the specified user
+     * @param owner The user
+     * @return the usage of the user
+     */
+    public Usage getOwnerUsage(String owner) throws VOSpaceException {
+        try {
+            Usage usage = store.getOwnerUsage(owner);
+            if (usage == null) throw new VOSpaceException(VOFault.InternalFault, "Usage is not kept by the metadata store");
+            return usage;
+        } catch (SQLException e) {
+            log_error(logger, e);
+            throw new VOSpaceException(e);
+        }
+    }
+
+    /**
+     * Get the size of the bytes of the specified node
+     */
+    public long getSize(String identifier) throws VOSpaceException {
+        return backend.size(getLocation(identifier));
+    }
+
     /**
      * Set the length property on the specified node
      */
@@ -704,31 +819,14 @@ public class VOSpaceManager {
     }
 
     /**
-     * Check whether the specified identifier is valid
+     * Check whether the specified identifier is valid: it is well formed and
+     * its name is not too long
      * @param id The identifier to check
      * @return whether the identifier is valid or not
      */
     private boolean validId(String id) {
         Matcher m = VOS_PATTERN.matcher(id);
-        return m.matches();
-    }
-
-    /**
-     * Check whether the parent node of the specified identifier is valid:
-     *   - it exists
-     *   - it is a container
-     * @param id The identifier to check
-     * @return whether the parent node is valid or not
-     */
-    private boolean validParent(String id) throws VOSpaceException {
-        try {
-            String parent = id.substring(0, id.lastIndexOf("/"));
-            if (store.getType(parent) != NodeType.CONTAINER_NODE.ordinal()) return false;
-            return true;
-        } catch (SQLException e) {
-            log_error(logger, e);
-            throw new VOSpaceException(e, id);
-        }
+        return m.matches() && id.length() - id.lastIndexOf("/") - 1 <= MAX_NAME_LENGTH;
     }
 
     /**
@@ -738,19 +836,16 @@ public class VOSpaceManager {
      */
     public String resolveLinks(String id) throws VOSpaceException {
         if (id.startsWith(ROOT_NODE)) try {
-            String parent = id;
-            while (!store.isStored(parent) && !ROOT_NODE.equals(parent) && parent.contains("/")) {
-                parent = parent.substring(0, parent.lastIndexOf("/"));
-                if (store.getType(parent) == NodeType.LINK_NODE.ordinal()) {
-                    String linkTarget = parent;
-                    while (store.getType(linkTarget) == NodeType.LINK_NODE.ordinal()) {
-                        linkTarget = store.getTarget(linkTarget);
-                    }
-                    // Recursively test for more links
-                    String canonTest = linkTarget + id.substring(parent.length());
-                    id = resolveLinks(canonTest);
-                    return (id != null) ? id : canonTest;
-                }
+            // The nearest stored node at or above a missing node, if it is a
+            // link, stands for the target its chain of links ends at
+            NodeAccess parent = store.getAccess(id);
+            if (parent != null && !parent.isOf(id) && parent.getType() == NodeType.LINK_NODE.ordinal()) {
+                List<String> chain = store.getLinkChain(parent.getIdentifier());
+                String linkTarget = chain.get(chain.size() - 1);
+                // Recursively test for more links
+                String canonTest = linkTarget + id.substring(parent.getIdentifier().length());
+                id = resolveLinks(canonTest);
+                return (id != null) ? id : canonTest;
             }
         } catch (SQLException e) {
             log_error(logger, e);
@@ -832,38 +927,21 @@ public class VOSpaceManager {
      * @return the physical location for the file
      */
     protected String resolveLocation(String identifier, boolean viewCheck) throws VOSpaceException {
-        String target = null;
-        String view = null;
         try {
-            if (store.isTransferByEndpoint(identifier)) {
-                if (!store.isCompletedByEndpoint(identifier)) {
-                    StringReader in = new StringReader(store.getTransfer(identifier));
-                    XMLInputFactory xif = XMLInputFactory.newInstance();
-                    XMLStreamReader2 xsr = (XMLStreamReader2) xif.createXMLStreamReader(in);
-                    xsr.nextTag(); // Advance to first element - <vos:transfer>
-                    while (xsr.hasNext()) { // Cycle through elements
-                        int eventType = xsr.next();
-                        if (eventType == XMLEvent.START_ELEMENT) {
-                            String name = xsr.getLocalName();
-                            if (name == "target") {
-                                target = xsr.getElementText();
-                                //                              break;
-                            } else if (name == "view") { // Check view
-                                view = xsr.getAttributeValue(null, "uri");
-                                //                              break;
-                            }
-                        }
-                    }
-                } else {
+            // The target, its location and the view were captured when the
+            // endpoint was registered
+            TransferDetails transfer = store.getTransferDetails(identifier);
+            if (transfer != null) {
+                if (store.isCompletedByEndpoint(identifier)) {
                     VOSpaceException voe = new VOSpaceException(VOFault.InvalidURI, "The specified URI is no longer valid.");
                     logger.debug(voe.toString());
                     throw voe;
                 }
                 // View transformation
-                target = target.replace("~", "!");
-                String location = store.getLocation(target);
-                if (viewCheck && !view.equals("ivo://ivoa.net/vospace/core#defaultview")) {
-                    String oldView = store.getView(target);
+                String location = transfer.getLocation();
+                String view = transfer.getView();
+                if (viewCheck && view != null && !view.equals("ivo://ivoa.net/vospace/core#defaultview")) {
+                    String oldView = store.getView(transfer.getTarget());
                     location = engine.transform(location, oldView, view);
                 }
                 // Make sure that a URI is returned
@@ -915,6 +993,44 @@ public class VOSpaceManager {
         }
     }
 
+    /**
+     * Check whether the specified location was handed out longer ago than
+     * the specified time
+     * @param identifier The logical identifier for the file
+     * @param ttl The milliseconds the location is valid for
+     * @return whether the location has expired or not
+     */
+    protected boolean hasExpired(String identifier, long ttl) throws VOSpaceException {
+        try {
+            long created = store.getCreated(identifier);
+            return System.currentTimeMillis() - created > ttl;
+        } catch (Exception e) {
+            log_error(logger, e);
+            throw new VOSpaceException(e);
+        }
+    }
+
+    /**
+     * Get the MD5 sum of the data behind the specified endpoint, as stored when
+     * the data was written
+     * @param endpoint The endpoint of the transfer
+     * @return the sum, or null if it is not known or the endpoint serves a view
+     *         of the data other than its own
+     */
+    protected String getMD5(String endpoint) throws VOSpaceException {
+        try {
+            TransferDetails transfer = store.getTransferDetails(endpoint);
+            if (transfer == null) return null;
+            String view = transfer.getView();
+            if (view != null && !view.equals("ivo://ivoa.net/vospace/core#defaultview")) return null;
+            String md5 = store.getPropertyValue(transfer.getTarget(), Props.MD5_URI);
+            return md5 == null || md5.isEmpty() ? null : md5;
+        } catch (Exception e) {
+            log_error(logger, e);
+            throw new VOSpaceException(e);
+        }
+    }
+
 
     /**
      * Infer the view from the file extension
@@ -930,21 +1046,22 @@ public class VOSpaceManager {
 
 
     /**
-     * Update the size property of a node
+     * Update the size and MD5 properties of a node, as taken while its bytes
+     * were written; a null sum is stored as unknown
      */
-    public void updateSize(String endpoint, String size) throws VOSpaceException {
+    public void updateSize(String endpoint, String size, String md5) throws VOSpaceException {
         try {
-            String result = store.getTransfer(endpoint);
-            if (result != null) {
-                Transfer transfer = new Transfer(result);
+            TransferDetails transfer = store.getTransferDetails(endpoint);
+            if (transfer != null) {
                 String target = transfer.getTarget();
-                Node node = nfactory.getNode(store.getNode(target));
-                node.setProperty(Props.LENGTH_URI, size);
+                HashMap<String, String> properties = new HashMap<String, String>();
+                properties.put(Props.LENGTH_URI, size);
+                properties.put(Props.MD5_URI, md5 != null ? md5 : "");
                 // Update the timestamps for modification
                 String date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date());
-                node.setProperty(Props.CTIME_URI, date);
-                node.setProperty(Props.MTIME_URI, date);
-                store.updateData(target, node.toString());
+                properties.put(Props.CTIME_URI, date);
+                properties.put(Props.MTIME_URI, date);
+                store.updateAttributes(target, properties, null);
             }
         } catch (VOSpaceException ve) {
             log_error(logger, ve);
@@ -1084,6 +1201,42 @@ public class VOSpaceManager {
     }
 
 
+    /**
+     * Get a summary of the statistics of the components of the service
+     * @return the summaries by component
+     */
+    public Map<String, String> getStatistics() {
+        LinkedHashMap<String, String> statistics = new LinkedHashMap<String, String>();
+        store.addStatistics(statistics);
+        statistics.put("async", asyncStore.getStatistics());
+        long count = requests.sum();
+        statistics.put("requests", "requests=" + count);
+        String storage = backend.getStatistics(count);
+        if (storage != null) statistics.put("storage", storage);
+        return statistics;
+    }
+
+    /*
+     * Count a service request, for the statistics per request
+     */
+    void countRequest() {
+        requests.increment();
+    }
+
+    /**
+     * Release the resources of the service, if it was started: the
+     * statistics are logged and the metadata still held back is written
+     */
+    public static void shutdown() {
+        if (ref == null) return;
+        logger.info("Statistics: " + ref.getStatistics());
+        try {
+            ref.store.close();
+        } catch (SQLException e) {
+            log_error(logger, e);
+        }
+    }
+
     protected StorageManager getStorageManager() {
         return backend;
     }
@@ -1229,34 +1382,30 @@ public class VOSpaceManager {
      * @param authToken The authority token associated with the user
      * @param node The identifier of the node being accessed
      * @param isRead The mode of access - read/write
+     * @return the access of the node (or of its nearest stored ancestor if
+     *         it does not exist), or null if access is not checked
      */
-    public void validateAccess(String authToken, String node, boolean isRead) throws VOSpaceException {
-        if (AUTH_URL.startsWith("null://")) return;
+    public NodeAccess validateAccess(String authToken, String node, boolean isRead) throws VOSpaceException {
+        if (AUTH_URL.startsWith("null://")) return null;
         if (AUTH_URL == "" || AUTH_URL.startsWith("local://")) checkTokenFormat(authToken);
         try {
-            // If node does not exist, check write access to parent
-            boolean exists = store.isStored(node);
-            while (!exists) {
-                node = node.substring(0, node.lastIndexOf("/"));
-                exists = store.isStored(node);
-            }
-            if (ROOT_NODE.equals(node)) {
+            // If node does not exist, check write access to parent: the
+            // nearest stored node and its owner and groups come in one lookup
+            NodeAccess access = store.getAccess(node);
+            if (access == null || ROOT_NODE.equals(access.getIdentifier())) {
                 VOSpaceException voe = new VOSpaceException(VOFault.NodeNotFound);
                 logger.debug(voe.toString());
                 throw voe;
             }
-            // Get owner and groups for requested node
-            String[] authProps = store.getPropertyValues(node, new String[]{ Props.ISPUBLIC_URI,
-                    Props.PUBLICREAD_URI, Props.GROUPREAD_URI, Props.GROUPWRITE_URI });
             String groups = "";
             if (isRead) {
                 // Check the publicRead and isPublic properties and return if true
-                if (Boolean.parseBoolean(authProps[0]) || Boolean.parseBoolean(authProps[1])) return;
-                groups = authProps[2];
+                if (Boolean.parseBoolean(access.getIsPublic()) || Boolean.parseBoolean(access.getPublicRead())) return access;
+                groups = access.getGroupRead();
             } else {
-                groups = authProps[3];
+                groups = access.getGroupWrite();
             }
-            String owner = store.getOwner(node);
+            String owner = access.getOwner();
             if (AUTH_URL == "" || AUTH_URL.startsWith("local://")) {
                 if (!Arrays.asList(StringUtils.split(groups, ",")).contains(owner)) throw new VOSpaceException(VOFault.PermissionDenied);
             } else {
@@ -1264,7 +1413,7 @@ public class VOSpaceManager {
                 // So first we check against the cached access hash.
                 String accessURI = authToken + "&owner=" + owner + "&groups=" + groups;
                 if (isCachedAccessURIOK(accessURI)) {
-                    return;
+                    return access;
                 }
                 // Validates the access request
                 HttpClient client = new HttpClient();
@@ -1287,6 +1436,7 @@ public class VOSpaceManager {
                     get.releaseConnection();
                 }
             }
+            return access;
         } catch (IOException e) {
             log_error(logger, e);
             throw new VOSpaceException(e);
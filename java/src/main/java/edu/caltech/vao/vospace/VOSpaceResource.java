@@ -12,6 +12,8 @@ public class VOSpaceResource {
 	try {
 	    String propFile = Thread.currentThread().getContextClassLoader().getResource("vospace.properties").toURI().getRawPath();
 	    manager = VOSpaceManager.getInstance(propFile);
+	    // A resource is made for each request
+	    manager.countRequest();
     } catch (VOSpaceException ve) {
         throw ve;
 	} catch (Exception e) {
@@ -0,0 +1,179 @@
+/**
+ * AsyncMetaStore.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.caltech.vao.vospace.VOSpaceException;
+
+/**
+ * This class presents the calls of a MetaStore as futures, run on a bounded
+ * pool of threads of their own, so that independent lookups can be made at
+ * the same time. Only the lookups that VOSpaceManager runs concurrently have
+ * methods of their own; any other call of the store is run with submit.
+ *
+ * The pool has as many threads as there are db connections, so a saturated
+ * db shows up as the depth of the queue of waiting calls. When the queue is
+ * full a call is run by the thread making it, as if it were synchronous.
+ */
+public class AsyncMetaStore {
+    private static final int DEFAULT_THREADS = 100;
+    private static final int DEFAULT_QUEUE = 1000;
+
+    private final MetaStore store;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+
+    /*
+     * A call on the store
+     */
+    public interface Call<T> {
+        T call(MetaStore store) throws SQLException, VOSpaceException;
+    }
+
+
+    /**
+     * Construct an asynchronous view of the specified store
+     * @param store The store to call
+     * @param props The properties of the service
+     */
+    public AsyncMetaStore(MetaStore store, Properties props) {
+        this.store = store;
+        int poolSize = Integer.parseInt(props.getProperty("server.meta.pool.size", String.valueOf(DEFAULT_THREADS)).trim());
+        int threads = Integer.parseInt(props.getProperty("server.meta.async.threads", String.valueOf(poolSize)).trim());
+        int queue = Integer.parseInt(props.getProperty("server.meta.async.queue", String.valueOf(DEFAULT_QUEUE)).trim());
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue),
+                r -> {
+                    Thread thread = new Thread(r, "meta-async-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (r, pool) -> {
+                    callerRuns.increment();
+                    r.run();
+                });
+        // Only keep threads around while there is work for them
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /*
+     * Get the underlying (synchronous) store
+     */
+    public MetaStore getMetaStore() {
+        return store;
+    }
+
+    /*
+     * Run a call on the store, as if made by the calling thread: the time of
+     * its last write goes with the call, so that reads that must see the
+     * write are not sent to a replica
+     * @return the future result of the call; it fails with a
+     *         CompletionException wrapping the exception of the call
+     */
+    public <T> CompletableFuture<T> submit(Call<T> call) {
+        calls.increment();
+        long written = store.getThreadWrite();
+        return CompletableFuture.supplyAsync(() -> {
+            long own = store.getThreadWrite();
+            store.setThreadWrite(written);
+            try {
+                return call.call(store);
+            } catch (SQLException | VOSpaceException e) {
+                throw new CompletionException(e);
+            } finally {
+                store.setThreadWrite(own);
+            }
+        }, executor);
+    }
+
+    /*
+     * Wait for the result of a call, rethrowing its exception
+     */
+    public static <T> T join(CompletableFuture<T> future) throws SQLException, VOSpaceException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof VOSpaceException) throw (VOSpaceException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new VOSpaceException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VOSpaceException(e);
+        }
+    }
+
+    public CompletableFuture<Boolean> isStored(String identifier) {
+        return submit(s -> s.isStored(identifier));
+    }
+
+    public CompletableFuture<Integer> getType(String identifier) {
+        return submit(s -> s.getType(identifier));
+    }
+
+    public CompletableFuture<String> getOwner(String identifier) {
+        return submit(s -> s.getOwner(identifier));
+    }
+
+    public CompletableFuture<String> getTarget(String identifier) {
+        return submit(s -> s.getTarget(identifier));
+    }
+
+    public CompletableFuture<String> getPropertyValue(String identifier, String property) {
+        return submit(s -> s.getPropertyValue(identifier, property));
+    }
+
+    public CompletableFuture<String[]> getPropertyValues(String identifier, String[] properties) {
+        return submit(s -> s.getPropertyValues(identifier, properties));
+    }
+
+    public CompletableFuture<String> getNode(String identifier) {
+        return submit(s -> s.getNode(identifier));
+    }
+
+    public CompletableFuture<String[]> getData(String[] identifiers, String token, int limit) {
+        return submit(s -> s.getData(identifiers, token, limit));
+    }
+
+    public CompletableFuture<ca.nrc.cadc.vos.Node[]> getDataJDOM2(String[] identifiers, String token, int limit) {
+        return submit(s -> s.getDataJDOM2(identifiers, token, limit));
+    }
+
+    public CompletableFuture<String[]> getChildrenNodes(String identifier) {
+        return submit(s -> s.getChildrenNodes(identifier));
+    }
+
+    public CompletableFuture<ca.nrc.cadc.vos.Node[]> getChildrenNodesJDOM2(String identifier, String token, int limit) {
+        return submit(s -> s.getChildrenNodesJDOM2(identifier, token, limit));
+    }
+
+    /*
+     * Get the number of calls waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /*
+     * Get a summary of the executor statistics
+     */
+    public String getStatistics() {
+        return String.format("calls=%d active=%d threads=%d queued=%d callerRuns=%d",
+                calls.sum(), executor.getActiveCount(), executor.getPoolSize(), getQueueDepth(), callerRuns.sum());
+    }
+}
@@ -0,0 +1,808 @@
+/**
+ * CachingMetaStore.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.vao.vospace.VOSpaceException;
+
+/**
+ * This class represents a metadata store that caches the per-node metadata
+ * of another store: existence, type, owner, location, status, view, link
+ * target and property values, and the chains of links followed from a
+ * link, read through on a miss.
+ *
+ * The cache is bounded, entries expire after a fixed time so that changes
+ * made by other service instances are seen eventually, and every change made
+ * through this store drops the entries of exactly the nodes it affects (the
+ * whole subtree for a move, a copy or a container delete).
+ */
+public class CachingMetaStore implements MetaStore {
+    private static final int SEGMENTS = 16;
+    private static final int DEFAULT_TTL = 60;
+    private static final int DEFAULT_LINKS = 10000;
+    private static final Object NULL = new Object();
+    private static Logger logger = Logger.getLogger(CachingMetaStore.class.getName());
+
+    private final MetaStore store;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ChainCache chains;
+    private final long ttl;
+    // Incremented on every invalidation so that a value read from the store
+    // before an invalidation is not cached after it
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /*
+     * The cached metadata of a single node, keyed by attribute
+     */
+    private static class Record {
+        final long expires;
+        final Map<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+        Record(long expires) {
+            this.expires = expires;
+        }
+    }
+
+    /*
+     * A part of the cache, in least recently used order
+     */
+    private class Segment extends LinkedHashMap<String, Record> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * A followed chain of links
+     */
+    private static class Chain {
+        final long expires;
+        final List<String> nodes;
+
+        Chain(long expires, List<String> nodes) {
+            this.expires = expires;
+            this.nodes = nodes;
+        }
+    }
+
+    /*
+     * The followed chains of links by first link, in least recently used
+     * order, with the first links of the chains each node takes part in
+     */
+    private class ChainCache extends LinkedHashMap<String, Chain> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        private final Map<String, Set<String>> members = new HashMap<String, Set<String>>();
+
+        ChainCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        void add(String link, Chain chain) {
+            Chain old = put(link, chain);
+            if (old != null) unindex(link, old);
+            for (String node : chain.nodes) {
+                members.computeIfAbsent(fixId(node), k -> new HashSet<String>()).add(link);
+            }
+        }
+
+        /*
+         * Drop the chains the specified node takes part in
+         */
+        void drop(String node) {
+            Set<String> links = members.remove(node);
+            if (links == null) return;
+            for (String link : links) {
+                Chain chain = remove(link);
+                if (chain != null) {
+                    unindex(link, chain);
+                    invalidations.increment();
+                }
+            }
+        }
+
+        private void unindex(String link, Chain chain) {
+            for (String node : chain.nodes) {
+                Set<String> links = members.get(fixId(node));
+                if (links != null && links.remove(link) && links.isEmpty()) members.remove(fixId(node));
+            }
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            members.clear();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Chain> eldest) {
+            if (size() > capacity) {
+                unindex(eldest.getKey(), eldest.getValue());
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Reads a value from the wrapped store
+     */
+    private interface Loader<T> {
+        T load() throws SQLException;
+    }
+
+
+    /**
+     * Construct a cache of the specified store
+     * @param store The store to cache
+     * @param props The service properties
+     */
+    public CachingMetaStore(MetaStore store, Properties props) {
+        this.store = store;
+        int size = Integer.parseInt(props.getProperty("server.meta.cache.size", "0"));
+        ttl = Long.parseLong(props.getProperty("server.meta.cache.ttl", String.valueOf(DEFAULT_TTL))) * 1000;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, size / SEGMENTS));
+        }
+        chains = new ChainCache(Math.max(1, Integer.parseInt(props.getProperty("server.meta.cache.links", String.valueOf(DEFAULT_LINKS)).trim())));
+        logger.info("Caching metadata of up to " + size + " nodes for " + ttl / 1000 + "s");
+    }
+
+    /*
+     * Get the wrapped store
+     */
+    public MetaStore getStore() {
+        return store;
+    }
+
+    /*
+     * Standardize the VOSpace identifier
+     */
+    private String fixId(String identifier) {
+        return identifier.replace("~", "!");
+    }
+
+    private Segment segment(String identifier) {
+        return segments[(identifier.hashCode() & 0x7fffffff) % SEGMENTS];
+    }
+
+    /*
+     * Get a value from the cache, reading it from the store on a miss
+     * @param identifier The identifier of the node
+     * @param key The attribute of the node
+     * @param loader Reads the attribute from the store
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T cached(String identifier, String key, Loader<T> loader) throws SQLException {
+        String id = fixId(identifier);
+        Record record = get(id);
+        Object value = record == null ? null : record.values.get(key);
+        if (value != null) {
+            hits.increment();
+            return value == NULL ? null : (T) value;
+        }
+        misses.increment();
+        long loaded = generation.get();
+        T result = loader.load();
+        put(id, loaded, key, result);
+        return result;
+    }
+
+    /*
+     * Get the unexpired record of a node
+     */
+    private Record get(String identifier) {
+        Segment segment = segment(identifier);
+        synchronized (segment) {
+            Record record = segment.get(identifier);
+            if (record != null && record.expires < System.currentTimeMillis()) {
+                segment.remove(identifier);
+                expirations.increment();
+                return null;
+            }
+            return record;
+        }
+    }
+
+    /*
+     * Cache a value, unless the cache was invalidated since it was read
+     */
+    private void put(String identifier, long loaded, String key, Object value) {
+        Segment segment = segment(identifier);
+        synchronized (segment) {
+            if (generation.get() != loaded) return;
+            Record record = segment.get(identifier);
+            if (record == null) {
+                record = new Record(System.currentTimeMillis() + ttl);
+                segment.put(identifier, record);
+            }
+            record.values.put(key, value == null ? NULL : value);
+        }
+    }
+
+    /*
+     * Drop the cached metadata of a node
+     */
+    private void invalidate(String identifier) {
+        String id = fixId(identifier);
+        generation.incrementAndGet();
+        Segment segment = segment(id);
+        synchronized (segment) {
+            if (segment.remove(id) != null) invalidations.increment();
+        }
+        synchronized (chains) {
+            chains.drop(id);
+        }
+    }
+
+    /*
+     * Drop the cached metadata of a node and all its descendants
+     */
+    private void invalidateTree(String identifier) {
+        String id = fixId(identifier);
+        String prefix = id + "/";
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Iterator<String> it = segment.keySet().iterator(); it.hasNext();) {
+                    String key = it.next();
+                    if (key.equals(id) || key.startsWith(prefix)) {
+                        it.remove();
+                        invalidations.increment();
+                    }
+                }
+            }
+        }
+        synchronized (chains) {
+            ArrayList<String> nodes = new ArrayList<String>();
+            for (String node : chains.members.keySet()) {
+                if (node.equals(id) || node.startsWith(prefix)) nodes.add(node);
+            }
+            for (String node : nodes) chains.drop(node);
+        }
+    }
+
+    /*
+     * Empty the cache
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        synchronized (chains) {
+            chains.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /*
+     * Get the number of entries dropped to keep the cache within its size
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /*
+     * Get the number of nodes currently cached
+     */
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /*
+     * Get a summary of the cache statistics
+     */
+    public String getStatistics() {
+        long hit = getHits();
+        long total = hit + getMisses();
+        return String.format("size=%d hits=%d misses=%d hitRate=%.3f evictions=%d expirations=%d invalidations=%d",
+                getSize(), hit, total - hit, total == 0 ? 0.0 : (double) hit / total,
+                getEvictions(), getExpirations(), getInvalidations());
+    }
+
+    public void addStatistics(Map<String, String> statistics) {
+        statistics.put("cache", getStatistics());
+        store.addStatistics(statistics);
+    }
+
+    public void close() throws SQLException {
+        store.close();
+    }
+
+
+    public void setStoreID(int id) {
+        store.setStoreID(id);
+    }
+
+    public long getThreadWrite() {
+        return store.getThreadWrite();
+    }
+
+    public void setThreadWrite(long time) {
+        store.setThreadWrite(time);
+    }
+
+    public String getJob(String jobID) throws SQLException {
+        return store.getJob(jobID);
+    }
+
+    public void addJob(String jobID, String job) throws SQLException {
+        store.addJob(jobID, job);
+    }
+
+    public boolean isStored(String identifier) throws SQLException {
+        return cached(identifier, "stored", () -> store.isStored(identifier));
+    }
+
+    public void storeData(String identifier, int type, Object metadata) throws SQLException, VOSpaceException {
+        try {
+            store.storeData(identifier, type, metadata);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    public void storeData(String identifier, int type, String owner, Object metadata) throws SQLException, VOSpaceException {
+        try {
+            store.storeData(identifier, type, owner, metadata);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    public void storeData(String identifier, int type, String owner, String location, Object metadata) throws SQLException, VOSpaceException {
+        try {
+            store.storeData(identifier, type, owner, location, metadata);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    public void storeData(String identifier, int type, String view, String owner, String location, Object metadata) throws SQLException, VOSpaceException {
+        try {
+            store.storeData(identifier, type, view, owner, location, metadata);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    public String checkData(String[] identifiers, int limit) throws SQLException {
+        return store.checkData(identifiers, limit);
+    }
+
+    public boolean getAllData(String token, int limit) throws SQLException {
+        return store.getAllData(token, limit);
+    }
+
+    public String[] getData(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        return store.getData(identifiers, token, limit);
+    }
+
+    public ca.nrc.cadc.vos.Node[] getDataJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        return store.getDataJDOM2(identifiers, token, limit);
+    }
+
+    public ListingPage<String> getDataPage(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        return store.getDataPage(identifiers, token, limit);
+    }
+
+    public ListingPage<ca.nrc.cadc.vos.Node> getDataPageJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        return store.getDataPageJDOM2(identifiers, token, limit);
+    }
+
+    public String getTarget(String linkId) throws SQLException {
+        return cached(linkId, "target", () -> store.getTarget(linkId));
+    }
+
+    public String[] removeData(String identifier, boolean container) throws SQLException, VOSpaceException {
+        String[] links = null;
+        try {
+            links = store.removeData(identifier, container);
+        } finally {
+            if (container) {
+                invalidateTree(identifier);
+            } else {
+                invalidate(identifier);
+            }
+            if (links != null) {
+                for (String link : links) invalidate(link);
+            }
+        }
+        return links;
+    }
+
+    public void updateData(String identifier, Object metadata) throws SQLException, VOSpaceException {
+        try {
+            store.updateData(identifier, metadata);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    public void updateData(String identifier, String newIdentifier, Object metadata) throws SQLException, VOSpaceException {
+        try {
+            store.updateData(identifier, newIdentifier, metadata);
+        } finally {
+            invalidateTree(identifier);
+            invalidateTree(newIdentifier);
+        }
+    }
+
+    public void updateData(String identifier, String newIdentifier, String newLocation, Object metadata) throws SQLException, VOSpaceException {
+        try {
+            store.updateData(identifier, newIdentifier, newLocation, metadata);
+        } finally {
+            invalidateTree(identifier);
+            invalidateTree(newIdentifier);
+        }
+    }
+
+    public void moveTree(String identifier, String newIdentifier, String newLocation, Map<String, String> properties) throws SQLException, VOSpaceException {
+        try {
+            store.moveTree(identifier, newIdentifier, newLocation, properties);
+        } finally {
+            invalidateTree(identifier);
+            invalidateTree(newIdentifier);
+        }
+    }
+
+    public void copyTree(String identifier, String newIdentifier, String newLocation, String owner, Map<String, String> properties) throws SQLException, VOSpaceException {
+        try {
+            store.copyTree(identifier, newIdentifier, newLocation, owner, properties);
+        } finally {
+            invalidateTree(newIdentifier);
+        }
+    }
+
+    public String getToken(String[] identifiers) throws SQLException {
+        return store.getToken(identifiers);
+    }
+
+    public String getLocation(String identifier) throws SQLException {
+        return cached(identifier, "location", () -> store.getLocation(identifier));
+    }
+
+    public void setLocation(String identifier, String location) {
+        try {
+            store.setLocation(identifier, location);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    public boolean getStatus(String identifier) throws SQLException {
+        return cached(identifier, "status", () -> store.getStatus(identifier));
+    }
+
+    public void setStatus(String identifier, boolean status) throws SQLException {
+        try {
+            store.setStatus(identifier, status);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    public void updateAttributes(Map<String, NodeAttributes> updates) throws SQLException, VOSpaceException {
+        try {
+            store.updateAttributes(updates);
+        } finally {
+            for (String identifier : updates.keySet()) invalidate(identifier);
+        }
+    }
+
+    public int getType(String identifier) throws SQLException {
+        return cached(identifier, "type", () -> store.getType(identifier));
+    }
+
+    public String getOwner(String identifier) throws SQLException {
+        return cached(identifier, "owner", () -> store.getOwner(identifier));
+    }
+
+    public boolean isKnownProperty(String identifier) throws SQLException {
+        return store.isKnownProperty(identifier);
+    }
+
+    public void registerProperty(String property, int type, boolean readOnly) throws SQLException {
+        store.registerProperty(property, type, readOnly);
+    }
+
+    public void storeTransfer(String identifier, String endpoint) throws SQLException {
+        store.storeTransfer(identifier, endpoint);
+    }
+
+    public void storeTransfer(TransferDetails transfer) throws SQLException {
+        store.storeTransfer(transfer);
+    }
+
+    public String getTransfer(String endpoint) throws SQLException {
+        return store.getTransfer(endpoint);
+    }
+
+    public TransferDetails getTransferDetails(String endpoint) throws SQLException, VOSpaceException {
+        return store.getTransferDetails(endpoint);
+    }
+
+    public boolean isCompleted(String jobid) throws SQLException {
+        return store.isCompleted(jobid);
+    }
+
+    public boolean isCompletedByEndpoint(String endpoint) throws SQLException {
+        return store.isCompletedByEndpoint(endpoint);
+    }
+
+    public void setView(String identifier, String view) throws SQLException {
+        try {
+            store.setView(identifier, view);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    public String getView(String identifier) throws SQLException {
+        return cached(identifier, "view", () -> store.getView(identifier));
+    }
+
+    public String resolveLocation(String endpoint) throws SQLException {
+        return store.resolveLocation(endpoint);
+    }
+
+    public void completeTransfer(String endpoint) throws SQLException {
+        store.completeTransfer(endpoint);
+    }
+
+    public void completeTransfer(String endpoint, boolean updateStatus) throws SQLException {
+        store.completeTransfer(endpoint, updateStatus);
+    }
+
+    public String resolveTransfer(String endpoint) throws SQLException {
+        return store.resolveTransfer(endpoint);
+    }
+
+    public long getCreated(String endpoint) throws SQLException {
+        return store.getCreated(endpoint);
+    }
+
+    public String resolveIdentifier(String location) throws SQLException {
+        return store.resolveIdentifier(location);
+    }
+
+    public void updateProperty(String property, int type) throws SQLException {
+        store.updateProperty(property, type);
+    }
+
+    public void updateProperty(String property, int type, boolean readOnly) throws SQLException {
+        store.updateProperty(property, type, readOnly);
+    }
+
+    public String[] getProperties(int type) throws SQLException {
+        return store.getProperties(type);
+    }
+
+    public String getPropertyType(String identifier) throws SQLException {
+        return store.getPropertyType(identifier);
+    }
+
+    public boolean isReadOnly(String property) throws SQLException {
+        return store.isReadOnly(property);
+    }
+
+    public String getPropertyValue(String identifier, String property) throws SQLException {
+        return cached(identifier, "property:" + property, () -> store.getPropertyValue(identifier, property));
+    }
+
+    /*
+     * Get the values of a set of properties: answered from the cache if all
+     * are cached, otherwise read together from the store
+     */
+    public String[] getPropertyValues(String identifier, String[] properties) throws SQLException {
+        String id = fixId(identifier);
+        Record record = get(id);
+        if (record != null) {
+            String[] values = new String[properties.length];
+            int found = 0;
+            for (int i = 0; i < properties.length; i++) {
+                Object value = record.values.get("property:" + properties[i]);
+                if (value == null) break;
+                values[i] = value == NULL ? null : (String) value;
+                found++;
+            }
+            if (found == properties.length) {
+                hits.increment();
+                return values;
+            }
+        }
+        misses.increment();
+        long loaded = generation.get();
+        String[] values = store.getPropertyValues(identifier, properties);
+        if (values != null) {
+            for (int i = 0; i < properties.length && i < values.length; i++) {
+                put(id, loaded, "property:" + properties[i], values[i]);
+            }
+        }
+        return values;
+    }
+
+    /*
+     * Follow a chain of links; the chain is dropped from the cache when any
+     * link in it (or its final target) changes
+     */
+    public List<String> getLinkChain(String linkId) throws SQLException {
+        String id = fixId(linkId);
+        synchronized (chains) {
+            Chain chain = chains.get(id);
+            if (chain != null && chain.expires < System.currentTimeMillis()) {
+                chains.remove(id);
+                chains.unindex(id, chain);
+                expirations.increment();
+            } else if (chain != null) {
+                hits.increment();
+                return chain.nodes;
+            }
+        }
+        misses.increment();
+        long loaded = generation.get();
+        List<String> nodes = Collections.unmodifiableList(store.getLinkChain(linkId));
+        synchronized (chains) {
+            if (generation.get() == loaded) chains.add(id, new Chain(System.currentTimeMillis() + ttl, nodes));
+        }
+        return nodes;
+    }
+
+    /*
+     * Get the access of a node; only that of a stored node is cached, since
+     * the access of a missing one comes from an ancestor whose changes do
+     * not drop the entries of its descendants
+     */
+    public NodeAccess getAccess(String identifier) throws SQLException {
+        String id = fixId(identifier);
+        Record record = get(id);
+        Object value = record == null ? null : record.values.get("access");
+        if (value != null) {
+            hits.increment();
+            return (NodeAccess) value;
+        }
+        misses.increment();
+        long loaded = generation.get();
+        NodeAccess access = store.getAccess(identifier);
+        if (access != null && access.isOf(identifier)) put(id, loaded, "access", access);
+        return access;
+    }
+
+    /*
+     * Usage changes with every write below a container, so it is not cached
+     */
+    public Usage getUsage(String identifier) throws SQLException {
+        return store.getUsage(identifier);
+    }
+
+    public Usage getOwnerUsage(String owner) throws SQLException {
+        return store.getOwnerUsage(owner);
+    }
+
+    public String[] getChildren(String identifier) throws SQLException, VOSpaceException {
+        return store.getChildren(identifier);
+    }
+
+    public String[] getChildrenNodes(String identifier) throws SQLException, VOSpaceException {
+        return store.getChildrenNodes(identifier);
+    }
+
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier) throws SQLException, VOSpaceException {
+        return store.getChildrenNodesJDOM2(identifier);
+    }
+
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier, String token, int limit) throws SQLException, VOSpaceException {
+        return store.getChildrenNodesJDOM2(identifier, token, limit);
+    }
+
+    public String[] getAllChildren(String identifier) throws SQLException, VOSpaceException {
+        return store.getAllChildren(identifier);
+    }
+
+    public void addResult(String identifier, String result) throws SQLException {
+        store.addResult(identifier, result);
+    }
+
+    public String getResult(String identifier) throws SQLException {
+        return store.getResult(identifier);
+    }
+
+    public String getNode(String identifier) throws SQLException, VOSpaceException {
+        return store.getNode(identifier);
+    }
+
+    public int isActive(String identifier, String capability) throws SQLException {
+        return store.isActive(identifier, capability);
+    }
+
+    public void setActive(String identifier, String capability, int port) throws SQLException {
+        store.setActive(identifier, capability, port);
+    }
+
+    public void registerCapability(String identifier, String capability) throws SQLException {
+        store.registerCapability(identifier, capability);
+    }
+
+    public boolean isKnownCapability(String capability) throws SQLException {
+        return store.isKnownCapability(capability);
+    }
+
+    public int getCapPort() throws SQLException {
+        return store.getCapPort();
+    }
+
+    public boolean isTransfer(String identifier) throws SQLException {
+        return store.isTransfer(identifier);
+    }
+
+    public boolean isTransferByEndpoint(String endpoint) throws SQLException {
+        return store.isTransferByEndpoint(endpoint);
+    }
+
+    public long getLastModTime(String identifier) throws SQLException {
+        return store.getLastModTime(identifier);
+    }
+}
@@ -0,0 +1,1317 @@
+/**
+ * EmbeddedMetaStore.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.vao.vospace.xml.Node;
+import edu.caltech.vao.vospace.xml.NodeFactory;
+import edu.caltech.vao.vospace.xml.LinkNode;
+import edu.caltech.vao.vospace.Props;
+import edu.caltech.vao.vospace.VOSpaceException;
+
+import static edu.noirlab.datalab.vos.Utils.*;
+
+
+/**
+ * This class represents a metadata store for VOSpace that runs inside the
+ * service JVM, for single-node deployments and for testing without a
+ * database server.
+ *
+ * Nodes are held in memory in identifier order, so that a subtree is a
+ * contiguous key range, with a second index of the direct children of each
+ * container. The whole space is held on the heap, so the store suits spaces
+ * of up to a few million nodes; larger ones belong in MySQL.
+ *
+ * Every change is appended to a journal in the store directory before it is
+ * applied in memory, as an entry framed by its length and CRC32, and writers
+ * are serialized. On startup the last snapshot and the journal are replayed
+ * and written out again as a new snapshot, in identifier order, and the
+ * journal is cleared. An entry cut short (or corrupted) at the end of the
+ * journal by a crash is dropped with everything after it; any other error
+ * reading or writing the store is raised, and a store whose journal cannot
+ * be written takes no more changes.
+ */
+public class EmbeddedMetaStore implements MetaStore {
+    private static final String DEFAULT_DIR = System.getProperty("java.io.tmpdir") + "/vospace_meta";
+    private static final String SNAPSHOT = "vospace.snapshot";
+    private static final String JOURNAL = "vospace.journal";
+    private static Logger logger = Logger.getLogger(EmbeddedMetaStore.class.getName());
+
+    // Journal operations
+    private static final byte OP_NODE = 1;
+    private static final byte OP_NODE_DELETE = 2;
+    private static final byte OP_JOB = 3;
+    private static final byte OP_RESULT = 4;
+    private static final byte OP_PROPERTY = 5;
+    private static final byte OP_TRANSFER = 6;
+    private static final byte OP_CAPABILITY = 7;
+    private static final byte OP_CAPABILITY_DELETE = 8;
+
+    // Separates the parent (or target) from the child (or link) in index keys
+    private static final char SEP = '\u0000';
+    private static final char SEP_END = '\u0001';
+
+    private final ConcurrentSkipListMap<String, NodeRecord> nodes = new ConcurrentSkipListMap<String, NodeRecord>();
+    private final ConcurrentSkipListSet<String> children = new ConcurrentSkipListSet<String>();
+    private final ConcurrentSkipListSet<String> linkTargets = new ConcurrentSkipListSet<String>();
+    private final ConcurrentHashMap<String, String> jobs = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, String> results = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, int[]> metaProperties = new ConcurrentHashMap<String, int[]>();
+    private final ConcurrentHashMap<String, Map<String, Integer>> capabilities = new ConcurrentHashMap<String, Map<String, Integer>>();
+    private final ConcurrentSkipListMap<Integer, Transfer> transfers = new ConcurrentSkipListMap<Integer, Transfer>();
+    private final ConcurrentHashMap<String, List<Transfer>> transfersByName = new ConcurrentHashMap<String, List<Transfer>>();
+    private final ConcurrentHashMap<String, Transfer> transfersByJob = new ConcurrentHashMap<String, Transfer>();
+    private int transferId = 0;
+
+    private File dir;
+    private FileOutputStream journalFile;
+    private DataOutputStream journal;
+    private boolean sync;
+    private int STOREID = 0;
+
+    /*
+     * A transfer endpoint registered for a job
+     */
+    private static class Transfer {
+        int id;
+        String jobid;
+        String endpoint;
+        long created;
+        long completed;
+    }
+
+    /*
+     * Something written to the journal
+     */
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+
+    /**
+     * Construct a basic EmbeddedMetaStore
+     */
+    public EmbeddedMetaStore(Properties props) throws SQLException {
+        dir = new File(props.containsKey("server.meta.embedded.dir") ? props.getProperty("server.meta.embedded.dir") : DEFAULT_DIR);
+        sync = Boolean.parseBoolean(props.getProperty("server.meta.embedded.sync", "false"));
+        try {
+            dir.mkdirs();
+            File snapshot = new File(dir, SNAPSHOT);
+            File journalPath = new File(dir, JOURNAL);
+            long t0 = System.currentTimeMillis();
+            if (snapshot.exists()) replay(snapshot, false);
+            if (journalPath.exists()) replay(journalPath, true);
+            compact(snapshot);
+            journalFile = new FileOutputStream(journalPath, false);
+            journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+            logger.info("Loaded " + nodes.size() + " nodes from " + dir + " in " + (System.currentTimeMillis() - t0) + "ms");
+        } catch (IOException e) {
+            log_error(logger, e);
+            throw new SQLException("Embedded metadata store cannot be opened: " + dir, e);
+        }
+    }
+
+
+    /*
+     * Standardize the VOSpace identifier
+     * @param id The id of the node
+     */
+    public String fixId(String identifier) {
+        return identifier.replace("~", "!");
+    }
+
+    /*
+     * Get the parent of an identifier
+     */
+    private String getParent(String identifier) {
+        return identifier.substring(0, identifier.lastIndexOf("/"));
+    }
+
+    /*
+     * Set the id of the store
+     * @param id The id of the store
+     */
+    public void setStoreID(int id) {
+        STOREID = id;
+    }
+
+    /*
+     * Get the job with the specified identifier
+     * @param jobID The ID of the job to get
+     * @return The requested job or <i>null</i> if there is no job with the given ID.
+     */
+    public String getJob(String jobID) throws SQLException {
+        return jobs.get(jobID);
+    }
+
+    /*
+     * Add the job with the specified identifier
+     * @param jobID The ID of the job to get
+     * @param job The XML string representation of the job
+     */
+    public synchronized void addJob(String jobID, String job) throws SQLException {
+        log(out -> { out.writeByte(OP_JOB); writeString(out, jobID); writeString(out, job); });
+        jobs.put(jobID, job);
+    }
+
+    /*
+     * Check whether the object with the specified identifier is in the store
+     * @param identifier The ID of the node to check
+     * @return whether the node is stored or not
+     */
+    public boolean isStored(String identifier) throws SQLException {
+        return nodes.containsKey(fixId(identifier));
+    }
+
+    /*
+     * Get the type of the object with the specified identifier
+     * @param identifier The ID of the node
+     * @return the type of the node
+     */
+    public int getType(String identifier) throws SQLException {
+        NodeRecord record = nodes.get(fixId(identifier));
+        return record == null ? -1 : record.type;
+    }
+
+    /*
+     * Get the owner of the object with the specified identifier
+     * @param identifier The Id of the node
+     * @return the owner of the node
+     */
+    public String getOwner(String identifier) throws SQLException {
+        NodeRecord record = nodes.get(fixId(identifier));
+        return record == null ? null : record.owner;
+    }
+
+    /*
+     * Check whether the specified property is known to the service
+     * @param identifier The ID of the property
+     * @return whether the property is known
+     */
+    public boolean isKnownProperty(String identifier) throws SQLException {
+        return metaProperties.containsKey(identifier);
+    }
+
+    /*
+     * Register the specified property
+     * @param property The property identifier
+     * @param type The property type
+     * @param readOnly Is the property read-only?
+     */
+    public void registerProperty(String property, int type, boolean readOnly) throws SQLException {
+        putProperty(property, type, readOnly ? 1 : 0);
+    }
+
+    /*
+     * Store the metadata for the specified identifier
+     */
+    public void storeData(String identifier, int type, Object metadata) throws SQLException, VOSpaceException {
+        storeData(identifier, type, null, null, null, metadata);
+    }
+
+    /*
+     * Store the metadata for the specified identifier
+     */
+    public void storeData(String identifier, int type, String owner, Object metadata) throws SQLException, VOSpaceException {
+        storeData(identifier, type, null, owner, null, metadata);
+    }
+
+    /*
+     * Store the metadata for the specified identifier
+     */
+    public void storeData(String identifier, int type, String owner, String location, Object metadata) throws SQLException, VOSpaceException {
+        storeData(identifier, type, null, owner, location, metadata);
+    }
+
+    /*
+     * Store the metadata for the specified identifier
+     */
+    public synchronized void storeData(String identifier, int type, String view, String owner, String location, Object metadata) throws SQLException, VOSpaceException {
+        if (metadata instanceof String) {
+            Node node = NodeFactory.getInstance().getNode((String) metadata);
+            NodeRecord record = new NodeRecord(fixId(identifier), type);
+            record.view = view;
+            record.owner = owner;
+            record.location = location;
+            record.created = System.currentTimeMillis();
+            record.lastModified = record.created;
+            updateRecord(record, node);
+            putNode(record);
+        }
+    }
+
+    /*
+     * Check whether the specified identifiers match more than limit nodes
+     * @return a token for the first page if they do, <i>null</i> otherwise
+     */
+    public String checkData(String[] identifiers, int limit) throws SQLException {
+        return match(identifiers, null, 0).size() > limit ? ListingToken.encode("", identifiers) : null;
+    }
+
+    /*
+     * Check whether the page read with the specified token is the last one.
+     * Tokens are not moved on: the token of the page after a page is the one
+     * returned with it (see getDataPage).
+     */
+    public boolean getAllData(String token, int limit) throws SQLException {
+        try {
+            ListingToken listing = ListingToken.decode(token);
+            return match(listing.getIdentifiers(), listing.getLast(), 0).size() <= limit;
+        } catch (VOSpaceException e) {
+            throw new SQLException("Invalid token");
+        }
+    }
+
+    /*
+     * Retrieve the metadata for the specified identifier at the specified
+     * level of detail
+     */
+    public String[] getData(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        ArrayList<String> nodeList = new ArrayList<String>();
+        for (NodeRecord record : listing(identifiers, token, limit)) {
+            nodeList.add(record.toNode());
+        }
+        return nodeList.toArray(new String[0]);
+    }
+
+    /*
+     * Retrieves the metadata for the specified identifier as a Node Object
+     */
+    public ca.nrc.cadc.vos.Node[] getDataJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        ArrayList<ca.nrc.cadc.vos.Node> nodeList = new ArrayList<ca.nrc.cadc.vos.Node>();
+        for (NodeRecord record : listing(identifiers, token, limit)) {
+            nodeList.add(record.toNodeJDOM2());
+        }
+        return nodeList.toArray(new ca.nrc.cadc.vos.Node[0]);
+    }
+
+    /*
+     * Retrieve a page of the metadata for the specified identifiers (or
+     * token), with the token of the page after its last identifier
+     */
+    public ListingPage<String> getDataPage(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        List<NodeRecord> records = listing(identifiers, token, limit);
+        ArrayList<String> nodeList = new ArrayList<String>();
+        for (NodeRecord record : records) {
+            nodeList.add(record.toNode());
+        }
+        return new ListingPage<String>(nodeList.toArray(new String[0]), ListingToken.next(identifiers, token, records, limit));
+    }
+
+    /*
+     * Retrieve a page of the metadata for the specified identifiers (or
+     * token) as Node Objects, with the token of the page after it
+     */
+    public ListingPage<ca.nrc.cadc.vos.Node> getDataPageJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        List<NodeRecord> records = listing(identifiers, token, limit);
+        ArrayList<ca.nrc.cadc.vos.Node> nodeList = new ArrayList<ca.nrc.cadc.vos.Node>();
+        for (NodeRecord record : records) {
+            nodeList.add(record.toNodeJDOM2());
+        }
+        return new ListingPage<ca.nrc.cadc.vos.Node>(nodeList.toArray(new ca.nrc.cadc.vos.Node[0]), ListingToken.next(identifiers, token, records, limit));
+    }
+
+    /*
+     * Resolve the records listed for the specified identifiers (or token)
+     */
+    private List<NodeRecord> listing(String[] identifiers, String token, int limit) throws VOSpaceException {
+        String last = null;
+        if (token != null) {
+            ListingToken listing = ListingToken.decode(token);
+            identifiers = listing.getIdentifiers();
+            last = listing.getLast();
+        }
+        return match(identifiers, last, limit);
+    }
+
+    /*
+     * Find the nodes matching the specified identifiers, in identifier order;
+     * identifiers containing '*' are treated as wildcards
+     * @param identifiers The identifiers to match
+     * @param last Only return identifiers after this one, if set
+     * @param limit The maximum number of nodes to return (0 for all)
+     */
+    private List<NodeRecord> match(String[] identifiers, String last, int limit) {
+        TreeMap<String, NodeRecord> matches = new TreeMap<String, NodeRecord>();
+        String after = last == null ? null : fixId(last);
+        for (String identifier : identifiers) {
+            String fixedId = fixId(identifier);
+            if (!fixedId.contains("*")) {
+                NodeRecord record = nodes.get(fixedId);
+                if (record != null && (after == null || fixedId.compareTo(after) > 0)) matches.put(fixedId, record);
+                continue;
+            }
+            // Only the key range sharing the literal prefix can match
+            String prefix = fixedId.substring(0, fixedId.indexOf('*'));
+            StringBuilder regex = new StringBuilder();
+            for (String part : fixedId.split("\\*", -1)) {
+                if (regex.length() > 0) regex.append(".*");
+                regex.append(Pattern.quote(part));
+            }
+            Pattern pattern = Pattern.compile(regex.toString());
+            NavigableMap<String, NodeRecord> range = nodes.tailMap(prefix, true);
+            if (after != null && after.compareTo(prefix) >= 0) range = nodes.tailMap(after, false);
+            for (Map.Entry<String, NodeRecord> entry : range.entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) break;
+                if (pattern.matcher(entry.getKey()).matches()) matches.put(entry.getKey(), entry.getValue());
+            }
+        }
+        ArrayList<NodeRecord> records = new ArrayList<NodeRecord>(matches.values());
+        return limit > 0 && records.size() > limit ? records.subList(0, limit) : records;
+    }
+
+    /*
+     * Get the target of a link node
+     */
+    public String getTarget(String linkId) throws SQLException {
+        NodeRecord record = nodes.get(fixId(linkId));
+        return record == null ? null : record.target;
+    }
+
+    /*
+     * Remove the metadata for the specified identifier
+     * @param identifier The (root) identifier of the node(s) to delete
+     * @param container Does the identifier refer to a container?
+     * Returns a list of links which pointed to the deleted identifier and were
+     * also removed in the process of removing the identifier.
+     */
+    public synchronized String[] removeData(String identifier, boolean container) throws SQLException, VOSpaceException {
+        String fixedId = fixId(identifier);
+        LinkedHashSet<String> removed = new LinkedHashSet<String>();
+        removed.add(fixedId);
+        if (container) removed.addAll(nodes.subMap(fixedId + "/", fixedId + "0").keySet());
+        // Find all the links to the removed nodes, and the links to them
+        LinkedHashSet<String> links = new LinkedHashSet<String>();
+        List<String> level = linksTo(fixedId);
+        if (container) level.addAll(linksInto(fixedId + "/", fixedId + "0"));
+        while (!level.isEmpty()) {
+            ArrayList<String> next = new ArrayList<String>();
+            for (String link : level) {
+                if (!link.equals(fixedId) && links.add(link)) next.addAll(linksTo(link));
+            }
+            level = next;
+        }
+        removed.addAll(links);
+        for (String id : removed) {
+            deleteNode(id);
+            if (capabilities.containsKey(id)) {
+                log(out -> { out.writeByte(OP_CAPABILITY_DELETE); writeString(out, id); });
+                capabilities.remove(id);
+            }
+        }
+        ArrayList<String> capIds = new ArrayList<String>(links);
+        capIds.add(fixedId);
+        for (String capId : capIds) {
+            if (capId.endsWith("_cap.conf")) {
+                String parent = getParent(capId);
+                String shortCap = capId.substring(capId.lastIndexOf("/") + 1, capId.lastIndexOf("_cap.conf"));
+                Map<String, Integer> caps = capabilities.get(parent);
+                if (caps == null) continue;
+                for (String capability : new ArrayList<String>(caps.keySet())) {
+                    if (capability.endsWith(shortCap)) putCapability(parent, capability, 0);
+                }
+            }
+        }
+        return links.toArray(new String[0]);
+    }
+
+    /*
+     * Get the links which point to the specified identifier
+     */
+    private List<String> linksTo(String target) {
+        return linksInto(target + SEP, target + SEP_END);
+    }
+
+    /*
+     * Get the links whose target lies in the specified key range
+     */
+    private List<String> linksInto(String from, String to) {
+        ArrayList<String> links = new ArrayList<String>();
+        for (String key : linkTargets.subSet(from, to)) {
+            links.add(key.substring(key.indexOf(SEP) + 1));
+        }
+        return links;
+    }
+
+    /*
+     * Update the metadata for the specified identifier
+     */
+    public synchronized void updateData(String identifier, Object metadata) throws SQLException, VOSpaceException {
+        if (metadata instanceof String) {
+            NodeRecord old = nodes.get(fixId(identifier));
+            if (old == null) return;
+            NodeRecord record = old.copy(old.identifier);
+            updateRecord(record, NodeFactory.getInstance().getNode((String) metadata));
+            // Force an update to lastModificationTime
+            record.lastModified = System.currentTimeMillis();
+            putNode(record);
+        }
+    }
+
+    /*
+     * Update the metadata for the specified identifier including updating the
+     * identifier
+     */
+    public void updateData(String identifier, String newIdentifier, Object metadata) throws SQLException, VOSpaceException {
+        moveNode(identifier, newIdentifier, null, metadata);
+    }
+
+    /*
+     * Update the metadata for the specified identifier including updating the
+     * identifier and the location
+     */
+    public void updateData(String identifier, String newIdentifier, String newLocation, Object metadata) throws SQLException, VOSpaceException {
+        moveNode(identifier, newIdentifier, newLocation, metadata);
+    }
+
+    /*
+     * Move the specified node to a new identifier (and location), updating
+     * its metadata
+     */
+    private synchronized void moveNode(String identifier, String newIdentifier, String newLocation, Object metadata) throws SQLException, VOSpaceException {
+        if (metadata instanceof String) {
+            NodeRecord old = nodes.get(fixId(identifier));
+            if (old == null) return;
+            NodeRecord record = old.copy(fixId(newIdentifier));
+            updateRecord(record, NodeFactory.getInstance().getNode((String) metadata));
+            if (newLocation != null) record.location = newLocation;
+            record.lastModified = System.currentTimeMillis();
+            deleteNode(old.identifier);
+            putNode(record);
+        }
+    }
+
+    /*
+     * Move a node and all its descendants to a new identifier and location,
+     * setting the specified properties on each of them
+     */
+    public synchronized void moveTree(String identifier, String newIdentifier, String newLocation, Map<String, String> properties) throws SQLException, VOSpaceException {
+        String fixedId = fixId(identifier);
+        String fixedNewId = fixId(newIdentifier);
+        long now = System.currentTimeMillis();
+        for (NodeRecord old : subtree(fixedId)) {
+            String suffix = old.identifier.substring(fixedId.length());
+            NodeRecord record = old.copy(fixedNewId + suffix);
+            record.location = newLocation + suffix;
+            record.lastModified = now;
+            setProperties(record, properties);
+            deleteNode(old.identifier);
+            putNode(record);
+            Map<String, Integer> caps = capabilities.get(old.identifier);
+            if (caps != null) {
+                for (Map.Entry<String, Integer> cap : caps.entrySet()) putCapability(record.identifier, cap.getKey(), cap.getValue());
+                log(out -> { out.writeByte(OP_CAPABILITY_DELETE); writeString(out, old.identifier); });
+                capabilities.remove(old.identifier);
+            }
+        }
+    }
+
+    /*
+     * Copy a node and all its descendants to a new identifier and location
+     */
+    public synchronized void copyTree(String identifier, String newIdentifier, String newLocation, String owner, Map<String, String> properties) throws SQLException, VOSpaceException {
+        String fixedId = fixId(identifier);
+        String fixedNewId = fixId(newIdentifier);
+        long now = System.currentTimeMillis();
+        for (NodeRecord old : subtree(fixedId)) {
+            String suffix = old.identifier.substring(fixedId.length());
+            NodeRecord record = old.copy(fixedNewId + suffix);
+            record.view = null;
+            record.owner = owner;
+            record.location = newLocation + suffix;
+            record.status = false;
+            record.created = now;
+            record.lastModified = now;
+            setProperties(record, properties);
+            putNode(record);
+            // Copied capabilities start inactive: their processes belong to the original
+            Map<String, Integer> caps = capabilities.get(old.identifier);
+            if (caps != null) {
+                for (String capability : caps.keySet()) putCapability(record.identifier, capability, 0);
+            }
+        }
+    }
+
+    /*
+     * Get the records of a node and all its descendants
+     */
+    private List<NodeRecord> subtree(String identifier) {
+        ArrayList<NodeRecord> records = new ArrayList<NodeRecord>();
+        NodeRecord root = nodes.get(identifier);
+        if (root != null) records.add(root);
+        records.addAll(nodes.subMap(identifier + "/", identifier + "0").values());
+        return records;
+    }
+
+    /*
+     * Set the specified properties (by property URI) on a record
+     */
+    private void setProperties(NodeRecord record, Map<String, String> properties) {
+        for (Map.Entry<String, String> prop : properties.entrySet()) {
+            String shortProp = Props.fromURI(prop.getKey());
+            if (shortProp != null) {
+                if (shortProp.equals("identifier")) continue;
+                if (prop.getValue() == null) record.properties.remove(shortProp);
+                else record.properties.put(shortProp, prop.getValue());
+            } else if (prop.getValue() == null) {
+                record.addlProperties.remove(prop.getKey());
+            } else {
+                record.addlProperties.put(prop.getKey(), prop.getValue());
+            }
+        }
+    }
+
+    /*
+     * Apply the properties and link target of the node description to the
+     * record: set properties are stored and nil properties removed
+     */
+    private void updateRecord(NodeRecord record, Node node) throws VOSpaceException {
+        if (node instanceof LinkNode) record.target = ((LinkNode) node).getTarget();
+        for (Map.Entry<String, String> prop : node.getProperties().entrySet()) {
+            String shortProp = Props.fromURI(prop.getKey());
+            if (shortProp != null) {
+                if (!shortProp.equals("identifier")) record.properties.put(shortProp, prop.getValue());
+            } else {
+                record.addlProperties.put(prop.getKey(), prop.getValue());
+            }
+        }
+        for (String delProp : node.get("/vos:node/vos:properties/vos:property[@xsi:nil = 'true']/@uri")) {
+            String shortProp = Props.fromURI(delProp);
+            if (shortProp != null) {
+                record.properties.remove(shortProp);
+            } else {
+                record.addlProperties.remove(delProp);
+            }
+        }
+    }
+
+    /*
+     * Get the token of the first page of a listing of the specified identifiers
+     */
+    public String getToken(String[] identifiers) throws SQLException {
+        return ListingToken.encode("", identifiers);
+    }
+
+    /*
+     * Get the physical location of the specified identifier
+     */
+    public String getLocation(String identifier) throws SQLException {
+        NodeRecord record = nodes.get(fixId(identifier));
+        return record == null ? null : record.location;
+    }
+
+    /**
+     * Set the physical location of the specified identifier
+     */
+    public synchronized void setLocation(String identifier, String location) {
+        NodeRecord old = nodes.get(fixId(identifier));
+        if (old == null) return;
+        NodeRecord record = old.copy(old.identifier);
+        record.location = location;
+        try {
+            putNode(record);
+        } catch (SQLException e) {
+            log_error(logger, e);
+        }
+    }
+
+    /*
+     * Get the status of the object with the specified identifier
+     */
+    public boolean getStatus(String identifier) throws SQLException {
+        NodeRecord record = nodes.get(fixId(identifier));
+        return record != null && record.status;
+    }
+
+    /*
+     * Set the status of the object with the specified identifier
+     */
+    public synchronized void setStatus(String identifier, boolean status) throws SQLException {
+        NodeRecord old = nodes.get(fixId(identifier));
+        if (old == null) return;
+        NodeRecord record = old.copy(old.identifier);
+        record.status = status;
+        record.lastModified = System.currentTimeMillis();
+        putNode(record);
+    }
+
+    /*
+     * Set some properties and, optionally, the status of several nodes
+     */
+    public synchronized void updateAttributes(Map<String, NodeAttributes> updates) throws SQLException, VOSpaceException {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, NodeAttributes> update : updates.entrySet()) {
+            NodeRecord old = nodes.get(fixId(update.getKey()));
+            if (old == null) continue;
+            NodeRecord record = old.copy(old.identifier);
+            setProperties(record, update.getValue().getProperties());
+            if (update.getValue().getStatus() != null) record.status = update.getValue().getStatus();
+            record.lastModified = now;
+            putNode(record);
+        }
+    }
+
+    /*
+     * Store the details of the specified transfer
+     */
+    public synchronized void storeTransfer(String identifier, String endpoint) throws SQLException {
+        Transfer transfer = new Transfer();
+        transfer.id = transferId + 1;
+        transfer.jobid = fixId(identifier);
+        transfer.endpoint = endpoint;
+        transfer.created = System.currentTimeMillis();
+        putTransfer(transfer);
+    }
+
+    /*
+     * Find the transfer whose endpoint ends with the specified endpoint
+     */
+    private Transfer findTransfer(String endpoint) {
+        List<Transfer> candidates = transfersByName.get(endpoint.substring(endpoint.lastIndexOf("/") + 1));
+        if (candidates != null) {
+            for (Transfer transfer : candidates) {
+                if (transfer.endpoint.endsWith(endpoint)) return transfer;
+            }
+        }
+        // Partial endpoint names are rare: fall back to a scan
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.endpoint.endsWith(endpoint)) return transfer;
+        }
+        return null;
+    }
+
+    /*
+     * Retrieve the job associated with the specified endpoint
+     */
+    public String getTransfer(String endpoint) throws SQLException {
+        Transfer transfer = findTransfer(endpoint);
+        return transfer == null ? null : results.get(transfer.jobid);
+    }
+
+    /**
+     * Check whether the specified transfer has completed
+     */
+    public boolean isCompleted(String jobid) throws SQLException {
+        Transfer transfer = transfersByJob.get(jobid);
+        return transfer != null && transfer.completed > 0;
+    }
+
+    /**
+     * Check whether the specified transfer has completed
+     */
+    public boolean isCompletedByEndpoint(String endpoint) throws SQLException {
+        Transfer transfer = findTransfer(endpoint);
+        return transfer != null && transfer.completed > 0;
+    }
+
+    /*
+     * Store the original view of the specific object
+     */
+    public synchronized void setView(String identifier, String view) throws SQLException {
+        NodeRecord old = nodes.get(fixId(identifier));
+        if (old == null) return;
+        NodeRecord record = old.copy(old.identifier);
+        record.view = view;
+        record.lastModified = System.currentTimeMillis();
+        putNode(record);
+    }
+
+    /*
+     * Get the original view of the object with the specified identifier
+     */
+    public String getView(String identifier) throws SQLException {
+        NodeRecord record = nodes.get(fixId(identifier));
+        return record == null ? null : record.view;
+    }
+
+    /*
+     * Resolve a location from the specified endpoint: that of the target of
+     * a transfer still open that was created in the last hour
+     */
+    public String resolveLocation(String endpoint) throws SQLException {
+        Transfer transfer = findTransfer(endpoint);
+        if (transfer == null || transfer.completed > 0 || System.currentTimeMillis() - transfer.created >= 3600000) return null;
+        try {
+            TransferDetails details = getTransferDetails(transfer.endpoint);
+            return details == null ? null : details.getLocation();
+        } catch (VOSpaceException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    /*
+     * Return the creation date of a transfer
+     */
+    public long getCreated(String endpoint) throws SQLException {
+        Transfer transfer = findTransfer(endpoint);
+        return transfer == null ? 0 : transfer.created;
+    }
+
+    /*
+     * Return the identifier associated with the specified location
+     */
+    public String resolveIdentifier(String location) throws SQLException {
+        for (NodeRecord record : nodes.values()) {
+            if (location.equals(record.location)) return record.identifier;
+        }
+        return null;
+    }
+
+    /*
+     * Mark the specified transfer as complete
+     */
+    public synchronized void completeTransfer(String endpoint) throws SQLException {
+        Transfer transfer = findTransfer(endpoint);
+        if (transfer == null) return;
+        Transfer completed = new Transfer();
+        completed.id = transfer.id;
+        completed.jobid = transfer.jobid;
+        completed.endpoint = transfer.endpoint;
+        completed.created = transfer.created;
+        completed.completed = System.currentTimeMillis();
+        putTransfer(completed);
+    }
+
+    /*
+     * Mark the specified transfer as complete
+     */
+    public void completeTransfer(String endpoint, boolean updateStatus) throws SQLException {
+    }
+
+    /*
+     * Return the identifier associated with the transfer
+     */
+    public String resolveTransfer(String endpoint) throws SQLException {
+        Transfer transfer = findTransfer(endpoint);
+        return transfer == null ? null : String.valueOf(transfer.id);
+    }
+
+    /*
+     * Update the specified property
+     */
+    public synchronized void updateProperty(String property, int type) throws SQLException {
+        int[] old = metaProperties.get(property);
+        if (old != null) putProperty(property, type, old[1]);
+    }
+
+    /*
+     * Update the specified property
+     */
+    public synchronized void updateProperty(String property, int type, boolean readOnly) throws SQLException {
+        if (metaProperties.containsKey(property)) putProperty(property, type, readOnly ? 1 : 0);
+    }
+
+    /*
+     * Get the properties of the specified type
+     */
+    public String[] getProperties(int type) throws SQLException {
+        ArrayList<String> list = new ArrayList<String>();
+        for (Map.Entry<String, int[]> property : metaProperties.entrySet()) {
+            if ((property.getValue()[0] & type) == type) list.add(property.getKey());
+        }
+        return list.toArray(new String[0]);
+    }
+
+    /*
+     * Get the property type of the specified node
+     */
+    public String getPropertyType(String identifier) throws SQLException {
+        int[] property = metaProperties.get(identifier);
+        return property == null ? null : String.valueOf(property[0]);
+    }
+
+    /*
+     * Check whether the property is read/only
+     */
+    public boolean isReadOnly(String property) throws SQLException {
+        int[] meta = metaProperties.get(property);
+        return meta != null && meta[1] != 0;
+    }
+
+    /*
+     * Get the value of a property
+     */
+    public String getPropertyValue(String identifier, String property) throws SQLException {
+        NodeRecord record = nodes.get(fixId(identifier));
+        if (record == null) return null;
+        String columnName = Props.fromURI(property);
+        return columnName != null ? record.properties.get(columnName) : record.addlProperties.get(property);
+    }
+
+    /*
+     * Get the values of a set of properties
+     */
+    public String[] getPropertyValues(String identifier, String[] properties) throws SQLException {
+        String[] values = new String[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            values[i] = getPropertyValue(identifier, properties[i]);
+        }
+        return values;
+    }
+
+    /*
+     * Get the direct children of the specified container node
+     */
+    public String[] getChildren(String identifier) throws SQLException, VOSpaceException {
+        ArrayList<String> list = new ArrayList<String>();
+        String parent = fixId(identifier);
+        for (String key : children.subSet(parent + SEP, parent + SEP_END)) {
+            list.add(key.substring(parent.length() + 1));
+        }
+        return list.toArray(new String[0]);
+    }
+
+    /*
+     * Get the direct children nodes of the specified container node
+     */
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier) throws SQLException, VOSpaceException {
+        return getChildrenNodesJDOM2(identifier, null, 0);
+    }
+
+    /*
+     * Get a page of the direct children nodes of the specified container
+     * node, in identifier order, following the specified listing token
+     */
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier, String token, int limit) throws SQLException, VOSpaceException {
+        String parent = fixId(identifier);
+        String from = parent + SEP;
+        if (token != null) {
+            ListingToken listing = ListingToken.decode(token);
+            if (!parent.equals(fixId(listing.getIdentifiers()[0]))) {
+                throw new VOSpaceException(VOSpaceException.VOFault.InvalidToken, "Token does not belong to " + identifier);
+            }
+            from = parent + SEP + fixId(listing.getLast());
+        }
+        ArrayList<ca.nrc.cadc.vos.Node> nodeArray = new ArrayList<ca.nrc.cadc.vos.Node>();
+        for (String key : children.subSet(from, token == null, parent + SEP_END, false)) {
+            NodeRecord record = nodes.get(key.substring(parent.length() + 1));
+            if (record == null) continue;
+            nodeArray.add(record.toNodeJDOM2());
+            if (limit > 0 && nodeArray.size() == limit) break;
+        }
+        return nodeArray.toArray(new ca.nrc.cadc.vos.Node[0]);
+    }
+
+    /*
+     * Get all the children of the specified container node
+     */
+    public String[] getAllChildren(String identifier) throws SQLException, VOSpaceException {
+        String fixedId = fixId(identifier);
+        return nodes.subMap(fixedId + "/", fixedId + "0").keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Store a result associated with a Job
+     * @param identifier The job identifier
+     * @param result The result associated with the job
+     */
+    public synchronized void addResult(String identifier, String result) throws SQLException {
+        log(out -> { out.writeByte(OP_RESULT); writeString(out, identifier); writeString(out, result); });
+        results.put(identifier, result);
+    }
+
+    /**
+     * Get a result associated with a Job
+     * @param identifier The job identifier
+     * @return result The result associated with the job
+     */
+    public String getResult(String identifier) throws SQLException {
+        return results.get(identifier);
+    }
+
+    /*
+     * Get the specified node
+     */
+    public String getNode(String identifier) throws SQLException, VOSpaceException {
+        NodeRecord record = nodes.get(fixId(identifier));
+        return (record == null ? new NodeRecord(fixId(identifier), -1) : record).toNode();
+    }
+
+    /*
+     * Check the status of a capability (active or not)
+     */
+    public int isActive(String identifier, String capability) throws SQLException {
+        Map<String, Integer> caps = capabilities.get(fixId(identifier));
+        Integer active = caps == null ? null : caps.get(capability);
+        return active == null ? -1 : active;
+    }
+
+    /*
+     * Set the status of a capability (active or not)
+     */
+    public synchronized void setActive(String identifier, String capability, int port) throws SQLException {
+        Map<String, Integer> caps = capabilities.get(fixId(identifier));
+        if (caps != null && caps.containsKey(capability)) putCapability(fixId(identifier), capability, port);
+    }
+
+    /*
+     * Register the capabilities
+     */
+    public synchronized void registerCapability(String identifier, String capability) throws SQLException {
+        putCapability(fixId(identifier), capability, 0);
+    }
+
+    /*
+     * Check whether the capability is registered
+     */
+    public boolean isKnownCapability(String capability) throws SQLException {
+        for (Map<String, Integer> caps : capabilities.values()) {
+            if (caps.containsKey(capability)) return true;
+        }
+        return false;
+    }
+
+    /*
+     * Get next available capability port
+     */
+    public int getCapPort() throws SQLException {
+        int port = 0;
+        for (Map<String, Integer> caps : capabilities.values()) {
+            for (int active : caps.values()) port = Math.max(port, active);
+        }
+        return port;
+    }
+
+    /**
+     * Check whether transfer associated with a Job exists
+     */
+    public boolean isTransfer(String identifier) throws SQLException {
+        return transfersByJob.containsKey(identifier);
+    }
+
+    /**
+     * Check whether transfer associated with a Job exists
+     */
+    public boolean isTransferByEndpoint(String endpoint) throws SQLException {
+        return findTransfer(endpoint) != null;
+    }
+
+    /**
+     * Get the last modification time of the node
+     */
+    public long getLastModTime(String identifier) throws SQLException {
+        NodeRecord record = nodes.get(fixId(identifier));
+        return record == null ? 0 : record.lastModified;
+    }
+
+
+    /*
+     * Store (or replace) a node record
+     */
+    private void putNode(NodeRecord record) throws SQLException {
+        log(out -> writeNode(out, record));
+        applyNode(record);
+    }
+
+    /*
+     * Delete a node record
+     */
+    private void deleteNode(String identifier) throws SQLException {
+        log(out -> { out.writeByte(OP_NODE_DELETE); writeString(out, identifier); });
+        applyNodeDelete(identifier);
+    }
+
+    /*
+     * Store (or replace) a property definition
+     */
+    private synchronized void putProperty(String property, int type, int readOnly) throws SQLException {
+        log(out -> { out.writeByte(OP_PROPERTY); writeString(out, property); out.writeInt(type); out.writeInt(readOnly); });
+        metaProperties.put(property, new int[]{type, readOnly});
+    }
+
+    /*
+     * Store (or replace) a transfer
+     */
+    private void putTransfer(Transfer transfer) throws SQLException {
+        log(out -> writeTransfer(out, transfer));
+        applyTransfer(transfer);
+    }
+
+    /*
+     * Store (or replace) a capability
+     */
+    private void putCapability(String identifier, String capability, int active) throws SQLException {
+        log(out -> { out.writeByte(OP_CAPABILITY); writeString(out, identifier); writeString(out, capability); out.writeInt(active); });
+        applyCapability(identifier, capability, active);
+    }
+
+    private void applyNode(NodeRecord record) {
+        NodeRecord old = nodes.put(record.identifier, record);
+        if (old != null && old.target != null) linkTargets.remove(old.target + SEP + old.identifier);
+        if (record.target != null) linkTargets.add(record.target + SEP + record.identifier);
+        children.add(getParent(record.identifier) + SEP + record.identifier);
+    }
+
+    private void applyNodeDelete(String identifier) {
+        NodeRecord old = nodes.remove(identifier);
+        if (old != null && old.target != null) linkTargets.remove(old.target + SEP + old.identifier);
+        children.remove(getParent(identifier) + SEP + identifier);
+    }
+
+    private void applyTransfer(Transfer transfer) {
+        Transfer old = transfers.put(transfer.id, transfer);
+        String name = transfer.endpoint.substring(transfer.endpoint.lastIndexOf("/") + 1);
+        List<Transfer> named = transfersByName.computeIfAbsent(name, k -> new ArrayList<Transfer>());
+        synchronized (named) {
+            if (old != null) named.remove(old);
+            named.add(transfer);
+        }
+        Transfer first = transfersByJob.get(transfer.jobid);
+        if (first == null || first.id == transfer.id) transfersByJob.put(transfer.jobid, transfer);
+        transferId = Math.max(transferId, transfer.id);
+    }
+
+    private void applyCapability(String identifier, String capability, int active) {
+        capabilities.computeIfAbsent(identifier, k -> new ConcurrentHashMap<String, Integer>()).put(capability, active);
+    }
+
+
+    /*
+     * Append an entry to the journal. An entry that fails part way may have
+     * left a torn frame at the end of the journal, after which nothing could
+     * be replayed, so the journal is closed and the store takes no more
+     * changes.
+     */
+    private synchronized void log(Entry entry) throws SQLException {
+        if (journal == null) throw new SQLException("Embedded metadata store is not available: " + dir);
+        try {
+            writeEntry(journal, entry);
+            journal.flush();
+            if (sync) journalFile.getFD().sync();
+        } catch (IOException e) {
+            log_error(logger, e);
+            try {
+                journal.close();
+            } catch (IOException ce) {
+                log_error(logger, ce);
+            }
+            journal = null;
+            throw new SQLException("Embedded metadata store cannot be written: " + dir, e);
+        }
+    }
+
+    /*
+     * Write an entry framed by its length and CRC32
+     */
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        entry.write(new DataOutputStream(bytes));
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.writeLong(crc.getValue());
+    }
+
+    /*
+     * Replay the entries of a snapshot or journal file. A journal may end
+     * with an entry cut short by a crash: it is dropped, with anything after
+     * it, and the journal is cleared when the new snapshot is written. A
+     * snapshot is written whole before it replaces the last one, so any
+     * damage to it is an error.
+     */
+    private void replay(File file, boolean isJournal) throws IOException {
+        long size = file.length();
+        long position = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (position < size) {
+                byte[] bytes = null;
+                try {
+                    int length = in.readInt();
+                    if (length >= 0 && length <= size - position - 12) {
+                        bytes = new byte[length];
+                        in.readFully(bytes);
+                        CRC32 crc = new CRC32();
+                        crc.update(bytes);
+                        if (in.readLong() != crc.getValue()) bytes = null;
+                    }
+                } catch (EOFException e) {
+                    bytes = null;
+                }
+                if (bytes == null) {
+                    if (!isJournal) throw new IOException("Damaged entry at " + position + " in " + file);
+                    logger.warn("Dropping " + (size - position) + " bytes of a damaged entry at the end of " + file);
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(bytes)), file);
+                position += bytes.length + 12;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Apply an entry read from a snapshot or journal file
+     */
+    private void apply(DataInputStream in, File file) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case OP_NODE: applyNode(readNode(in)); break;
+            case OP_NODE_DELETE: applyNodeDelete(readString(in)); break;
+            case OP_JOB: jobs.put(readString(in), readString(in)); break;
+            case OP_RESULT: results.put(readString(in), readString(in)); break;
+            case OP_PROPERTY: metaProperties.put(readString(in), new int[]{in.readInt(), in.readInt()}); break;
+            case OP_TRANSFER: applyTransfer(readTransfer(in)); break;
+            case OP_CAPABILITY: applyCapability(readString(in), readString(in), in.readInt()); break;
+            case OP_CAPABILITY_DELETE: capabilities.remove(readString(in)); break;
+            default: throw new IOException("Unknown journal entry " + op + " in " + file);
+        }
+    }
+
+    /*
+     * Write the current state as a new snapshot, with the nodes in
+     * identifier order so that each subtree is stored contiguously
+     */
+    private void compact(File snapshot) throws IOException {
+        File tmp = new File(dir, SNAPSHOT + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            for (NodeRecord record : nodes.values()) writeEntry(out, o -> writeNode(o, record));
+            for (Map.Entry<String, String> job : jobs.entrySet()) {
+                writeEntry(out, o -> { o.writeByte(OP_JOB); writeString(o, job.getKey()); writeString(o, job.getValue()); });
+            }
+            for (Map.Entry<String, String> result : results.entrySet()) {
+                writeEntry(out, o -> { o.writeByte(OP_RESULT); writeString(o, result.getKey()); writeString(o, result.getValue()); });
+            }
+            for (Map.Entry<String, int[]> property : metaProperties.entrySet()) {
+                writeEntry(out, o -> {
+                    o.writeByte(OP_PROPERTY); writeString(o, property.getKey());
+                    o.writeInt(property.getValue()[0]); o.writeInt(property.getValue()[1]);
+                });
+            }
+            for (Transfer transfer : transfers.values()) writeEntry(out, o -> writeTransfer(o, transfer));
+            for (Map.Entry<String, Map<String, Integer>> caps : capabilities.entrySet()) {
+                for (Map.Entry<String, Integer> cap : caps.getValue().entrySet()) {
+                    writeEntry(out, o -> {
+                        o.writeByte(OP_CAPABILITY); writeString(o, caps.getKey()); writeString(o, cap.getKey());
+                        o.writeInt(cap.getValue());
+                    });
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeNode(DataOutputStream out, NodeRecord record) throws IOException {
+        out.writeByte(OP_NODE);
+        writeString(out, record.identifier);
+        out.writeInt(record.type);
+        writeString(out, record.target);
+        writeString(out, record.view);
+        writeString(out, record.owner);
+        writeString(out, record.location);
+        out.writeBoolean(record.status);
+        out.writeLong(record.created);
+        out.writeLong(record.lastModified);
+        writeMap(out, record.properties);
+        writeMap(out, record.addlProperties);
+    }
+
+    private NodeRecord readNode(DataInputStream in) throws IOException {
+        NodeRecord record = new NodeRecord(readString(in), in.readInt());
+        record.target = readString(in);
+        record.view = readString(in);
+        record.owner = readString(in);
+        record.location = readString(in);
+        record.status = in.readBoolean();
+        record.created = in.readLong();
+        record.lastModified = in.readLong();
+        readMap(in, record.properties);
+        readMap(in, record.addlProperties);
+        return record;
+    }
+
+    private void writeTransfer(DataOutputStream out, Transfer transfer) throws IOException {
+        out.writeByte(OP_TRANSFER);
+        out.writeInt(transfer.id);
+        writeString(out, transfer.jobid);
+        writeString(out, transfer.endpoint);
+        out.writeLong(transfer.created);
+        out.writeLong(transfer.completed);
+    }
+
+    private Transfer readTransfer(DataInputStream in) throws IOException {
+        Transfer transfer = new Transfer();
+        transfer.id = in.readInt();
+        transfer.jobid = readString(in);
+        transfer.endpoint = readString(in);
+        transfer.created = in.readLong();
+        transfer.completed = in.readLong();
+        return transfer;
+    }
+
+    private void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private void readMap(DataInputStream in, Map<String, String> map) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) map.put(readString(in), readString(in));
+    }
+
+    /*
+     * Strings are written as their UTF-8 length (-1 for null) and bytes, as
+     * job descriptions can exceed the limit of writeUTF
+     */
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * ListingPage.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+/**
+ * This class represents a page of a listing: the nodes returned and the
+ * token of the page after them, which is <i>null</i> when the page is the
+ * last one.
+ */
+public class ListingPage<T> {
+    private final T[] nodes;
+    private final String nextToken;
+
+    /**
+     * Construct a page of a listing
+     * @param nodes The nodes of the page
+     * @param nextToken The token of the next page, if any
+     */
+    public ListingPage(T[] nodes, String nextToken) {
+        this.nodes = nodes;
+        this.nextToken = nextToken;
+    }
+
+    public T[] getNodes() {
+        return nodes;
+    }
+
+    public String getNextToken() {
+        return nextToken;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * ListingToken.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import edu.caltech.vao.vospace.VOSpaceException;
+
+/**
+ * This class represents the continuation token of a paged listing. The token
+ * is stateless: it carries the identifiers (or container) being listed and
+ * the last identifier returned, so the next page is read with a keyset
+ * query on identifier and nothing has to be kept in the store.
+ */
+public class ListingToken {
+
+    private static final String SEPARATOR = "\n";
+    private String last;
+    private String[] identifiers;
+
+    private ListingToken(String last, String[] identifiers) {
+        this.last = last;
+        this.identifiers = identifiers;
+    }
+
+    /*
+     * Create the token for the page following the specified identifier
+     * @param last The last identifier returned so far ("" for the first page)
+     * @param identifiers The identifiers (or container) being listed
+     * @return the opaque token
+     */
+    public static String encode(String last, String[] identifiers) {
+        String value = last + SEPARATOR + StringUtils.join(identifiers, SEPARATOR);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Create the token for the page following a page of a listing
+     * @param identifiers The identifiers being listed
+     * @param token The token of the page, if it was not the first
+     * @param last The last identifier of the page, or <i>null</i> if the page
+     *             was not full and so is the last one
+     * @return the opaque token, or <i>null</i> if there is no next page
+     */
+    public static String next(String[] identifiers, String token, String last) throws VOSpaceException {
+        if (last == null) return null;
+        return encode(last, token == null ? identifiers : decode(token).getIdentifiers());
+    }
+
+    /*
+     * Create the token for the page following the specified records
+     */
+    static String next(String[] identifiers, String token, List<NodeRecord> page, int limit) throws VOSpaceException {
+        return next(identifiers, token, limit > 0 && page.size() == limit ? page.get(limit - 1).identifier : null);
+    }
+
+    /*
+     * Read the specified token
+     * @param token The opaque token
+     * @return the listing state carried by the token
+     */
+    public static ListingToken decode(String token) throws VOSpaceException {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = StringUtils.splitPreserveAllTokens(value, SEPARATOR);
+            if (parts.length < 2) throw new IllegalArgumentException();
+            return new ListingToken(parts[0], Arrays.copyOfRange(parts, 1, parts.length));
+        } catch (IllegalArgumentException e) {
+            throw new VOSpaceException(VOSpaceException.VOFault.InvalidToken, "Invalid token: " + token);
+        }
+    }
+
+    /*
+     * Get the last identifier returned before this token
+     */
+    public String getLast() {
+        return last;
+    }
+
+    /*
+     * Get the identifiers (or container) being listed
+     */
+    public String[] getIdentifiers() {
+        return identifiers;
+    }
+}
@@ -7,9 +7,18 @@
 package edu.caltech.vao.vospace.meta;
 
 import edu.caltech.vao.vospace.NodeType;
+import edu.caltech.vao.vospace.Props;
+import edu.caltech.vao.vospace.xml.NodeFactory;
+import edu.caltech.vao.vospace.xml.Transfer;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import edu.caltech.vao.vospace.VOSpaceException;
 
 /**
@@ -78,6 +87,27 @@ public interface MetaStore {
      */
     public ca.nrc.cadc.vos.Node[] getDataJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException;
 
+    /*
+     * Retrieve a page of the metadata for the specified identifiers (or
+     * token), with the token of the page after it: the last identifier
+     * returned, from which the next page is read
+     */
+    public default ListingPage<String> getDataPage(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        String[] nodes = getData(identifiers, token, limit);
+        String last = limit > 0 && nodes.length == limit ? NodeFactory.getInstance().getNode(nodes[limit - 1]).getUri() : null;
+        return new ListingPage<String>(nodes, ListingToken.next(identifiers, token, last));
+    }
+
+    /*
+     * Retrieve a page of the metadata for the specified identifiers (or
+     * token) as Node Objects, with the token of the page after it
+     */
+    public default ListingPage<ca.nrc.cadc.vos.Node> getDataPageJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        ca.nrc.cadc.vos.Node[] nodes = getDataJDOM2(identifiers, token, limit);
+        String last = limit > 0 && nodes.length == limit ? nodes[limit - 1].getUri().getURI().toString() : null;
+        return new ListingPage<ca.nrc.cadc.vos.Node>(nodes, ListingToken.next(identifiers, token, last));
+    }
+
     /*
      * Get the target of a link node
      */
@@ -105,6 +135,44 @@ public interface MetaStore {
      */
     public void updateData(String identifier, String newIdentifier, String newLocation, Object metadata) throws SQLException, VOSpaceException;
 
+    /*
+     * Move a node and all its descendants to a new identifier and location,
+     * setting the specified properties on each of them
+     * @param identifier The identifier of the root of the subtree
+     * @param newIdentifier The new identifier of the root
+     * @param newLocation The new location of the root; descendants are placed below it
+     * @param properties The property values (by property URI) to set on every moved node
+     */
+    public void moveTree(String identifier, String newIdentifier, String newLocation, Map<String, String> properties) throws SQLException, VOSpaceException;
+
+    /*
+     * Copy a node and all its descendants to a new identifier and location
+     * @param identifier The identifier of the root of the subtree
+     * @param newIdentifier The identifier of the copy of the root
+     * @param newLocation The location of the copy of the root; descendants are placed below it
+     * @param owner The owner of the copies
+     * @param properties The property values (by property URI) to set on every copy
+     */
+    public void copyTree(String identifier, String newIdentifier, String newLocation, String owner, Map<String, String> properties) throws SQLException, VOSpaceException;
+
+    /*
+     * Set some properties and, optionally, the status of several nodes at
+     * once, touching their modification time. Stores may hold these updates
+     * back for a short while; a later read of an affected node sees them.
+     * @param updates The updates by node identifier
+     */
+    public void updateAttributes(Map<String, NodeAttributes> updates) throws SQLException, VOSpaceException;
+
+    /*
+     * Set some properties and, optionally, the status of a node
+     * @param identifier The identifier of the node
+     * @param properties The property values by property URI
+     * @param status The new status, or null to leave it unchanged
+     */
+    public default void updateAttributes(String identifier, Map<String, String> properties, Boolean status) throws SQLException, VOSpaceException {
+        updateAttributes(Collections.singletonMap(identifier, new NodeAttributes(properties, status)));
+    }
+
     /*
      * Get a token
      */
@@ -156,11 +224,32 @@ public interface MetaStore {
      */
     public void storeTransfer(String identifier, String endpoint) throws SQLException;
 
+    /*
+     * Store the specified transfer with the details needed to serve it
+     */
+    public default void storeTransfer(TransferDetails transfer) throws SQLException {
+        storeTransfer(transfer.getJobId(), transfer.getEndpoint());
+    }
+
     /*
      * Retrieve the job associated with the specified endpoint
      */
     public String getTransfer(String endpoint) throws SQLException;
 
+    /*
+     * Get the details of the transfer with the specified endpoint, or null
+     * if there is no such transfer; stores that do not keep them read them
+     * from the transfer document
+     */
+    public default TransferDetails getTransferDetails(String endpoint) throws SQLException, VOSpaceException {
+        String document = getTransfer(endpoint);
+        if (document == null) return null;
+        Transfer transfer = new Transfer(document);
+        String target = transfer.getTarget().replace("~", "!");
+        return new TransferDetails(null, endpoint, target, getLocation(target), transfer.getViewURI(), getOwner(target),
+                getCreated(endpoint), isCompletedByEndpoint(endpoint));
+    }
+
     /**
      * Check whether the specified transfer has completed
      */
@@ -246,6 +335,82 @@ public interface MetaStore {
      */
     public String[] getPropertyValues(String identifier, String[] properties) throws SQLException;
 
+    /*
+     * Follow a chain of links
+     * @param linkId The identifier of the first link
+     * @return the link and the targets it leads to in turn, ending with the
+     *         first target that is not a link
+     */
+    public default List<String> getLinkChain(String linkId) throws SQLException {
+        List<String> chain = new ArrayList<String>();
+        String node = linkId;
+        while (!chain.contains(node)) {
+            chain.add(node);
+            if (getType(node) != NodeType.LINK_NODE.ordinal()) break;
+            node = getTarget(node);
+        }
+        return chain;
+    }
+
+    /*
+     * Get the owner, type and sharing properties of the nearest stored node
+     * at or above the specified identifier, or null if there is none
+     */
+    public default NodeAccess getAccess(String identifier) throws SQLException {
+        for (String node : NodeAccess.lineage(identifier)) {
+            if (isStored(node)) {
+                String[] values = getPropertyValues(node, new String[] {Props.ISPUBLIC_URI,
+                        Props.PUBLICREAD_URI, Props.GROUPREAD_URI, Props.GROUPWRITE_URI});
+                return new NodeAccess(node, getOwner(node), getType(node), values[0], values[1], values[2], values[3]);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Get the bytes and the number of nodes under the specified container,
+     * or null if the store does not keep them
+     */
+    public default Usage getUsage(String identifier) throws SQLException {
+        return null;
+    }
+
+    /*
+     * Get the bytes and the number of nodes owned by the specified user, or
+     * null if the store does not keep them
+     */
+    public default Usage getOwnerUsage(String owner) throws SQLException {
+        return null;
+    }
+
+    /*
+     * Add a summary of the statistics of the store, and of the stores it
+     * wraps, to the specified map by component
+     */
+    public default void addStatistics(Map<String, String> statistics) {
+    }
+
+    /*
+     * Release the resources of the store, writing anything it holds back
+     */
+    public default void close() throws SQLException {
+    }
+
+    /*
+     * Get the time of the last write made by the current thread, for a
+     * store whose reads depend on it (e.g. to stick to the primary)
+     */
+    public default long getThreadWrite() {
+        return 0;
+    }
+
+    /*
+     * Set the time of the last write of the current thread, when it makes
+     * calls on behalf of another thread
+     */
+    public default void setThreadWrite(long time) {
+    }
+
     /*
      * Get the direct children of the specified container node
      */
@@ -254,13 +419,38 @@ public interface MetaStore {
     /*
      * Get the direct children nodes of the specified container node
      */
-    public String[] getChildrenNodes(String identifier) throws SQLException, VOSpaceException;
+    public default String[] getChildrenNodes(String identifier) throws SQLException, VOSpaceException {
+        ca.nrc.cadc.vos.Node[] nodeArray = getChildrenNodesJDOM2(identifier);
+        edu.noirlab.datalab.vos.VTDXMLNodeWriter instance = new edu.noirlab.datalab.vos.VTDXMLNodeWriter();
+        ArrayList<String> nodeXMLArray = new ArrayList<String>();
+        try {
+            for (ca.nrc.cadc.vos.Node elem : nodeArray) {
+                StringWriter sw = new StringWriter();
+                instance.write(elem, sw, true);
+                nodeXMLArray.add(sw.toString());
+                sw.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (Exception e) {
+            System.out.println(e.getLocalizedMessage());
+            throw new VOSpaceException(e);
+        }
+
+        return nodeXMLArray.toArray(new String[0]);
+    }
 
     /*
      * Get the direct children nodes of the specified container node as a node object
      */
     public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier) throws SQLException, VOSpaceException;
 
+    /*
+     * Get a page of the direct children nodes of the specified container node
+     * as node objects, in identifier order, following the listing token
+     */
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier, String token, int limit) throws SQLException, VOSpaceException;
+
     /*
      * Get all the children of the specified container node
      */
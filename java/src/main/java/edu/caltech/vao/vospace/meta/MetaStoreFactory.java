@@ -25,6 +25,7 @@ public class MetaStoreFactory {
     static Properties props;
     private int STORECOUNT = 0;
     private MetaStore store;
+    private AsyncMetaStore asyncStore;
 
     /*
      * Construct a basic MetaStoreFactory: load the properties file and
@@ -84,6 +85,14 @@ public class MetaStoreFactory {
   	try {
 	    if (store == null) {
 		store = (MetaStore) Class.forName((String) stores.get(type)).getConstructor(Properties.class).newInstance(props);
+		// Hold back node attribute updates if configured
+		if (Integer.parseInt(props.getProperty("server.meta.writebehind.delay", "0").trim()) > 0) {
+		    store = new WriteBehindMetaStore(store, props);
+		}
+		// Cache per-node metadata in front of the store if configured
+		if (Integer.parseInt(props.getProperty("server.meta.cache.size", "0")) > 0) {
+		    store = new CachingMetaStore(store, props);
+		}
 	    }
 	} catch (Exception e) {
 	    e.printStackTrace(System.err);
@@ -105,6 +114,17 @@ public class MetaStoreFactory {
 	return null;
     }
 
+    /*
+     * Get the asynchronous view of the MetaStore
+     */
+    public synchronized AsyncMetaStore getAsyncMetaStore() {
+	if (asyncStore == null) {
+	    MetaStore base = store != null ? store : getMetaStore();
+	    asyncStore = new AsyncMetaStore(base, props);
+	}
+	return asyncStore;
+    }
+
     /*
      * Register a MetaStore
      */
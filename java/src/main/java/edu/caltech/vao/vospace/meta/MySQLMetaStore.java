@@ -6,24 +6,24 @@
 
 package edu.caltech.vao.vospace.meta;
 
-import java.io.IOException;
-import java.io.StringWriter;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Collections;
+import java.util.List;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import ca.nrc.cadc.vos.NodeProperty;
-import ca.nrc.cadc.vos.VOSURI;
 import org.apache.commons.dbcp2.*;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.BooleanUtils;
@@ -36,7 +36,6 @@ import org.apache.log4j.Level;
 import edu.caltech.vao.vospace.xml.Node;
 import edu.caltech.vao.vospace.xml.NodeFactory;
 import edu.caltech.vao.vospace.xml.LinkNode;
-import edu.caltech.vao.vospace.xml.DataNode;
 import edu.caltech.vao.vospace.NodeType;
 import edu.caltech.vao.vospace.Props;
 import edu.caltech.vao.vospace.VOSpaceException;
@@ -53,6 +52,12 @@ public class MySQLMetaStore implements MetaStore {
     private static final String DEFAULT_DB_URL = "localhost/vospace";
     private static final String DEFAULT_DB_UID = "dba";
     private static final String DEFAULT_DB_PWD = "dba";
+    private static final int DEFAULT_PSTMT_CACHE = 250;
+    private static final int DEFAULT_POOL_SIZE = 100;
+    private static final int FETCH_BATCH = 500;
+    private static final int DEFAULT_DELETE_CHUNK = 1000;
+    private static final int DEFAULT_TRANSFER_TTL = 60;
+    private static final int DEFAULT_TRANSFER_RETENTION = 168;
     private PoolingDataSource<PoolableConnection> dataSource;
     private static Logger logger = Logger.getLogger(MySQLMetaStore.class.getName());
     public static final int MIN_DETAIL = 1;
@@ -63,9 +68,152 @@ public class MySQLMetaStore implements MetaStore {
     private String DB_PWD;
     private String connectionURL;
     private String[] propertyColumns = null;
+    private String fetchColumns = null;
+    private int deleteChunk = DEFAULT_DELETE_CHUNK;
+    private volatile boolean recursiveQueries = true;
+    private NodeFilter filter = null;
+    private ReplicaSet replicas = null;
+    private TransferRegistry transfers;
+    private int transferTtl;
+    private int transferRetention;
+    private final ScheduledExecutorService transferSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "transfer-sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
     private int STOREID = 0;
     private int CONNID = 0;
 
+    // Longest chain of links followed, so that a cycle of links ends
+    private static final int MAX_LINK_HOPS = 32;
+
+    /*
+     * Query templates. Every statement the store issues is parameterized so
+     * that the pooled connections can keep the prepared statements (and the
+     * server its parsed plans) around between calls. Templates that depend on
+     * the IVOA property columns are assembled once in getFetchQuery().
+     */
+    // Nodes and their metadata are looked up by the MD5 hash of the
+    // identifier (see vospace_idhash.sql), which the server computes from the
+    // bound identifier in the (latin1) charset of the identifier columns
+    private static final String ID_HASH = "unhex(md5(convert(? using latin1)))";
+    private static final String SQL_GET_JOB = "select job from jobs where identifier = ?";
+    private static final String SQL_ADD_JOB = "insert into jobs (identifier, job) values (?, ?)";
+    private static final String SQL_IS_STORED = "select identifier from nodes where idhash = " + ID_HASH;
+    private static final String SQL_SCAN_IDENTIFIERS = "select identifier from nodes";
+    private static final String SQL_SCAN_TREE = "select identifier from nodes where idhash = " + ID_HASH + " or identifier like ?";
+    private static final String SQL_GET_TYPE = "select type from nodes where idhash = " + ID_HASH;
+    private static final String SQL_GET_OWNER = "select owner from nodes where idhash = " + ID_HASH;
+    private static final String SQL_GET_LOCATION = "select location from nodes where idhash = " + ID_HASH;
+    private static final String SQL_GET_VIEW = "select view from nodes where idhash = " + ID_HASH;
+    private static final String SQL_SET_VIEW = "update nodes set view = ? where idhash = " + ID_HASH;
+    private static final String SQL_SET_STATUS = "update nodes set status = ? where idhash = " + ID_HASH;
+    private static final String SQL_GET_ACCESS = "select n.identifier, n.owner, n.type, p.ispublic, p.publicread, p.groupread, p.groupwrite "
+            + "from nodes n left join properties p on p.idhash = n.idhash where n.idhash in ";
+    private static final String SQL_GET_LASTMOD = "select lastModificationDate from nodes where idhash = " + ID_HASH;
+    private static final String SQL_IS_KNOWN_PROPERTY = "select * from metaproperties where identifier = ?";
+    private static final String SQL_REGISTER_PROPERTY = "insert into metaproperties (identifier, type, readOnly) values (?, ?, ?)";
+    private static final String SQL_UPDATE_PROPERTY_TYPE = "update metaproperties set type = ? where identifier = ?";
+    private static final String SQL_UPDATE_PROPERTY = "update metaproperties set type = ?, readonly = ? where identifier = ?";
+    private static final String SQL_GET_PROPERTIES = "select identifier from metaproperties where type & ? = ?";
+    private static final String SQL_GET_PROPERTY_TYPE = "select type from metaproperties where identifier = ?";
+    private static final String SQL_IS_READONLY = "select readonly from metaproperties where identifier = ?";
+    private static final String SQL_INSERT_NODE = "insert into nodes (identifier, depth, type, view, owner, location, creationDate) values (?, ?, ?, ?, ?, ?, cast(now() as datetime))";
+    private static final String SQL_TOUCH_NODE = "update nodes set lastModificationDate=cast(now() as datetime) where idhash = " + ID_HASH;
+    private static final String SQL_MOVE_NODE = "update nodes set lastModificationDate=cast(now() as datetime), identifier = ?, depth = ? where idhash = " + ID_HASH;
+    private static final String SQL_MOVE_NODE_LOCATION = "update nodes set lastModificationDate=cast(now() as datetime), identifier = ?, depth = ?, location = ? where idhash = " + ID_HASH;
+    private static final String SQL_MOVE_PROPERTIES = "update properties set identifier = ? where idhash = " + ID_HASH;
+    private static final String SQL_MOVE_ADDL_PROPS = "update addl_props set identifier = ? where idhash = " + ID_HASH;
+    private static final String SQL_COUNT_LISTING = "select count(identifier) from nodes where ";
+    private static final String SQL_GET_TARGET = "select target from links where idhash = " + ID_HASH;
+    private static final String SQL_INSERT_LINK = "insert into links (identifier, target) values (?, ?)";
+    private static final String SQL_UPDATE_LINK = "update links set target = ? where idhash = " + ID_HASH;
+    private static final String SQL_GET_ADDL_PROPS_IN = "select identifier, property, value from addl_props where idhash in ";
+    private static final String SQL_GET_ADDL_PROP = "select value from addl_props where idhash = " + ID_HASH + " and property = ?";
+    private static final String SQL_INSERT_ADDL_PROP = "insert into addl_props (identifier, property, value) values (?, ?, ?)";
+    private static final String SQL_DELETE_ADDL_PROP = "delete from addl_props where idhash = " + ID_HASH + " and property = ?";
+    private static final String SQL_CHILDREN = "select identifier from nodes where parenthash = " + ID_HASH;
+    private static final String SQL_CHILDREN_WHERE = "n.parenthash = " + ID_HASH;
+    private static final String SUBTREE = "(idhash = " + ID_HASH + " or identifier like ?)";
+    private static final String REBASE = "concat(?, substring(identifier, ?))";
+    private static final String SQL_SUBTREE = "select identifier from nodes where " + SUBTREE;
+    private static final String SQL_MOVE_TREE = "update nodes set lastModificationDate=cast(now() as datetime), "
+            + "location = " + REBASE + ", depth = depth + ?, identifier = " + REBASE + " where " + SUBTREE;
+    private static final String[] SQL_MOVE_TREE_IN = {
+            "update properties set identifier = " + REBASE + " where " + SUBTREE,
+            "update addl_props set identifier = " + REBASE + " where " + SUBTREE,
+            "update links set identifier = " + REBASE + " where " + SUBTREE,
+            "update capabilities set identifier = " + REBASE + " where " + SUBTREE,
+            "update container_usage set identifier = " + REBASE + " where " + SUBTREE};
+    private static final String SQL_COPY_TREE = "insert into nodes (identifier, depth, type, view, owner, location, creationDate) "
+            + "select " + REBASE + ", depth + ?, type, NULL, ?, " + REBASE + ", cast(now() as datetime) from nodes where " + SUBTREE;
+    private static final String SQL_COPY_TREE_LINKS = "insert into links (identifier, target) select " + REBASE + ", target from links where " + SUBTREE;
+    private static final String SQL_COPY_TREE_ADDL_PROPS = "insert into addl_props (identifier, property, value) select " + REBASE + ", property, value from addl_props where " + SUBTREE;
+    // Copied capabilities start inactive: their processes belong to the original
+    private static final String SQL_COPY_TREE_CAPABILITIES = "insert into capabilities (identifier, capability, active) select " + REBASE + ", capability, 0 from capabilities where " + SUBTREE;
+    private static final String SQL_DELETE_TREE_ADDL_PROP = "delete from addl_props where property = ? and " + SUBTREE;
+    private static final String SQL_SET_TREE_ADDL_PROP = "insert into addl_props (identifier, property, value) select identifier, ?, ? from nodes where " + SUBTREE;
+    private static final String SQL_ALL_CHILDREN = "select identifier from nodes where owner = ? and identifier like ?";
+    private static final String SQL_LAST_CHILDREN = SQL_ALL_CHILDREN + " order by identifier desc limit ?";
+    private static final String SQL_LAST_CHILDREN_BEFORE = SQL_ALL_CHILDREN + " and identifier < ? order by identifier desc limit ?";
+    private static final String[] SQL_DELETE_IN = {
+            "delete from nodes where idhash in ",
+            "delete from properties where idhash in ",
+            "delete from addl_props where idhash in ",
+            "delete from links where idhash in ",
+            "delete from capabilities where idhash in ",
+            "delete from container_usage where idhash in "};
+    private static final String SQL_LINKS_INTO = "select identifier from links where target = ? or target like ?";
+    private static final String SQL_LINKS_TO_IN = "select identifier from links where target in ";
+    private static final String SQL_LINK_CASCADE = "with recursive link_chain (identifier) as ("
+            + "select identifier from links where target = ? or target like ? "
+            + "union select l.identifier from links l, link_chain c where l.target = c.identifier) "
+            + "select identifier from link_chain";
+    private static final String SQL_LINK_CHAIN = "with recursive link_chain (target, hops) as ("
+            + "select target, 0 from links where idhash = " + ID_HASH + " "
+            + "union all select l.target, c.hops + 1 from links l, link_chain c "
+            + "where l.idhash = unhex(md5(replace(c.target, '~', '!'))) and c.hops < " + MAX_LINK_HOPS + ") "
+            + "select target from link_chain order by hops";
+    // The usage of the containers and owners (see vospace_usage.sql) is
+    // changed by the transaction of every write that changes it
+    private static final String SQL_LOCK_USAGE_IN = "select n.identifier, n.owner, n.type, p.length from nodes n "
+            + "left join properties p on p.idhash = n.idhash where n.idhash in ";
+    private static final String SQL_LOCK_SUBTREE_USAGE = "select n.owner, n.type, p.length, u.bytes, u.nodes from nodes n "
+            + "left join properties p on p.idhash = n.idhash left join container_usage u on u.idhash = n.idhash "
+            + "where n.idhash = " + ID_HASH + " for update";
+    private static final String SQL_ADD_CONTAINER_USAGE = "insert into container_usage (identifier, bytes, nodes) values (?, ?, ?) "
+            + "on duplicate key update bytes = bytes + values(bytes), nodes = nodes + values(nodes)";
+    private static final String SQL_ADD_OWNER_USAGE = "insert into owner_usage (owner, bytes, nodes) values (?, ?, ?) "
+            + "on duplicate key update bytes = bytes + values(bytes), nodes = nodes + values(nodes)";
+    private static final String SQL_MOVE_USAGE = "update container_usage set identifier = ? where idhash = " + ID_HASH;
+    private static final String SQL_COPY_TREE_USAGE = "insert into container_usage (identifier, bytes, nodes) select "
+            + REBASE + ", bytes, nodes from container_usage where " + SUBTREE;
+    private static final String SQL_GET_USAGE = "select bytes, nodes from container_usage where idhash = " + ID_HASH;
+    private static final String SQL_GET_OWNER_USAGE = "select bytes, nodes from owner_usage where owner = ?";
+    private static final String SQL_GET_TOTAL_USAGE = "select sum(bytes), sum(nodes) from owner_usage";
+    private static final String SQL_DEACTIVATE_CAPABILITY = "update capabilities set active = 0 where idhash = " + ID_HASH + " and capability like ?";
+    // Transfers are looked up by the token of their endpoint (see vospace_transfers.sql)
+    private static final String SQL_STORE_TRANSFER = "insert into transfers (jobid, rendpoint, token, target, location, view, owner, created) "
+            + "values (?, ?, ?, ?, ?, ?, ?, cast(now() as datetime))";
+    private static final String SQL_GET_ENDPOINT = "select jobid, created, completed, reverse(rendpoint), target, location, view, owner "
+            + "from transfers where token = ? order by identifier desc limit 1";
+    private static final String SQL_IS_COMPLETED = "select max(completed) from transfers where jobid = ?";
+    private static final String SQL_IS_COMPLETED_BY_ENDPOINT = "select max(completed) from transfers where token = ?";
+    private static final String SQL_RESOLVE_LOCATION = "select location from transfers where locate(?, endpoint) > 0 and timestampdiff(minute, created, now()) < 60 and completed is null";
+    private static final String SQL_RESOLVE_IDENTIFIER = "select identifier from nodes where location like ?";
+    private static final String SQL_COMPLETE_TRANSFER = "update transfers set completed = cast(now() as datetime) where token = ? and completed is null";
+    private static final String SQL_RESOLVE_TRANSFER = "select identifier from transfers where token = ? order by identifier desc limit 1";
+    private static final String SQL_IS_TRANSFER = "select identifier from transfers where jobid = ?";
+    private static final String SQL_PURGE_TRANSFERS = "delete from transfers where completed < now() - interval ? minute "
+            + "or created < now() - interval ? hour limit ?";
+    private static final String SQL_ADD_RESULT = "insert into results (identifier, details) values (?, ?)";
+    private static final String SQL_GET_RESULT = "select details from results where identifier = ?";
+    private static final String SQL_IS_ACTIVE = "select active from capabilities where idhash = " + ID_HASH + " and capability = ?";
+    private static final String SQL_SET_ACTIVE = "update capabilities set active = ? where idhash = " + ID_HASH + " and capability = ?";
+    private static final String SQL_REGISTER_CAPABILITY = "insert into capabilities (identifier, capability, active) values (?, ?, 0)";
+    private static final String SQL_IS_KNOWN_CAPABILITY = "select identifier from capabilities where capability = ?";
+    private static final String SQL_GET_CAP_PORT = "select max(active) from capabilities";
+
 
     /**
      * Construct a basic MySQLMetaStore
@@ -80,23 +228,45 @@ public class MySQLMetaStore implements MetaStore {
             DB_URL = props.containsKey("server.meta.dburl") ? props.getProperty("server.meta.dburl") : DEFAULT_DB_URL;
             DB_UID = props.containsKey("server.meta.dbuid") ? props.getProperty("server.meta.dbuid") : DEFAULT_DB_UID;
             DB_PWD = props.containsKey("server.meta.dbpwd") ? props.getProperty("server.meta.dbpwd") : DEFAULT_DB_PWD;
-            connectionURL = "jdbc:mysql://" + DB_URL + "?" + "user=" + DB_UID + "&" + "password=" + DB_PWD;
-
-            // Get connection factory
-            ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(connectionURL, null);
-            PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory,
-                    null);
-
-            GenericObjectPoolConfig config = new GenericObjectPoolConfig();
-            config.setMaxTotal(100);
-            config.setMaxIdle(5);
-            config.setMinIdle(5);
-            //PoolingDataSource expect an ObjectPool
-            ObjectPool<PoolableConnection> connectionPool = new GenericObjectPool<>(poolableConnectionFactory, config);
-            // Set the poolableConnectionFactory's pool property to the owning pool
-            poolableConnectionFactory.setPool(connectionPool);
+            int pstmtCache = props.containsKey("server.meta.pstmt.cache") ?
+                    Integer.parseInt(props.getProperty("server.meta.pstmt.cache").trim()) : DEFAULT_PSTMT_CACHE;
+            int poolSize = props.containsKey("server.meta.pool.size") ?
+                    Integer.parseInt(props.getProperty("server.meta.pool.size").trim()) : DEFAULT_POOL_SIZE;
+            deleteChunk = props.containsKey("server.meta.delete.chunk") ?
+                    Integer.parseInt(props.getProperty("server.meta.delete.chunk").trim()) : DEFAULT_DELETE_CHUNK;
+            // Use server-side prepared statements so that MySQL parses each
+            // template once per connection rather than on every call, and
+            // send JDBC batches as multi-row statements
+            connectionURL = "jdbc:mysql://" + DB_URL + "?" + "user=" + DB_UID + "&" + "password=" + DB_PWD
+                    + "&useServerPrepStmts=true&rewriteBatchedStatements=true";
+
+            this.dataSource = createPool(connectionURL, poolSize, pstmtCache);
+
+            // Send reads to the replicas, if any, and writes to the primary
+            String replicaUrls = props.getProperty("server.meta.replica.dburl", "").trim();
+            if (!replicaUrls.isEmpty()) {
+                String replicaUid = props.getProperty("server.meta.replica.dbuid", DB_UID);
+                String replicaPwd = props.getProperty("server.meta.replica.dbpwd", DB_PWD);
+                replicas = new ReplicaSet(props);
+                for (String replicaUrl : replicaUrls.split(",")) {
+                    replicas.add(replicaUrl.trim(), createPool("jdbc:mysql://" + replicaUrl.trim() + "?" + "user=" + replicaUid + "&"
+                            + "password=" + replicaPwd + "&useServerPrepStmts=true&readOnly=true", poolSize, pstmtCache));
+                }
+            }
 
-            this.dataSource = new PoolingDataSource<>(connectionPool);
+            // Hold live transfer endpoints in memory and purge the old ones
+            transferTtl = Integer.parseInt(props.getProperty("server.meta.transfer.ttl", String.valueOf(DEFAULT_TRANSFER_TTL)).trim());
+            transfers = new TransferRegistry(60000L * transferTtl);
+            transferRetention = Integer.parseInt(props.getProperty("server.meta.transfer.retention",
+                    String.valueOf(DEFAULT_TRANSFER_RETENTION)).trim());
+            transferSweeper.scheduleWithFixedDelay(this::sweepTransfers, 1, 1, TimeUnit.MINUTES);
+
+            // Answer lookups of identifiers that are not stored from memory
+            if (Boolean.parseBoolean(props.getProperty("server.meta.filter", "false").trim())) {
+                double fpp = Double.parseDouble(props.getProperty("server.meta.filter.fpp", "0.01").trim());
+                filter = new NodeFilter(this::scanIdentifiers, fpp);
+                filter.build();
+            }
 
         } catch (Exception e) {
             log_error(logger, e);
@@ -104,6 +274,34 @@ public class MySQLMetaStore implements MetaStore {
     }
 
 
+    /*
+     * Create a pool of connections to a database
+     * @param url The JDBC connection URL
+     * @param poolSize The maximum number of connections
+     * @param pstmtCache The prepared statements kept per connection
+     */
+    private static PoolingDataSource<PoolableConnection> createPool(String url, int poolSize, int pstmtCache) {
+        // Get connection factory
+        ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(url, null);
+        PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory,
+                null);
+        // Keep the prepared statements with each pooled connection
+        poolableConnectionFactory.setPoolStatements(pstmtCache > 0);
+        poolableConnectionFactory.setMaxOpenPreparedStatements(pstmtCache);
+
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxTotal(poolSize);
+        config.setMaxIdle(5);
+        config.setMinIdle(5);
+        //PoolingDataSource expect an ObjectPool
+        ObjectPool<PoolableConnection> connectionPool = new GenericObjectPool<>(poolableConnectionFactory, config);
+        // Set the poolableConnectionFactory's pool property to the owning pool
+        poolableConnectionFactory.setPool(connectionPool);
+
+        return new PoolingDataSource<>(connectionPool);
+    }
+
+
     /*
      * Standardize the VOSpace identifier
      * @param id The id of the node
@@ -149,9 +347,38 @@ public class MySQLMetaStore implements MetaStore {
     */
     private Connection getConnection() throws SQLException {
         return dataSource.getConnection();
-        //Connection connection = DriverManager.getConnection("jdbc:apache:commons:dbcp:connPool");
-//      System.err.println("Getting connection: " + STOREID + "-" + ++CONNID);
-        //return connection;
+    }
+
+    /*
+     * Choose where to read node metadata from: a read replica unless there
+     * are none or the identifier (or the current thread) was just written
+     * @param identifier The identifier read, or null if there is none
+     * @return the replica to read from, or null to read from the primary
+     */
+    private ReplicaSet.Replica reader(String identifier) {
+        return replicas == null ? null : replicas.reader(identifier == null ? null : fixId(identifier));
+    }
+
+    /*
+     * Choose where to read the metadata of a listing from
+     */
+    private ReplicaSet.Replica reader(String[] identifiers) {
+        return reader(identifiers == null || identifiers.length == 0 ? null : identifiers[0]);
+    }
+
+    /*
+     * Record that the specified (fixed) identifiers were written, so that
+     * they are read back from the primary for a while
+     */
+    private void written(String... identifiers) {
+        if (replicas != null) replicas.wrote(identifiers);
+    }
+
+    /*
+     * Get a summary of the read routing statistics, if there are replicas
+     */
+    public String getReplicaStatistics() {
+        return replicas == null ? null : replicas.getStatistics();
     }
 
     /*
@@ -160,10 +387,7 @@ public class MySQLMetaStore implements MetaStore {
      * @return The requested job or <i>null</i> if there is no job with the given ID.
      */
     public String getJob(String jobID) throws SQLException {
-        String job = null;
-        String query = "select job from jobs where identifier = '" + jobID + "'";
-        job = getAsString(query);
-        return job;
+        return getAsString(SQL_GET_JOB, jobID);
     }
 
     /*
@@ -172,8 +396,7 @@ public class MySQLMetaStore implements MetaStore {
      * @param job The XML string representation of the job
      */
     public void addJob(String jobID, String job) throws SQLException {
-        String query = "insert into jobs (identifier, job) values ('" + jobID + "', '" + job + "')";
-        update(query);
+        update(SQL_ADD_JOB, jobID, job);
     }
 
    /*
@@ -182,10 +405,83 @@ public class MySQLMetaStore implements MetaStore {
      * @return whether the node is stored or not
      */
     public boolean isStored(String identifier) throws SQLException {
-        boolean isStored = false;
-        String query = "select identifier from nodes where identifier = '" + fixId(identifier) + "'";
-        isStored = extantEntry(query);
-        return isStored;
+        String fixedId = fixId(identifier);
+        // Only a filter that is built answers, and so can be wrong
+        boolean filtered = filter != null && filter.isReady();
+        if (filter != null && !filter.mightContain(fixedId)) return false;
+        boolean stored = extantEntry(reader(fixedId), SQL_IS_STORED, fixedId);
+        if (!stored && filtered) filter.falsePositive();
+        return stored;
+    }
+
+    /*
+     * Get the membership filter of the stored identifiers, if enabled
+     */
+    public NodeFilter getNodeFilter() {
+        return filter;
+    }
+
+    /*
+     * Add the statistics of the membership filter, with its false positive
+     * rate, and of the read replicas, if enabled
+     */
+    public void addStatistics(Map<String, String> statistics) {
+        if (filter != null) statistics.put("filter", filter.getStatistics());
+        if (replicas != null) statistics.put("replicas", getReplicaStatistics());
+    }
+
+    /*
+     * Get the time of the last write of the current thread, by which its
+     * reads stick to the primary
+     */
+    public long getThreadWrite() {
+        return replicas == null ? 0 : replicas.getThreadWrite();
+    }
+
+    /*
+     * Set the time of the last write of the current thread
+     */
+    public void setThreadWrite(long time) {
+        if (replicas != null) replicas.setThreadWrite(time);
+    }
+
+    /*
+     * Record identifiers about to be (or just) stored in the filter. This is
+     * done both before and after the commit: before so that no lookup is
+     * answered from the filter while the node is being committed, after so
+     * that a filter rebuild running at the same time cannot miss it.
+     */
+    private void filterAdd(String identifier) {
+        if (filter != null) filter.add(identifier);
+    }
+
+    /*
+     * Stream the stored identifiers of a tree (or all of them) to the sink
+     * @param root The root of the tree, or null for all the trees
+     */
+    private void scanIdentifiers(String root, Consumer<String> sink) throws SQLException {
+        long t0 = System.currentTimeMillis();
+        Object[] params = root == null ? new Object[0] : new Object[] {root, escapeId(root) + "/%"};
+        Connection connection = getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement(root == null ? SQL_SCAN_IDENTIFIERS : SQL_SCAN_TREE,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            try {
+                // Stream the rows rather than reading them all into memory
+                statement.setFetchSize(Integer.MIN_VALUE);
+                bind(statement, params);
+                ResultSet result = statement.executeQuery();
+                while (result.next()) {
+                    sink.accept(result.getString(1));
+                }
+                result.close();
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+        logQuery(root == null ? SQL_SCAN_IDENTIFIERS : SQL_SCAN_TREE, params, System.currentTimeMillis() - t0, 0);
     }
 
     /*
@@ -194,10 +490,7 @@ public class MySQLMetaStore implements MetaStore {
      * @return the type of the node
      */
     public int getType(String identifier) throws SQLException {
-        int type = -1;
-        String query = "select type from nodes where identifier = '" + fixId(identifier) + "'";
-        type = getAsInt(query);
-        return type;
+        return getAsInt(reader(identifier), SQL_GET_TYPE, fixId(identifier));
     }
 
     /*
@@ -206,10 +499,7 @@ public class MySQLMetaStore implements MetaStore {
      * @return the owner of the node
      */
     public String getOwner(String identifier) throws SQLException {
-        String owner = "";
-        String query = "select owner from nodes where identifier = '" + fixId(identifier) + "'";
-        owner = getAsString(query);
-        return owner;
+        return getAsString(reader(identifier), SQL_GET_OWNER, fixId(identifier));
     }
 
     /*
@@ -237,10 +527,7 @@ public class MySQLMetaStore implements MetaStore {
      * @return whether the property is known
      */
     public boolean isKnownProperty(String identifier) throws SQLException {
-        boolean known = false;
-        String query = "select * from metaproperties where identifier = '" + identifier + "'";
-        known = extantEntry(query);
-        return known;
+        return extantEntry(SQL_IS_KNOWN_PROPERTY, identifier);
     }
 
     /*
@@ -250,55 +537,28 @@ public class MySQLMetaStore implements MetaStore {
      * @param readOnly Is the property read-only?
      */
     public void registerProperty(String property, int type, boolean readOnly) throws SQLException {
-        int wp = 0;
-        if (readOnly) wp = 1;
-        String query = "insert into metaproperties (identifier, type, readOnly) values ('" + property + "', " + type + ", " + wp + ")";
-        update(query);
+        update(SQL_REGISTER_PROPERTY, property, type, BooleanUtils.toInteger(readOnly));
     }
 
     /*
      * Store the metadata for the specified identifier
      */
     public void storeData(String identifier, int type, Object metadata) throws SQLException, VOSpaceException {
-        if (metadata instanceof String) {
-            // String query = "insert into nodes (identifier, type, creationDate, node) values ('" + fixId(identifier)
-            //      + "', '" + type + "', cast(now() as datetime), '" + (String) metadata + "')";
-            String fixedId = fixId(identifier);
-            String query = "insert into nodes (identifier, depth, type, creationDate) values ('"
-                    +fixedId+ "', " +getIdDepth(fixedId)+ ", " +type+ ", cast(now() as datetime))";
-            update(query);
-            storeProperties((String) metadata);
-        }
+        storeData(identifier, type, null, null, null, metadata);
     }
 
     /*
      * Store the metadata for the specified identifier
      */
     public void storeData(String identifier, int type, String owner, Object metadata) throws SQLException, VOSpaceException {
-        if (metadata instanceof String) {
-            // String query = "insert into nodes (identifier, type, owner, creationDate, node) values ('" + fixId(identifier)
-            //      + "', '" + type + "', '" + owner + "', cast(now() as datetime), '" + (String) metadata + "')";
-            String fixedId = fixId(identifier);
-            String query = "insert into nodes (identifier, depth, type, owner, creationDate) values ('"
-                    +fixedId+ "', " +getIdDepth(fixedId)+ ", " +type+ ", '" +owner+ "', cast(now() as datetime))";
-            update(query);
-            storeProperties((String) metadata);
-        }
+        storeData(identifier, type, null, owner, null, metadata);
     }
 
     /*
      * Store the metadata for the specified identifier
      */
     public void storeData(String identifier, int type, String owner, String location, Object metadata) throws SQLException, VOSpaceException {
-        if (metadata instanceof String) {
-            // String query = "insert into nodes (identifier, type, owner, location, creationDate, node) values ('" + fixId(identifier)
-            //      + "', '" + type + "', '" + owner + "', '" + location + "', cast(now() as datetime), '" + (String) metadata + "')";
-            String fixedId = fixId(identifier);
-            String query = "insert into nodes (identifier, depth, type, owner, location, creationDate) values ('"
-                    +fixedId+ "', " +getIdDepth(fixedId)+ ", " +type+ ", '" +owner+ "', '" +location+ "', cast(now() as datetime))";
-            update(query);
-            storeProperties((String) metadata);
-        }
+        storeData(identifier, type, null, owner, location, metadata);
     }
 
     /*
@@ -306,114 +566,115 @@ public class MySQLMetaStore implements MetaStore {
      */
     public void storeData(String identifier, int type, String view, String owner, String location, Object metadata) throws SQLException, VOSpaceException {
         if (metadata instanceof String) {
-            // String query = "insert into nodes (identifier, type, view, owner, location, creationDate, node) values ('" + fixId(identifier)
-            //      + "', '" + type + "', '" + view + "', '" + owner + "', '" + location + "', cast(now() as datetime), '" + (String) metadata + "')";
             String fixedId = fixId(identifier);
-            String query = "insert into nodes (identifier, depth, type, view, owner, location, creationDate) values ('"
-                    +fixedId+ "', " +getIdDepth(fixedId)+ ", " +type+ ", '" +view+ "', '" +owner+ "', '" +location+ "', cast(now() as datetime))";
-            update(query);
-            storeProperties((String) metadata);
+            Node node = NodeFactory.getInstance().getNode((String) metadata);
+            // The node row and all its properties become visible in one commit
+            filterAdd(fixedId);
+            transaction(connection -> {
+                UsageDelta usage = new UsageDelta();
+                usage.add(fixedId, owner, ownBytes(type, node.getProperties().get(Props.LENGTH_URI)), 1);
+                update(connection, SQL_INSERT_NODE, fixedId, getIdDepth(fixedId), type, view, owner, location);
+                storeProperties(connection, node);
+                addUsage(connection, usage);
+                return null;
+            });
+            filterAdd(fixedId);
+            written(fixedId);
         }
     }
 
-
-    public String checkData(String[] identifiers, int limit) throws SQLException {
-        String whereQuery = null, token = null;
-        // Get count
-        for (int i = 0; i < identifiers.length; i++) {
-            if (i == 0) whereQuery = "where";
-            if (identifiers[i].contains("*")) {
-                whereQuery += " identifier like '" + escapeId(identifiers[i]).replace("*", "%") + "'";
+    /*
+     * Build the where clause (and its parameters) selecting the specified
+     * identifiers; identifiers containing '*' are treated as wildcards
+     * @param alias The alias (with its '.') of the nodes table, if any
+     * @param identifiers The identifiers to match
+     * @param params The list to which the bound values are added
+     * @return the where clause, without the 'where' keyword
+     */
+    private String identifierClause(String alias, String[] identifiers, List<Object> params) {
+        ArrayList<String> terms = new ArrayList<String>();
+        for (String identifier: identifiers) {
+            if (identifier.contains("*")) {
+                terms.add(alias + "identifier like ?");
+                params.add(escapeId(identifier).replace("*", "%"));
             } else {
-                whereQuery += " identifier = '" + fixId(identifiers[i]) + "'";
+                terms.add(alias + "idhash = " + ID_HASH);
+                params.add(fixId(identifier));
             }
-            if (i != identifiers.length - 1) whereQuery += " or ";
         }
-        String query = "select count(identifier) from nodes " + whereQuery;
-        int count = getAsInt(query);
+        return "(" + StringUtils.join(terms, " or ") + ")";
+    }
+
+    /*
+     * Check whether the specified identifiers match more than limit nodes
+     * @return a token for the first page if they do, <i>null</i> otherwise
+     */
+    public String checkData(String[] identifiers, int limit) throws SQLException {
+        String token = null;
+        // Get count
+        ArrayList<Object> params = new ArrayList<Object>();
+        String whereQuery = identifierClause("", identifiers, params);
+        int count = getAsInt(reader(identifiers), SQL_COUNT_LISTING + whereQuery, params.toArray());
         if (limit < count) {
-            token = UUID.randomUUID().toString();
-            String createToken = "insert into listings (token, offset, count, whereQuery) values ('" + token + "', " + 0 + ", " + count + ", '" + whereQuery.replace("'", "\\'") + "')";
-            update(createToken);
+            token = ListingToken.encode("", identifiers);
         }
         return token;
     }
 
+    /*
+     * Check whether the page read with the specified token is the last one.
+     * Tokens are not moved on: the token of the page after a page is the one
+     * returned with it (see getDataPage).
+     */
     public boolean getAllData(String token, int limit) throws SQLException {
-        boolean allData = false;
-        String query = "select offset, count from listings where token = '" + token + "'";
-        ResultSet result = null;
+        ListingToken listing = null;
         try {
-            result = execute(query);
-            result.next();
-            int offset = result.getInt(1);
-            int count = result.getInt(2);
-            if (offset + limit >= count) {
-                allData = true;
-            } else {
-                String updateOffset = "update listings set offset = " + (offset + limit) + " where token ='" + token + "'";
-                update(updateOffset);
-            }
-        } finally {
-            closeResult(result);
+            listing = ListingToken.decode(token);
+        } catch (VOSpaceException e) {
+            throw new SQLException("Invalid token");
         }
-        return allData;
+        ArrayList<Object> params = new ArrayList<Object>();
+        String whereQuery = identifierClause("", listing.getIdentifiers(), params) + " and identifier > ?";
+        params.add(fixId(listing.getLast()));
+        return getAsInt(reader(listing.getIdentifiers()), SQL_COUNT_LISTING + whereQuery, params.toArray()) <= limit;
     }
 
     /*
-     * Retrieve the metadata for the specified identifier at the specified
-     * level of detail
+     * Resolve the listing clause for the specified identifiers (or token).
+     * Listings are ordered by identifier and the token holds the last one
+     * returned, so every page is a keyset query of the same cost.
+     * @param identifiers The identifiers to list
+     * @param token The listing token, if any
+     * @param limit The maximum number of rows to return
+     * @param params The list to which the bound values are added
+     * @return the where clause of the listing, with its ordering and paging
      */
-    public String[] getData(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
-        String query = null, whereQuery = null;
-        int count = 0, offset = 0;
-        // Get count
-        for (int i = 0; i < identifiers.length; i++) {
-            if (i == 0) whereQuery = "where";
-            if (identifiers[i].contains("*")) {
-                whereQuery += " identifier like '" + escapeId(identifiers[i]).replace("*", "%") + "'";
-            } else {
-                whereQuery += " identifier = '" + fixId(identifiers[i]) + "'";
-            }
-            if (i != identifiers.length - 1) whereQuery += " or ";
-        }
+    private String listingClause(String[] identifiers, String token, int limit, List<Object> params) throws VOSpaceException {
+        String last = null;
         if (token != null) {
-            String tokenQuery = "select offset, count, updateDate, whereQuery from listings where token = '" + token + "'";
-            ResultSet tokenResult = null;
-            try {
-                tokenResult = execute(tokenQuery);
-                if (tokenResult.next()) {
-                    offset = tokenResult.getInt(1);
-                    count = tokenResult.getInt(2);
-                    whereQuery = tokenResult.getString(4);
-                } else {
-                    throw new SQLException("Invalid token");
-                }
-            } finally {
-                closeResult(tokenResult);
-            }
+            ListingToken listing = ListingToken.decode(token);
+            identifiers = listing.getIdentifiers();
+            last = listing.getLast();
         }
-        // Construct listing query
-        // query = "select node from nodes ";
-        query = "select identifier, type from nodes ";
-        //      query += whereQuery + " order by identifier ";
-        query += whereQuery + " order by type ";
-        if (limit > 0) query += " limit " + limit;
-        if (offset > 0) query += " offset " + offset;
-        // String[] nodes = getAsStringArray(fixId(query));
-        ResultSet result = null;
-        ArrayList<String> nodes = new ArrayList<String>();
-        try {
-            result = execute(query);
-            while (result.next()) {
-                String nodeId = result.getString(1);
-                int nodeType = result.getInt(2);
-                nodes.add(createNode(nodeId, nodeType));
-            }
-        } finally {
-            closeResult(result);
+        String clause = identifierClause("n.", identifiers, params);
+        if (last != null) {
+            clause += " and n.identifier > ?";
+            params.add(fixId(last));
         }
-        return nodes.toArray(new String[0]);
+        clause += " order by n.identifier";
+        if (limit > 0) {
+            clause += " limit ?";
+            params.add(limit);
+        }
+        return clause;
+    }
+
+    /*
+     * Retrieve the metadata for the specified identifier at the specified
+     * level of detail
+     */
+    public String[] getData(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        return toNodes(listing(identifiers, token, limit));
     }
 
     /**
@@ -423,50 +684,48 @@ public class MySQLMetaStore implements MetaStore {
      *  is more efficient.
     */
     public ca.nrc.cadc.vos.Node[] getDataJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
-        String query = null, whereQuery = null;
-        int count = 0, offset = 0;
-        // Get count
-        for (int i = 0; i < identifiers.length; i++) {
-            if (i == 0) whereQuery = "where";
-            if (identifiers[i].contains("*")) {
-                whereQuery += " identifier like '" + escapeId(identifiers[i]).replace("*", "%") + "'";
-            } else {
-                whereQuery += " identifier = '" + fixId(identifiers[i]) + "'";
-            }
-            if (i != identifiers.length - 1) whereQuery += " or ";
-        }
-        if (token != null) {
-            String tokenQuery = "select offset, count, updateDate, whereQuery from listings where token = '" + token + "'";
-            ResultSet tokenResult = null;
-            try {
-                tokenResult = execute(tokenQuery);
-                if (tokenResult.next()) {
-                    offset = tokenResult.getInt(1);
-                    count = tokenResult.getInt(2);
-                    whereQuery = tokenResult.getString(4);
-                } else {
-                    throw new SQLException("Invalid token");
-                }
-            } finally {
-                closeResult(tokenResult);
-            }
+        return toNodesJDOM2(listing(identifiers, token, limit));
+    }
+
+    /*
+     * Retrieve a page of the metadata for the specified identifiers (or
+     * token), with the token of the page after its last identifier
+     */
+    public ListingPage<String> getDataPage(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        List<NodeRecord> records = listing(identifiers, token, limit);
+        return new ListingPage<String>(toNodes(records), ListingToken.next(identifiers, token, records, limit));
+    }
+
+    /*
+     * Retrieve a page of the metadata for the specified identifiers (or
+     * token) as Node Objects, with the token of the page after it
+     */
+    public ListingPage<ca.nrc.cadc.vos.Node> getDataPageJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        List<NodeRecord> records = listing(identifiers, token, limit);
+        return new ListingPage<ca.nrc.cadc.vos.Node>(toNodesJDOM2(records), ListingToken.next(identifiers, token, records, limit));
+    }
+
+    /*
+     * Fetch the records listed for the specified identifiers (or token)
+     */
+    private List<NodeRecord> listing(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        ArrayList<Object> params = new ArrayList<Object>();
+        String where = listingClause(identifiers, token, limit, params);
+        return fetchRecords(reader(identifiers), where, params.toArray());
+    }
+
+    private static String[] toNodes(List<NodeRecord> records) throws VOSpaceException {
+        ArrayList<String> nodes = new ArrayList<String>();
+        for (NodeRecord record : records) {
+            nodes.add(record.toNode());
         }
-        // Construct listing query
-        query = "select identifier, type from nodes ";
-        query += whereQuery + " order by type ";
-        if (limit > 0) query += " limit " + limit;
-        if (offset > 0) query += " offset " + offset;
-        ResultSet result = null;
+        return nodes.toArray(new String[0]);
+    }
+
+    private static ca.nrc.cadc.vos.Node[] toNodesJDOM2(List<NodeRecord> records) throws VOSpaceException {
         ArrayList<ca.nrc.cadc.vos.Node> nodes = new ArrayList<ca.nrc.cadc.vos.Node>();
-        try {
-            result = execute(query);
-            while (result.next()) {
-                String nodeId = result.getString(1);
-                int nodeType = result.getInt(2);
-                nodes.add(createNodeJDOM2(nodeId, nodeType));
-            }
-        } finally {
-            closeResult(result);
+        for (NodeRecord record : records) {
+            nodes.add(record.toNodeJDOM2());
         }
         return nodes.toArray(new ca.nrc.cadc.vos.Node[0]);
     }
@@ -475,130 +734,113 @@ public class MySQLMetaStore implements MetaStore {
      * Get the target of a link node
      */
     public String getTarget(String linkId) throws SQLException {
-        String lquery = "select target from links where identifier = '" + fixId(linkId) + "'";
-        return getAsString(lquery);
+        return getAsString(reader(linkId), SQL_GET_TARGET, fixId(linkId));
     }
 
     /*
-     * Create the specified node string by combining the other data stored in the database
+     * Follow a chain of links in a single recursive query
      */
-    private String createNode(String identifier, int type) throws SQLException, VOSpaceException {
-        // Create a new Node object of the proper type
-        String fixedId = fixId(identifier);
-	    Node node = NodeFactory.getInstance().getNodeByType(NodeType.getUriById(type));
-        // Set the URI for the node to the identifier
-        node.setUri(fixedId);
-        // Get the Properties for the node, and set them in the Node object
-        String[] propNames = Props.allProps();
-        // First build a query of all column names to get all column values
-        String query = "select " + StringUtils.join(propNames, ",") + " from properties where identifier = '" + fixedId + "'";
-        // Execute the query and set the property values in the Node.
-        ResultSet result = null;
-        try {
-            result = execute(query);
-            if (result.next()) {
-                String value = null;
-                for (String name: propNames) {
-                    value = result.getString(name);
-                    if (value != null) node.setProperty(Props.getURI(name), value);
+    public List<String> getLinkChain(String linkId) throws SQLException {
+        if (recursiveQueries) {
+            ResultSet result = null;
+            try {
+                result = execute(reader(linkId), SQL_LINK_CHAIN, fixId(linkId));
+                List<String> chain = new ArrayList<String>();
+                chain.add(linkId);
+                while (result.next()) {
+                    String target = result.getString(1);
+                    if (chain.contains(target)) break;
+                    chain.add(target);
                 }
+                return chain;
+            } catch (SQLException e) {
+                // Servers before MySQL 8.0 do not know 'with recursive'
+                if (!"42000".equals(e.getSQLState())) throw e;
+                logger.warn("Recursive queries not supported; resolving links one level at a time");
+                recursiveQueries = false;
+            } finally {
+                closeResult(result);
             }
-        } finally {
-            closeResult(result);
         }
-        query = "select property, value from addl_props where identifier = '" + fixedId + "'";
-        // Execute the query and set the property values in the Node.
-        try {
-            result = execute(query);
-            while (result.next()) {
-                String property = result.getString(1);
-                String value = result.getString(2);
-                if (value != null) node.setProperty(property, value);
-            }
-        } finally {
-            closeResult(result);
+        return MetaStore.super.getLinkChain(linkId);
+    }
+
+    /*
+     * Get the names of the IVOA property columns of the properties table
+     */
+    private String[] getPropertyColumns() {
+        if (propertyColumns == null) propertyColumns = Props.allProps();
+        return propertyColumns;
+    }
+
+    /*
+     * Get the query selecting the nodes matching a where clause together
+     * with their IVOA property columns and link targets
+     * @param where The where clause, without the 'where' keyword
+     */
+    private String getFetchQuery(String where) {
+        if (fetchColumns == null) {
+            fetchColumns = StringUtils.join(Arrays.stream(getPropertyColumns()).map(s -> "p." + s).
+                    collect(Collectors.toList()), ",");
         }
-        if (node instanceof LinkNode) ((LinkNode) node).setTarget(getTarget(fixedId));
-        // Set the Views and Capabilities; unfortunately requires the VOSpaceManager
-        if (node instanceof DataNode) VOSpaceManager.getInstance().addViewsAndCapabilities((DataNode) node);
-        // Return the Node cast back to String
-        return node.toString();
+        return "select n.identifier, n.type, l.target, " + fetchColumns + " from nodes n" +
+                " left join properties p on p.idhash = n.idhash" +
+                " left join links l on l.idhash = n.idhash where " + where;
     }
 
     /*
-     * Create the specified node object by combining the other data stored in the database
-     * This node object can later be serialized to XML in one swap.
+     * Fetch the stored metadata of all the nodes matching a where clause.
+     * The nodes, their IVOA properties and link targets come back from one
+     * joined query and the additional properties from one query per batch
+     * of FETCH_BATCH nodes, so the number of round trips does not grow with
+     * the number of matches.
+     * @param source The read replica to query, or null for the primary
+     * @param where The where clause, without the 'where' keyword
+     * @param params The values bound to the where clause
+     * @return the matching records in query order
      */
-    private ca.nrc.cadc.vos.Node createNodeJDOM2(String identifier, int type) throws SQLException, VOSpaceException {
-        // Create a new Node object of the proper type
-        String fixedId = fixId(identifier);
-        //Node node = NodeFactory.getInstance().getNodeByType(NodeType.getUriById(type));
-        ca.nrc.cadc.vos.Node node = null;
+    private List<NodeRecord> fetchRecords(ReplicaSet.Replica source, String where, Object... params) throws SQLException {
+        String[] propNames = getPropertyColumns();
+        LinkedHashMap<String, NodeRecord> records = new LinkedHashMap<String, NodeRecord>();
+        ResultSet result = null;
         try {
-            node = NodeFactory.getInstance().getJDOM2NodeByType(type, new VOSURI(fixedId));
-            // Get the Properties for the node, and set them in the Node object
-            String[] propNames = Props.allProps();
-            // First build a query of all column names to get all column values
-            String query = "select " + StringUtils.join(propNames, ",") + " from properties where identifier = '" + fixedId + "'";
-            // Execute the query and set the property values in the Node.
-            ResultSet result = null;
-            List<NodeProperty> properties = new ArrayList<>();
-            try {
-                result = execute(query);
-                if (result.next()) {
-                    String value = null;
-                    for (String name : propNames) {
-                        value = result.getString(name);
-                        if (value != null) {
-                            NodeProperty np = new NodeProperty("ivo://ivoa.net/vospace/core#" + name, value);
-                            properties.add(np);
-                        }
-                    }
+            result = execute(source, getFetchQuery(where), params);
+            while (result.next()) {
+                NodeRecord record = new NodeRecord(result.getString(1), result.getInt(2));
+                record.target = result.getString(3);
+                for (int i = 0; i < propNames.length; i++) {
+                    String value = result.getString(i + 4);
+                    if (value != null) record.properties.put(propNames[i], value);
                 }
-            } finally {
-                closeResult(result);
+                records.put(record.identifier, record);
             }
-            query = "select property, value from addl_props where identifier = '" + fixedId + "'";
-            // Execute the query and set the property values in the Node.
+        } finally {
+            closeResult(result);
+        }
+        ArrayList<String> ids = new ArrayList<String>(records.keySet());
+        for (int i = 0; i < ids.size(); i += FETCH_BATCH) {
+            List<String> batch = ids.subList(i, Math.min(i + FETCH_BATCH, ids.size()));
+            String query = SQL_GET_ADDL_PROPS_IN + "(" + StringUtils.repeat(ID_HASH, ",", batch.size()) + ")";
             try {
-                result = execute(query);
+                result = execute(source, query, batch.toArray());
                 while (result.next()) {
-                    String property = result.getString(1);
-                    String value = result.getString(2);
-                    if (value != null) {
-                        NodeProperty np = new NodeProperty("ivo://ivoa.net/vospace/core#" + property, value);
-                        properties.add(np);
-                    }
+                    NodeRecord record = records.get(result.getString(1));
+                    String value = result.getString(3);
+                    if (record != null && value != null) record.addlProperties.put(result.getString(2), value);
                 }
             } finally {
                 closeResult(result);
             }
-            node.setProperties(properties);
-            if (node instanceof ca.nrc.cadc.vos.LinkNode) {
-                ((ca.nrc.cadc.vos.LinkNode) node).setTarget(new URI(getTarget(fixedId)));
-            }
-            // Set the Views and Capabilities; unfortunately requires the VOSpaceManager
-            NodeType nodeType = MetaStore.getNodeType(type);
-            if (viewsAndCaps.contains(nodeType)) {
-                VOSpaceManager.getInstance().addViewsAndCapabilitiesJDOM2(node, nodeType);
-            }
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
-            throw new VOSpaceException(VOSpaceException.VOFault.InvalidURI, e.getLocalizedMessage());
         }
-        // Return the Node
-        return node;
+        return new ArrayList<NodeRecord>(records.values());
     }
 
     /*
      * Get the specified node
      */
     public String getNode(String identifier) throws SQLException, VOSpaceException {
-        /* String node = null;
-        String query = "select node from nodes where identifier = '" + fixId(identifier) + "'";
-        node = getAsString(query);
-        return node; */
-        return createNode(identifier, getType(identifier));
+        List<NodeRecord> records = fetchRecords(reader(identifier), "n.idhash = " + ID_HASH, fixId(identifier));
+        return (records.isEmpty() ? new NodeRecord(fixId(identifier), -1) : records.get(0)).toNode();
     }
 
 
@@ -606,316 +848,611 @@ public class MySQLMetaStore implements MetaStore {
      * Get the direct children of the specified container node
      */
     public String[] getChildren(String identifier) throws SQLException, VOSpaceException {
-        String query = "select identifier from nodes force index (nod_own_dep_id_idx) where " +
-                " owner = '" + getOwnerFromId(identifier) + "'" +
-                " and depth = " + (getIdDepth(identifier) + 1)
-                + " and identifier like '" + escapeId(identifier) + "/%'";
+        return getAsStringArray(reader(identifier), SQL_CHILDREN, fixId(identifier));
+    }
+
+
+    /*
+     * Get the direct children nodes of the specified container node.
+     * This is the alternative version to the original getChildrenNodes.
+     * This new version, however, uses ca.nrd.cadc.vos.Node classes to
+     * represent the Node object and it fetches the nodes, their properties
+     * and link targets in one joined query (see fetchRecords).
+     */
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier) throws SQLException, VOSpaceException {
+        return getChildrenNodesJDOM2(identifier, null, 0);
+    }
+
+    /*
+     * Get a page of the direct children nodes of the specified container
+     * node, in name order, following the specified listing token. Pages
+     * are read in the order of nod_par_nam_idx (parenthash, name).
+     * @param identifier The identifier of the container
+     * @param token The listing token of the previous page, if any
+     * @param limit The maximum number of children to return (0 for all)
+     */
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier, String token, int limit) throws SQLException, VOSpaceException {
+        ArrayList<Object> params = new ArrayList<Object>();
+        params.add(fixId(identifier));
+        String where = SQL_CHILDREN_WHERE;
+        if (token != null) {
+            ListingToken listing = ListingToken.decode(token);
+            if (!fixId(identifier).equals(fixId(listing.getIdentifiers()[0]))) {
+                throw new VOSpaceException(VOSpaceException.VOFault.InvalidToken, "Token does not belong to " + identifier);
+            }
+            // Within a container the identifier order is that of the names
+            String last = fixId(listing.getLast());
+            where += " and n.name > ?";
+            params.add(last.substring(last.lastIndexOf("/") + 1));
+        }
+        if (limit > 0) {
+            where += " order by n.name limit ?";
+            params.add(limit);
+        }
 
-        return getAsStringArray(query);
-        /*
+        ArrayList<ca.nrc.cadc.vos.Node> nodeArray = new ArrayList<ca.nrc.cadc.vos.Node>();
+        try {
+            for (NodeRecord record : fetchRecords(reader(identifier), where, params.toArray())) {
+                nodeArray.add(record.toNodeJDOM2());
+            }
+        } catch (RuntimeException e) {
+            log_error(logger, "getChildrenNodesJDOM2 identifier [" + identifier + "]",  e);
+            throw new VOSpaceException(VOSpaceException.VOFault.InternalFault,
+                    "Error processing container [" + identifier + "]");
+        } catch (Exception e) {
+            log_error(logger, "getChildrenNodesJDOM2 identifier [" + identifier + "]",  e);
+            throw new VOSpaceException(VOSpaceException.VOFault.InternalFault,
+                    "Error processing container [" + identifier + "]");
+        }
+
+        return nodeArray.toArray(new ca.nrc.cadc.vos.Node[0]);
+    }
+
+    /*
+     * Get all the children of the specified container node
+     */
+    public String[] getAllChildren(String identifier) throws SQLException, VOSpaceException {
         ArrayList<String> children = new ArrayList<String>();
-        String query = "select identifier from nodes where identifier like '" + escapeId(identifier) + "/%'";
-        for (String child: getAsStringArray(query)) {
-            if (!child.equals(fixId(identifier)) && !child.substring(identifier.length() + 1).contains("/")) {
+        // Note: Don't filter by depth in the where clause as
+        // we want all nodes and not only the immediate ones.
+        for (String child : getAsStringArray(reader(identifier), SQL_ALL_CHILDREN, getOwnerFromId(identifier), escapeId(identifier) + "/%")) {
+            if (!child.equals(fixId(identifier))) {
                 children.add(child);
             }
         }
         return children.toArray(new String[0]);
-        */
     }
 
+    /*
+     * Remove the metadata for the specified identifier
+     * @param identifier The (root) identifier of the node(s) to delete
+     * @param container Does the identifier refer to a container?
+     * Returns a list of links which pointed to the deleted identifier and were
+     * also removed in the process of removing the identifier.
+     * The links that (transitively) point into the subtree are resolved
+     * first. The subtree is then walked from its last identifier down,
+     * DELETE_CHUNK identifiers at a time, and each chunk deleted by key in
+     * its own transaction, so that locks are only held for a chunk and the
+     * descendants of a container are gone before it is; the links follow,
+     * and the root goes last. A failure part way leaves the root in place
+     * and the usage consistent with the nodes that are left, so that the
+     * removal can be run again.
+     */
+    public String[] removeData(String identifier, boolean container) throws SQLException, VOSpaceException {
+        String fixedId = fixId(identifier);
+        String owner = container ? getOwnerFromId(identifier) : null;
+        String escaped = container ? escapeId(identifier) + "/%" : null;
+        // Find all the links to the removed nodes, and the links to them
+        List<String> removedLinks = transaction(connection -> getLinkCascade(connection, fixedId, escaped));
+        removedLinks.remove(fixedId);
+        if (container) {
+            // Note: Don't filter by depth in the where clause as
+            // we want all nodes and not only the immediate ones.
+            String last = null;
+            List<String> chunk;
+            do {
+                String before = last;
+                chunk = transaction(connection -> {
+                    List<String> ids = before == null
+                        ? getAsStringList(connection, SQL_LAST_CHILDREN, owner, escaped, deleteChunk)
+                        : getAsStringList(connection, SQL_LAST_CHILDREN_BEFORE, owner, escaped, before, deleteChunk);
+                    removeChunk(connection, ids);
+                    return ids;
+                });
+                if (!chunk.isEmpty()) last = chunk.get(chunk.size() - 1);
+            } while (chunk.size() == deleteChunk);
+        }
+        // The links in the subtree went with it
+        ArrayList<String> links = new ArrayList<String>();
+        for (String link : removedLinks) {
+            if (!container || !link.startsWith(fixedId + "/")) links.add(link);
+        }
+        for (int i = 0; i < links.size(); i += deleteChunk) {
+            List<String> ids = links.subList(i, Math.min(i + deleteChunk, links.size()));
+            transaction(connection -> {
+                removeChunk(connection, ids);
+                return null;
+            });
+        }
+        transaction(connection -> {
+            removeChunk(connection, Collections.singletonList(fixedId));
+            ArrayList<String> capIds = new ArrayList<String>(removedLinks);
+            capIds.add(fixedId);
+            for (String capId : capIds) {
+                if (capId.endsWith("_cap.conf")) {
+                    String parent = capId.substring(0, capId.lastIndexOf("/"));
+                    String shortCap = capId.substring(capId.lastIndexOf("/") + 1, capId.lastIndexOf("_cap.conf"));
+                    update(connection, SQL_DEACTIVATE_CAPABILITY, parent, "%" + escapeStr(shortCap));
+                }
+            }
+            return null;
+        });
+        return removedLinks.toArray(new String[0]);
+    }
 
     /*
-     * Get the direct children nodes of the specified container node
+     * Delete a chunk of nodes by key, with their share of the usage of the
+     * containers above them and of their owners
+     * @param connection The connection of the enclosing transaction
+     * @param ids The identifiers of the nodes
      */
-    public String[] getChildrenNodes(String identifier) throws SQLException, VOSpaceException {
+    private void removeChunk(Connection connection, List<String> ids) throws SQLException {
+        if (ids.isEmpty()) return;
+        Object[] chunk = ids.toArray();
+        String in = "(" + StringUtils.repeat(ID_HASH, ",", chunk.length) + ")";
+        UsageDelta usage = new UsageDelta();
+        for (String[] row : getAsRows(connection, SQL_LOCK_USAGE_IN + in + " for update", chunk)) {
+            usage.add(row[0], row[1], -ownBytes(Integer.parseInt(row[2]), row[3]), -1);
+        }
+        for (String delete : SQL_DELETE_IN) {
+            update(connection, delete + in, chunk);
+        }
+        // The usage rows of the removed containers are gone with them
+        usage.drop(ids);
+        addUsage(connection, usage);
+        if (filter != null) {
+            for (String id : ids) filter.remove(id);
+        }
+        written(ids.toArray(new String[0]));
+    }
 
-        ca.nrc.cadc.vos.Node[] nodeArray = getChildrenNodesJDOM2(identifier);
-        edu.noirlab.datalab.vos.VTDXMLNodeWriter instance = new edu.noirlab.datalab.vos.VTDXMLNodeWriter();
-        ArrayList<String> nodeXMLArray = new ArrayList<String>();
-        try {
-            for (ca.nrc.cadc.vos.Node elem : nodeArray) {
-                StringWriter sw = new StringWriter();
-                instance.write(elem, sw, true);
-                nodeXMLArray.add(sw.toString());
-                sw.close();
+    /*
+     * Resolve all the links which point to the specified node or into its
+     * subtree, and the links which point to those links in turn
+     * @param connection The connection of the enclosing transaction
+     * @param identifier The identifier of the node
+     * @param pattern The 'LIKE' pattern of its subtree, or null
+     * @return the identifiers of the links
+     */
+    private List<String> getLinkCascade(Connection connection, String identifier, String pattern) throws SQLException {
+        if (recursiveQueries) {
+            try {
+                return getAsStringList(connection, SQL_LINK_CASCADE, identifier, pattern);
+            } catch (SQLException e) {
+                // Servers before MySQL 8.0 do not know 'with recursive'
+                if (!"42000".equals(e.getSQLState())) throw e;
+                logger.warn("Recursive queries not supported; resolving links one level at a time");
+                recursiveQueries = false;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (Exception e) {
-            System.out.println(e.getLocalizedMessage());
-            throw new VOSpaceException(e);
         }
+        LinkedHashSet<String> links = new LinkedHashSet<String>();
+        List<String> level = getAsStringList(connection, SQL_LINKS_INTO, identifier, pattern);
+        while (!level.isEmpty()) {
+            ArrayList<String> added = new ArrayList<String>();
+            for (String link : level) {
+                if (links.add(link)) added.add(link);
+            }
+            level = new ArrayList<String>();
+            for (int i = 0; i < added.size(); i += deleteChunk) {
+                Object[] chunk = added.subList(i, Math.min(i + deleteChunk, added.size())).toArray();
+                level.addAll(getAsStringList(connection,
+                        SQL_LINKS_TO_IN + "(" + StringUtils.repeat("?", ",", chunk.length) + ")", chunk));
+            }
+        }
+        return new ArrayList<String>(links);
+    }
 
-        return nodeXMLArray.toArray(new String[0]);
+    /*
+     * Update the metadata for the specified identifier
+     */
+    public void updateData(String identifier, Object metadata) throws SQLException, VOSpaceException {
+        if (metadata instanceof String) {
+            Node node = NodeFactory.getInstance().getNode((String) metadata);
+            transaction(connection -> {
+                UsageDelta usage = new UsageDelta();
+                countResize(connection, usage, Collections.singletonMap(fixId(identifier), node.getProperties().get(Props.LENGTH_URI)));
+                updateProperties(connection, node);
+                // Force an update to lastModificationTime
+                update(connection, SQL_TOUCH_NODE, fixId(identifier));
+                addUsage(connection, usage);
+                return null;
+            });
+            written(fixId(identifier));
+        }
     }
 
-    List<NodeType> viewsAndCaps = Arrays.asList(
-            NodeType.DATA_NODE,
-            NodeType.CONTAINER_NODE,
-            NodeType.STRUCTURED_DATA_NODE,
-            NodeType.UNSTRUCTURED_DATA_NODE);
+    /*
+     * Update the metadata for the specified identifier including updating the
+     * identifier
+     */
+    public void updateData(String identifier, String newIdentifier, Object metadata) throws SQLException, VOSpaceException {
+        if (metadata instanceof String) {
+            Node node = NodeFactory.getInstance().getNode((String) metadata);
+            String fixedId = fixId(identifier);
+            String fixedNewId = fixId(newIdentifier);
+            filterAdd(fixedNewId);
+            transaction(connection -> {
+                UsageDelta usage = new UsageDelta();
+                countMove(connection, usage, fixedId, fixedNewId, node.getProperties().get(Props.LENGTH_URI));
+                updateProperties(connection, node);
+                update(connection, SQL_MOVE_NODE, fixedNewId, getIdDepth(fixedNewId), fixedId);
+                update(connection, SQL_MOVE_PROPERTIES, fixedNewId, fixedId);
+                update(connection, SQL_MOVE_ADDL_PROPS, fixedNewId, fixedId);
+                update(connection, SQL_MOVE_USAGE, fixedNewId, fixedId);
+                addUsage(connection, usage);
+                return null;
+            });
+            filterAdd(fixedNewId);
+            if (filter != null) filter.remove(fixedId);
+            written(fixedId, fixedNewId);
+        }
+    }
 
     /*
-     * Get the direct children nodes of the specified container node.
-     * This is the alternative version to the original getChildrenNodes.
-     * This new version, however, uses ca.nrd.cadc.vos.Node classes to
-     * represent the Node object and it uses a subquery to join the Nodes,
-     * properties and addl_properties table in one single SQL query.
+     * Update the metadata for the specified identifier including updating the
+     * identifier and the location
      */
-    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier) throws SQLException, VOSpaceException {
-        String nodesQuery= "select identifier, type from nodes force index (nod_own_dep_id_idx) where " +
-                " owner = '" + getOwnerFromId(identifier) + "'" +
-                " and depth = " + (getIdDepth(identifier) + 1) +
-                " and identifier like '" + escapeId(identifier) + "/%'";
-
-        String addlQuery = "select a.property, a.value, a.identifier from addl_props as a";
-        String[] propNames = Props.allProps();
-        String queryProp = String.format("select t.identifier, t.type," +
-                StringUtils.join(Arrays.stream(propNames).map(s->"p." +s).
-                        collect(Collectors.toList()), ",") +
-                ", addl.property, addl.value from properties as p, (%s) as t " +
-                " LEFT JOIN (%s, (%s) as t where a.identifier = t.identifier) as addl " +
-                " on addl.identifier = t.identifier " +
-                " where p.identifier = t.identifier", nodesQuery, addlQuery, nodesQuery);
-
-        //format:
-        // type,    node_uri  , busy,       groupread,
-        // btime,   publicread, length,     ctime,
-        // ispublic,mtime,      groupwrite, date
-        ResultSet result = null;
+    public void updateData(String identifier, String newIdentifier, String newLocation, Object metadata) throws SQLException, VOSpaceException {
+        if (metadata instanceof String) {
+            Node node = NodeFactory.getInstance().getNode((String) metadata);
+            String fixedId = fixId(identifier);
+            String fixedNewId = fixId(newIdentifier);
+            filterAdd(fixedNewId);
+            transaction(connection -> {
+                UsageDelta usage = new UsageDelta();
+                countMove(connection, usage, fixedId, fixedNewId, node.getProperties().get(Props.LENGTH_URI));
+                updateProperties(connection, node);
+                update(connection, SQL_MOVE_NODE_LOCATION, fixedNewId, getIdDepth(fixedNewId), newLocation, fixedId);
+                update(connection, SQL_MOVE_PROPERTIES, fixedNewId, fixedId);
+                update(connection, SQL_MOVE_ADDL_PROPS, fixedNewId, fixedId);
+                update(connection, SQL_MOVE_USAGE, fixedNewId, fixedId);
+                addUsage(connection, usage);
+                return null;
+            });
+            filterAdd(fixedNewId);
+            if (filter != null) filter.remove(fixedId);
+            written(fixedId, fixedNewId);
+        }
+    }
 
-        ArrayList<ca.nrc.cadc.vos.Node> nodeArray = new ArrayList<ca.nrc.cadc.vos.Node>();
-        try {
-            result = execute(queryProp);
-            String[] formatArgs = new String[4];
-            while (result.next()) {
-                String childId = result.getString(1);
-                int childTypeId = result.getInt(2);
-                String fixedChildId = fixId(childId);
-                formatArgs[0] = fixedChildId;
-                ca.nrc.cadc.vos.Node nodeJDOM2 = NodeFactory.getInstance().getJDOM2NodeByType(childTypeId, new VOSURI(childId));
-                String value = null;
-
-                List<NodeProperty> properties = new ArrayList<>();
-                for (String propertyName: propNames) {
-                    value = result.getString("p." + propertyName);
-                    //delete below line
-                    if (value != null) {
-                        NodeProperty np = new NodeProperty("ivo://ivoa.net/vospace/core#" + propertyName, value);
-                        properties.add(np);
-                    }
-                }
+    /*
+     * Move a node and all its descendants to a new identifier and location,
+     * setting the specified properties on each of them. The identifier
+     * prefix, depth and location of the whole subtree are rewritten by one
+     * statement per table, in a single transaction.
+     */
+    public void moveTree(String identifier, String newIdentifier, String newLocation, Map<String, String> properties) throws SQLException, VOSpaceException {
+        String fixedId = fixId(identifier);
+        String fixedNewId = fixId(newIdentifier);
+        int start = fixedId.length() + 1;
+        int depth = getIdDepth(fixedNewId) - getIdDepth(fixedId);
+        List<String> moved = filter == null ? null : new ArrayList<String>();
+        transaction(connection -> {
+            UsageDelta usage = new UsageDelta();
+            countMove(connection, usage, fixedId, fixedNewId, null);
+            // The new identifiers are in the filter before they are committed
+            if (moved != null) {
+                moved.clear();
+                moved.addAll(lockSubtree(connection, fixedId));
+                filterAddRebased(moved, fixedId, fixedNewId);
+            }
+            update(connection, SQL_MOVE_TREE, newLocation, start, depth, fixedNewId, start, fixedId, escapeId(fixedId) + "/%");
+            for (String move : SQL_MOVE_TREE_IN) {
+                update(connection, move, fixedNewId, start, fixedId, escapeId(fixedId) + "/%");
+            }
+            setTreeProperties(connection, fixedNewId, properties);
+            addUsage(connection, usage);
+            return null;
+        });
+        filterAddRebased(moved, fixedId, fixedNewId);
+        if (moved != null) {
+            for (String id : moved) filter.remove(id);
+        }
+        written(fixedId, fixedNewId);
+    }
 
-                //additional properties
-                String propertyName = result.getString("addl.property");
-                value = result.getString("addl.value");
-                if (propertyName !=null && value != null) {
-                    properties.add(new NodeProperty("ivo://ivoa.net/vospace/core#"+propertyName, value));
-                }
-                nodeJDOM2.setProperties(properties);
-
-                NodeType childType = MetaStore.getNodeType(childTypeId);
-                if (NodeType.LINK_NODE == MetaStore.getNodeType(childTypeId)) {
-                    String target = getTarget(fixedChildId);
-                    URI targetURI = new URI("null");
-                    if (target != null) {
-                       targetURI = new URI(target);
-                    } else {
-                        logger.warn("LinkFoundFault: no target for [" + childTypeId + "]");
-                    }
-                    ((ca.nrc.cadc.vos.LinkNode) nodeJDOM2).setTarget(targetURI);
+    /*
+     * Copy a node and all its descendants to a new identifier and location,
+     * owned by the specified user, setting the specified properties on each
+     * copy. Each table is copied by one statement, in a single transaction.
+     */
+    public void copyTree(String identifier, String newIdentifier, String newLocation, String owner, Map<String, String> properties) throws SQLException, VOSpaceException {
+        String fixedId = fixId(identifier);
+        String fixedNewId = fixId(newIdentifier);
+        String escaped = escapeId(fixedId) + "/%";
+        int start = fixedId.length() + 1;
+        int depth = getIdDepth(fixedNewId) - getIdDepth(fixedId);
+        // Core properties that are set take the new value, the others are copied
+        ArrayList<String> columns = new ArrayList<String>();
+        ArrayList<String> values = new ArrayList<String>();
+        ArrayList<Object> params = new ArrayList<Object>();
+        params.add(fixedNewId);
+        params.add(start);
+        for (String column : getPropertyColumns()) {
+            if (column.equals("identifier")) continue;
+            columns.add(column);
+            String uri = Props.getURI(column);
+            if (properties.containsKey(uri)) {
+                values.add("?");
+                params.add(properties.get(uri));
+            } else {
+                values.add(column);
+            }
+        }
+        params.add(fixedId);
+        params.add(escaped);
+        String copyProperties = "insert into properties (identifier, " + StringUtils.join(columns, ",") + ") select "
+                + REBASE + ", " + StringUtils.join(values, ",") + " from properties where " + SUBTREE;
+        List<String> copied = filter == null ? null : new ArrayList<String>();
+        transaction(connection -> {
+            UsageDelta usage = new UsageDelta();
+            String[] subtree = lockSubtreeUsage(connection, fixedId);
+            if (subtree != null) usage.add(fixedNewId, owner, subtreeBytes(subtree, null), subtreeNodes(subtree));
+            // The new identifiers are in the filter before they are committed
+            if (copied != null) {
+                copied.clear();
+                copied.addAll(lockSubtree(connection, fixedId));
+                filterAddRebased(copied, fixedId, fixedNewId);
+            }
+            update(connection, SQL_COPY_TREE, fixedNewId, start, depth, owner, newLocation, start, fixedId, escaped);
+            update(connection, copyProperties, params.toArray());
+            update(connection, SQL_COPY_TREE_ADDL_PROPS, fixedNewId, start, fixedId, escaped);
+            update(connection, SQL_COPY_TREE_LINKS, fixedNewId, start, fixedId, escaped);
+            update(connection, SQL_COPY_TREE_CAPABILITIES, fixedNewId, start, fixedId, escaped);
+            update(connection, SQL_COPY_TREE_USAGE, fixedNewId, start, fixedId, escaped);
+            addUsage(connection, usage);
+            for (Map.Entry<String, String> prop : properties.entrySet()) {
+                if (Props.fromURI(prop.getKey()) == null) {
+                    setTreeAddlProperty(connection, fixedNewId, prop.getKey(), prop.getValue());
                 }
+            }
+            return null;
+        });
+        filterAddRebased(copied, fixedId, fixedNewId);
+        written(fixedNewId);
+    }
 
-                // Set the Views and Capabilities; unfortunately requires the VOSpaceManager
-                if ( viewsAndCaps.contains(childType)) {
-                    VOSpaceManager.getInstance().addViewsAndCapabilitiesJDOM2(nodeJDOM2, childType);
+    /*
+     * Set the specified properties on every node of a subtree
+     * @param connection The connection of the enclosing transaction
+     * @param identifier The (fixed) identifier of the root of the subtree
+     * @param properties The property values by property URI
+     */
+    private void setTreeProperties(Connection connection, String identifier, Map<String, String> properties) throws SQLException {
+        ArrayList<String> updates = new ArrayList<String>();
+        ArrayList<Object> values = new ArrayList<Object>();
+        for (Map.Entry<String, String> prop : properties.entrySet()) {
+            String shortProp = Props.fromURI(prop.getKey());
+            if (shortProp == null) {
+                setTreeAddlProperty(connection, identifier, prop.getKey(), prop.getValue());
+            } else if (!shortProp.equals("identifier")) {
+                updates.add(shortProp + " = ?");
+                values.add(prop.getValue());
+            }
+        }
+        if (!updates.isEmpty()) {
+            values.add(identifier);
+            values.add(escapeId(identifier) + "/%");
+            update(connection, "update properties set " + StringUtils.join(updates, ", ") + " where " + SUBTREE, values.toArray());
+        }
+    }
+
+    /*
+     * Set an additional property on every node of a subtree
+     */
+    private void setTreeAddlProperty(Connection connection, String identifier, String property, String value) throws SQLException {
+        String escaped = escapeId(identifier) + "/%";
+        update(connection, SQL_DELETE_TREE_ADDL_PROP, property, identifier, escaped);
+        update(connection, SQL_SET_TREE_ADDL_PROP, property, value, identifier, escaped);
+    }
+
+    /*
+     * Set some properties and, optionally, the status of several nodes,
+     * touching their modification time. Each kind of statement is sent as
+     * one JDBC batch and all of them run in a single transaction, the
+     * nodes in identifier order so that concurrent updates lock them in
+     * the same order.
+     */
+    public void updateAttributes(Map<String, NodeAttributes> updates) throws SQLException, VOSpaceException {
+        TreeMap<String, NodeAttributes> sorted = new TreeMap<String, NodeAttributes>();
+        for (Map.Entry<String, NodeAttributes> update : updates.entrySet()) {
+            sorted.put(fixId(update.getKey()), update.getValue());
+        }
+        // IVOA property updates are grouped by the columns they set
+        LinkedHashMap<String, List<Object[]>> propUpdates = new LinkedHashMap<String, List<Object[]>>();
+        ArrayList<Object[]> addlDeletes = new ArrayList<Object[]>();
+        ArrayList<Object[]> addlInserts = new ArrayList<Object[]>();
+        ArrayList<Object[]> statuses = new ArrayList<Object[]>();
+        ArrayList<Object[]> touches = new ArrayList<Object[]>();
+        HashMap<String, String> lengths = new HashMap<String, String>();
+        for (Map.Entry<String, NodeAttributes> update : sorted.entrySet()) {
+            String identifier = update.getKey();
+            NodeAttributes attributes = update.getValue();
+            if (attributes.getProperties().containsKey(Props.LENGTH_URI)) {
+                lengths.put(identifier, attributes.getProperties().get(Props.LENGTH_URI));
+            }
+            ArrayList<String> columns = new ArrayList<String>();
+            ArrayList<Object> values = new ArrayList<Object>();
+            for (Map.Entry<String, String> prop : attributes.getProperties().entrySet()) {
+                String shortProp = Props.fromURI(prop.getKey());
+                if (shortProp == null) {
+                    addlDeletes.add(new Object[]{identifier, prop.getKey()});
+                    if (prop.getValue() != null) addlInserts.add(new Object[]{identifier, prop.getKey(), prop.getValue()});
+                } else if (!shortProp.equals("identifier")) {
+                    columns.add(shortProp + " = ?");
+                    values.add(prop.getValue());
                 }
+            }
+            if (!columns.isEmpty()) {
+                values.add(identifier);
+                String query = "update properties set " + StringUtils.join(columns, ", ") + " where idhash = " + ID_HASH;
+                propUpdates.computeIfAbsent(query, k -> new ArrayList<Object[]>()).add(values.toArray());
+            }
+            if (attributes.getStatus() != null) {
+                statuses.add(new Object[]{BooleanUtils.toInteger(attributes.getStatus()), identifier});
+            }
+            touches.add(new Object[]{identifier});
+        }
+        transaction(connection -> {
+            UsageDelta usage = new UsageDelta();
+            countResize(connection, usage, lengths);
+            for (Map.Entry<String, List<Object[]>> propUpdate : propUpdates.entrySet()) {
+                batch(connection, propUpdate.getKey(), propUpdate.getValue());
+            }
+            batch(connection, SQL_DELETE_ADDL_PROP, addlDeletes);
+            batch(connection, SQL_INSERT_ADDL_PROP, addlInserts);
+            batch(connection, SQL_SET_STATUS, statuses);
+            batch(connection, SQL_TOUCH_NODE, touches);
+            addUsage(connection, usage);
+            return null;
+        });
+        written(sorted.keySet().toArray(new String[0]));
+    }
+
+    /*
+     * Get the identifiers of a subtree, locking them and the gaps between
+     * them, so that no node can be stored under it until the end of the
+     * transaction
+     * @param connection The connection of the enclosing transaction
+     */
+    private List<String> lockSubtree(Connection connection, String identifier) throws SQLException {
+        ArrayList<String> identifiers = new ArrayList<String>();
+        for (String[] row : getAsRows(connection, SQL_SUBTREE + " for update", identifier, escapeId(identifier) + "/%")) {
+            identifiers.add(row[0]);
+        }
+        return identifiers;
+    }
+
+    /*
+     * Record the identifiers of a moved or copied subtree in the filter
+     */
+    private void filterAddRebased(List<String> identifiers, String identifier, String newIdentifier) {
+        if (identifiers == null) return;
+        for (String id : identifiers) filterAdd(newIdentifier + id.substring(identifier.length()));
+    }
 
-                nodeArray.add(nodeJDOM2);
-            }
-        } catch (URISyntaxException e) {
-            log_error(logger, "getChildrenNodesJDOM2 identifier [" + identifier + "]",  e);
-            throw new VOSpaceException(VOSpaceException.VOFault.InternalFault,
-                    "Error processing container [" + identifier + "]");
-        } catch (RuntimeException e) {
-            log_error(logger, "getChildrenNodesJDOM2 identifier [" + identifier + "]",  e);
-            throw new VOSpaceException(VOSpaceException.VOFault.InternalFault,
-                    "Error processing container [" + identifier + "]");
-        } catch (Exception e) {
-            log_error(logger, "getChildrenNodesJDOM2 identifier [" + identifier + "]",  e);
-            throw new VOSpaceException(VOSpaceException.VOFault.InternalFault,
-                    "Error processing container [" + identifier + "]");
-        } finally {
-            closeResult(result);
+    /*
+     * Get the bytes a node of the specified type counts for itself: the
+     * length of a data (or link) node, and nothing for a container
+     */
+    private static long ownBytes(int type, String length) {
+        if (type == NodeType.CONTAINER_NODE.ordinal() || length == null) return 0;
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return 0;
         }
+    }
 
-        return nodeArray.toArray(new ca.nrc.cadc.vos.Node[0]);
+    /*
+     * Lock a node and get its owner, type and length and the bytes and
+     * nodes under it, or null if there is no such node
+     * @param connection The connection of the enclosing transaction
+     */
+    private String[] lockSubtreeUsage(Connection connection, String identifier) throws SQLException {
+        List<String[]> rows = getAsRows(connection, SQL_LOCK_SUBTREE_USAGE, identifier);
+        return rows.isEmpty() ? null : rows.get(0);
     }
 
     /*
-     * Get all the children of the specified container node
+     * Get the bytes of a subtree locked by lockSubtreeUsage, with the root
+     * node taking the specified length if it is not null
      */
-    public String[] getAllChildren(String identifier) throws SQLException, VOSpaceException {
-        ArrayList<String> children = new ArrayList<String>();
-        // Note: Don't filter by depth in the where clause as 
-        // we want all nodes and not only the immediate ones.
-        String query = "select identifier from nodes where " +
-                " owner = '" + getOwnerFromId(identifier) + "'" +
-                " and identifier like '" + escapeId(identifier) + "/%'";
-        for (String child : getAsStringArray(query)) {
-            if (!child.equals(fixId(identifier))) {
-                children.add(child);
+    private static long subtreeBytes(String[] subtree, String length) {
+        int type = Integer.parseInt(subtree[1]);
+        return ownBytes(type, length == null ? subtree[2] : length) + (subtree[3] == null ? 0 : Long.parseLong(subtree[3]));
+    }
+
+    /*
+     * Get the nodes of a subtree locked by lockSubtreeUsage, its root included
+     */
+    private static long subtreeNodes(String[] subtree) {
+        return 1 + (subtree[4] == null ? 0 : Long.parseLong(subtree[4]));
+    }
+
+    /*
+     * Count the length changes of the specified nodes, locking them
+     * @param connection The connection of the enclosing transaction
+     * @param usage The usage change of the write
+     * @param lengths The new lengths by (fixed) identifier; null ones are not changed
+     */
+    private void countResize(Connection connection, UsageDelta usage, Map<String, String> lengths) throws SQLException {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (Map.Entry<String, String> length : lengths.entrySet()) {
+            if (length.getValue() != null) ids.add(length.getKey());
+        }
+        for (int i = 0; i < ids.size(); i += deleteChunk) {
+            Object[] chunk = ids.subList(i, Math.min(i + deleteChunk, ids.size())).toArray();
+            String in = "(" + StringUtils.repeat(ID_HASH, ",", chunk.length) + ")";
+            for (String[] row : getAsRows(connection, SQL_LOCK_USAGE_IN + in + " for update", chunk)) {
+                int type = Integer.parseInt(row[2]);
+                usage.add(row[0], row[1], ownBytes(type, lengths.get(fixId(row[0]))) - ownBytes(type, row[3]), 0);
             }
         }
-        return children.toArray(new String[0]);
     }
 
     /*
-     * Remove the metadata for the specified identifier
-     * @param identifier The (root) identifier of the node(s) to delete
-     * @param container Does the identifier refer to a container?
-     * Returns a list of links which pointed to the deleted identifier and were
-     * also removed in the process of removing the identifier.
+     * Count the move of a subtree, locking its root
+     * @param connection The connection of the enclosing transaction
+     * @param usage The usage change of the write
+     * @param identifier The (fixed) identifier of the root of the subtree
+     * @param newIdentifier Its new (fixed) identifier
+     * @param length The new length of the root, or null if it is not changed
      */
-    public String[] removeData(String identifier, boolean container) throws SQLException, VOSpaceException {
-        String query = "";
-        ArrayList<String> removedLinks = new ArrayList<String>();
-        if (container) {
-            String escaped = escapeId(identifier);
-            // Note: Don't filter by depth in the where clause as 
-            // we want all nodes and not only the immediate ones.
-            query = "delete from nodes where " +
-                    " owner = '" + getOwnerFromId(identifier) + "'" +
-                    " and identifier like '" + escaped + "/%'";
-            update(query);
-            query = "delete from properties where identifier like '" + escaped + "/%'";
-            update(query);
-            query = "delete from addl_props where identifier like '" + escaped + "/%'";
-            update(query);
-            query = "delete from links where identifier like '" + escaped + "/%'";
-            update(query);
-            query = "delete from capabilities where identifier like '" + escaped + "/%'";
-            update(query);
-            // Find all the links to the container contents
-            query = "select identifier from links where target like '" + escaped + "/%'";
-            Collections.addAll(removedLinks, getAsStringArray(query));
-        }
-        identifier = fixId(identifier);
-        query = "delete from nodes where identifier = '" + identifier + "'";
-        update(query);
-        query = "delete from properties where identifier = '" + identifier + "'";
-        update(query);
-        query = "delete from addl_props where identifier = '" + identifier + "'";
-        update(query);
-        query = "delete from links where identifier = '" + identifier + "'";
-        update(query);
-        query = "delete from capabilities where identifier = '" + identifier + "'";
-        update(query);
-        // Find all the links to the identifier
-        query = "select identifier from links where target = '" + identifier + "'";
-        Collections.addAll(removedLinks, getAsStringArray(query));
-        // Recursively remove all the links to the nodes we removed.
-        for (String link: (ArrayList<String>)removedLinks.clone()) {
-            // System.out.println("Removing " + link);
-            Collections.addAll(removedLinks, removeData(link, false));
-        }
-        if (identifier.endsWith("_cap.conf")) {
-            String parent = identifier.substring(0, identifier.lastIndexOf("/"));
-            String shortCap = identifier.substring(identifier.lastIndexOf("/") + 1, identifier.lastIndexOf("_cap.conf"));
-            query = "update capabilities set active = 0 where identifier = '" + parent + "' and capability like '%" + escapeStr(shortCap) + "'";
-            update(query);
-        }
-        return removedLinks.toArray(new String[removedLinks.size()]);
+    private void countMove(Connection connection, UsageDelta usage, String identifier, String newIdentifier, String length) throws SQLException {
+        String[] subtree = lockSubtreeUsage(connection, identifier);
+        if (subtree == null) return;
+        usage.add(identifier, subtree[0], -subtreeBytes(subtree, null), -subtreeNodes(subtree));
+        usage.add(newIdentifier, subtree[0], subtreeBytes(subtree, length), subtreeNodes(subtree));
     }
 
     /*
-     * Update the metadata for the specified identifier
+     * Write the usage change of a write
+     * @param connection The connection of the enclosing transaction
      */
-    public void updateData(String identifier, Object metadata) throws SQLException, VOSpaceException {
-        if (metadata instanceof String) {
-            String node = updateProperties((String) metadata);
-            // Force an update to lastModificationTime
-            String query = "update nodes set lastModificationDate=cast(now() as datetime) where identifier = '" + fixId(identifier) + "'";
-            update(query);
-            /* String encode = node.replace("\"", "'");
-            String query = "update nodes set node = \"" + encode + "\" where identifier = '" + fixId(identifier) + "'";
-            update(query); */
-        }
+    private void addUsage(Connection connection, UsageDelta usage) throws SQLException {
+        batch(connection, SQL_ADD_CONTAINER_USAGE, usage.getContainerRows());
+        batch(connection, SQL_ADD_OWNER_USAGE, usage.getOwnerRows());
     }
 
     /*
-     * Update the metadata for the specified identifier including updating the
-     * identifier
+     * Get the bytes and the number of nodes under the specified container.
+     * The usage of the root of the space is the sum of that of all owners.
      */
-    public void updateData(String identifier, String newIdentifier, Object metadata) throws SQLException, VOSpaceException {
-        if (metadata instanceof String) {
-            String node = updateProperties((String) metadata);
-            String fixedId = fixId(identifier);
-            String fixedNewId = fixId(newIdentifier);
-            String query = "update nodes set lastModificationDate=cast(now() as datetime), identifier = '" + fixedNewId
-                        + "', depth = " + getIdDepth(fixedNewId) + " where identifier = '" + fixedId + "'";
-            update(query);
-            /* String encode = node.replace("\"", "'");
-            String query = "update nodes set identifier = '" + newIdentifier + "', node = \"" + encode + "\" where identifier = '" + fixId(identifier) + "'";
-            update(query); */
-            query = "update properties set identifier = '" + fixedNewId + "' where identifier = '" + fixedId + "'";
-            update(query);
-            query = "update addl_props set identifier = '" + fixedNewId + "' where identifier = '" + fixedId + "'";
-            update(query);
-        }
+    public Usage getUsage(String identifier) throws SQLException {
+        if (NodeAccess.lineage(identifier).size() == 1) return getAsUsage(null, SQL_GET_TOTAL_USAGE);
+        return getAsUsage(reader(identifier), SQL_GET_USAGE, fixId(identifier));
     }
 
     /*
-     * Update the metadata for the specified identifier including updating the
-     * identifier and the location
+     * Get the bytes and the number of nodes owned by the specified user
      */
-    public void updateData(String identifier, String newIdentifier, String newLocation, Object metadata) throws SQLException, VOSpaceException {
-        if (metadata instanceof String) {
-            String node = updateProperties((String) metadata);
-            String fixedId = fixId(identifier);
-            String fixedNewId = fixId(newIdentifier);
-            String query = "update nodes set lastModificationDate=cast(now() as datetime), identifier = '" + fixedNewId
-                        + "', depth = " + getIdDepth(fixedNewId) + ", location = '" + newLocation + "' where identifier = '" + fixedId + "'";
-            update(query);
-            /* String encode = node.replace("\"", "'");
-            String query = "update nodes set identifier = '" + fixId(newIdentifier) + "', location = '" + newLocation + "', node = \"" + encode + "\" where identifier = '" + fixId(identifier) + "'";
-            update(query); */
-            query = "update properties set identifier = '" + fixedNewId + "' where identifier = '" + fixedId + "'";
-            update(query);
-            query = "update addl_props set identifier = '" + fixedNewId + "' where identifier = '" + fixedId + "'";
-            update(query);
-        }
+    public Usage getOwnerUsage(String owner) throws SQLException {
+        return getAsUsage(null, SQL_GET_OWNER_USAGE, owner);
     }
 
     /*
-     * Get a token
+     * Get the token of the first page of a listing of the specified identifiers
      */
     public String getToken(String[] identifiers) throws SQLException {
-        String whereQuery = null, query = null;
-        for (int i = 0; i < identifiers.length; i++) {
-            if (i == 0) whereQuery += "where";
-            if (identifiers[i].contains("*")) {
-                whereQuery += " identifier like '" + escapeId(identifiers[i]).replace("*", "%") + "'";
-            } else {
-                whereQuery += " identifier = '" + fixId(identifiers[i]) + "'";
-            }
-            if (i != identifiers.length - 1) query += " or ";
-        }
-        String token = null;
-        query = "select token from listings where whereQuery = '" + whereQuery.replace("'", "\\'") + "'";
-        token = getAsString(fixId(query));
-        return token;
+        return ListingToken.encode("", identifiers);
     }
 
     /*
      * Get the physical location of the specified identifier
      */
     public String getLocation(String identifier) throws SQLException {
-        String location = null;
-        String query = "select location from nodes where identifier = '" + fixId(identifier) + "'";
-        location = getAsString(query);
-        return location;
+        return getAsString(reader(identifier), SQL_GET_LOCATION, fixId(identifier));
     }
 
     /**
@@ -935,13 +1472,8 @@ public class MySQLMetaStore implements MetaStore {
      * Set the status of the object with the specified identifier
      */
     public void setStatus(String identifier, boolean status) throws SQLException {
-        String query = null;
-        if (status) {
-            query = "update nodes set status = 1 where identifier = '" + fixId(identifier) + "'";
-        } else {
-            query = "update nodes set status = 0 where identifier = '" + fixId(identifier) + "'";
-        }
-        update(query);
+        update(SQL_SET_STATUS, BooleanUtils.toInteger(status), fixId(identifier));
+        written(fixId(identifier));
     }
 
 
@@ -949,143 +1481,165 @@ public class MySQLMetaStore implements MetaStore {
      * Store the details of the specified trafnsfer
      */
     public void storeTransfer(String identifier, String endpoint) throws SQLException {
-        String query = "insert into transfers (jobid, rendpoint, created) " +
-                "values ('" + fixId(identifier) + "', " +
-                "'" + new StringBuilder(endpoint).reverse() + "', " +
-                " cast(now() as datetime))";
-        update(query);
+        storeTransfer(new TransferDetails(identifier, endpoint, null, null, null, null));
+    }
+
+    /*
+     * Store the specified transfer with the details needed to serve it
+     */
+    public void storeTransfer(TransferDetails transfer) throws SQLException {
+        String jobId = fixId(transfer.getJobId());
+        String target = transfer.getTarget() == null ? null : fixId(transfer.getTarget());
+        // The reversed endpoint is still written for older service versions
+        update(SQL_STORE_TRANSFER, jobId, new StringBuilder(transfer.getEndpoint()).reverse().toString(), transfer.getToken(),
+                target, transfer.getLocation(), transfer.getView(), transfer.getOwner());
+        transfers.add(new TransferDetails(jobId, transfer.getEndpoint(), target, transfer.getLocation(), transfer.getView(),
+                transfer.getOwner(), transfer.getCreated(), false));
+    }
+
+    /*
+     * Get the transfer endpoint with the specified URL (or token), from the
+     * registry or else from the db
+     * @return the endpoint, or null if there is no such transfer
+     */
+    private TransferDetails getEndpoint(String endpoint) throws SQLException {
+        String token = TransferRegistry.token(endpoint);
+        TransferDetails held = transfers.get(token);
+        if (held != null) return held;
+        ResultSet result = null;
+        try {
+            result = execute(SQL_GET_ENDPOINT, token);
+            if (!result.next()) return null;
+            held = new TransferDetails(result.getString(1), result.getString(4), result.getString(5), result.getString(6),
+                    result.getString(7), result.getString(8), result.getTimestamp(2).getTime(), result.getTimestamp(3) != null);
+        } finally {
+            closeResult(result);
+        }
+        transfers.add(held);
+        return held;
     }
 
     /*
      * Retrieve the job associated with the specified endpoint
      */
     public String getTransfer(String endpoint) throws SQLException {
-        //String query = "select details from results j, transfers t where t.jobid = j.identifier and t.endpoint like '%" + escapeStr(endpoint) + "'";
-        String query = "select details from results j, transfers t where" +
-                " t.jobid = j.identifier " +
-                "and t.rendpoint " +
-                "like '" + new StringBuilder(escapeStr(endpoint)).reverse() + "%'";
-        String job = getAsString(query);
-        return job;
+        TransferDetails held = getEndpoint(endpoint);
+        return held == null ? null : getAsString(SQL_GET_RESULT, held.getJobId());
+    }
+
+    /*
+     * Get the details of the transfer with the specified endpoint; those of
+     * transfers stored without them are read from the transfer document
+     */
+    public TransferDetails getTransferDetails(String endpoint) throws SQLException, VOSpaceException {
+        TransferDetails held = getEndpoint(endpoint);
+        if (held != null && held.getTarget() == null) return MetaStore.super.getTransferDetails(endpoint);
+        return held;
     }
 
     /**
-     * Check whether the specified transfer has completed
+     * Check whether the specified transfer has completed. A transfer not
+     * known to have completed here may have been completed by another
+     * service instance, so that is checked in the db.
      */
     public boolean isCompleted(String jobid) throws SQLException {
-        boolean completed = false;
-        String query = "select completed from transfers where jobid = '" + jobid + "'";
-        if (getAsDate(query) != null) completed = true;
-        return completed;
+        TransferDetails held = transfers.getByJob(jobid);
+        if (held != null && held.isCompleted()) return true;
+        return getAsDate(SQL_IS_COMPLETED, jobid) != null;
     }
 
     /**
      * Check whether the specified transfer has completed
      */
     public boolean isCompletedByEndpoint(String endpoint) throws SQLException {
-        boolean completed = false;
-        //String query = "select completed from transfers where endpoint like '%" + escapeStr(endpoint) + "'";
-        String query = "select completed from transfers where rendpoint like '" +
-                new StringBuilder(escapeStr(endpoint)).reverse() + "%'";
-        if (getAsDate(query) != null) completed = true;
-        return completed;
+        TransferDetails held = getEndpoint(endpoint);
+        if (held == null) return false;
+        if (!held.isCompleted() && getAsDate(SQL_IS_COMPLETED_BY_ENDPOINT, held.getToken()) != null) held.setCompleted();
+        return held.isCompleted();
+    }
+
+    /*
+     * Drop the expired endpoints from the registry and purge the transfers
+     * that are done with: those completed longer ago than endpoints live,
+     * and those created longer ago than transfers are kept for.
+     * The rows go in chunks so that no delete holds its locks for long.
+     */
+    private void sweepTransfers() {
+        try {
+            transfers.expire();
+            if (transferRetention <= 0) return;
+            int purged = 0;
+            int count;
+            do {
+                count = update(SQL_PURGE_TRANSFERS, transferTtl, transferRetention, deleteChunk);
+                purged += count;
+            } while (count == deleteChunk);
+            if (purged > 0) logger.info("Purged " + purged + " transfers older than " + transferRetention + " hours");
+        } catch (Exception e) {
+            log_error(logger, e);
+        }
     }
 
     /*
      * Store the original view of the specific object
      */
     public void setView(String identifier, String view) throws SQLException {
-        String query = "update nodes set view = '" + view + "' where identifier = '" + fixId(identifier) + "'";
-        update(query);
+        update(SQL_SET_VIEW, view, fixId(identifier));
+        written(fixId(identifier));
     }
 
     /*
      * Get the original view of the object with the specified identifier
      */
     public String getView(String identifier) throws SQLException {
-        String view = null;
-        String query = "select view from nodes where identifier = '" + fixId(identifier) + "'";
-        view = getAsString(query);
-        return view;
+        return getAsString(reader(identifier), SQL_GET_VIEW, fixId(identifier));
     }
 
     /*
      * Resolve a location from the specified endpoint
      */
     public String resolveLocation(String endpoint) throws SQLException {
-        String location = null;
-//      String query = "select n.location from nodes n, transfers t where n.identifier = t.identifier and locate('" + endpoint + "', t.endpoint) > 0 and timestampdiff(minute, t.created, now()) < 60 and completed is null";
         // ISS - NOTE: I didn't change the endpoint to rev_endpoint in this SQL
         // as it looks like this functionality is not used by anyone.
-        String query = "select location from transfers where locate('" + endpoint + "', endpoint) > 0 and timestampdiff(minute, created, now()) < 60 and completed is null";
-        location = getAsString(query);
-        return location;
+        return getAsString(SQL_RESOLVE_LOCATION, endpoint);
     }
 
     /*
      * Return the creation date of a transfer
      */
     public long getCreated(String endpoint) throws SQLException {
-        long created = 0;
-        String query = "select created from transfers where rendpoint " +
-                "like '" + new StringBuilder(escapeStr(endpoint)).reverse() + "%'";
-        created = getAsTime(query);
-        return created;
+        TransferDetails held = getEndpoint(endpoint);
+        return held == null ? 0 : held.getCreated();
     }
 
     /*
      * Return the identifier associated with the specified location
      */
     public String resolveIdentifier(String location) throws SQLException {
-        String identifier = null;
-        String query = "select identifier from nodes where location like '" + escapeStr(location) + "'";
-        identifier = fixId(getAsString(query));
-        return identifier;
+        return fixId(getAsString(SQL_RESOLVE_IDENTIFIER, escapeStr(location)));
     }
 
     /*
      * Mark the specified transfer as complete
      */
     public void completeTransfer(String endpoint) throws SQLException {
-        String query = "update transfers set completed = cast(now() as datetime) " +
-                "where rendpoint like '" +
-                new StringBuilder(escapeStr(endpoint)).reverse() + "%'";
-        update(query);
+        String token = TransferRegistry.token(endpoint);
+        update(SQL_COMPLETE_TRANSFER, token);
+        TransferDetails held = transfers.get(token);
+        if (held != null) held.setCompleted();
     }
 
     /*
      * Mark the specified transfer as complete
      */
     public void completeTransfer(String endpoint, boolean updateStatus) throws SQLException {
-        /*      Statement statement = getConnection().createStatement();
-        completeTransfer(endpoint);
-        NodeType node = null;
-        String identifier = resolveTransfer(endpoint);
-        String query = "select node from nodes where identifier = '" + identifier + "'";
-        ResultSet result = execute(query);
-        if (result.next()) {
-            try {
-                node = NodeType.Factory.parse(result.getString(1));
-                if (node instanceof DataNodeType) {
-                    ((DataNodeType) node).setBusy(updateStatus);
-                    updateData(identifier, node.xmlText(options));
-                }
-                setStatus(identifier, updateStatus);
-            } catch (XmlException e) {
-                throw new SQLException(e.getMessage());
-            }
-            }*/
     }
 
     /*
      * Return the identifier associated with the transfer
      */
     public String resolveTransfer(String endpoint) throws SQLException {
-        String identifier = null;
-        String query = "select identifier from transfers where rendpoint " +
-                "like '" + new StringBuilder(endpoint).reverse() + "%'";
-        identifier = getAsString(query);
-        return identifier;
+        return getAsString(SQL_RESOLVE_TRANSFER, TransferRegistry.token(endpoint));
     }
 
 
@@ -1093,46 +1647,35 @@ public class MySQLMetaStore implements MetaStore {
      * Update the specified property
      */
     public void updateProperty(String property, int type) throws SQLException {
-        String query = "update metaproperties set type = " + type + " where identifier = '" + property + "'";
-        update(query);
+        update(SQL_UPDATE_PROPERTY_TYPE, type, property);
     }
 
     /*
      * Update the specified property
      */
     public void updateProperty(String property, int type, boolean readOnly) throws SQLException {
-        String query = "update metaproperties set type = " + type + ", readonly = "
-                + BooleanUtils.toInteger(readOnly) + " where identifier = '" + property + "'";
-        update(query);
+        update(SQL_UPDATE_PROPERTY, type, BooleanUtils.toInteger(readOnly), property);
     }
 
     /*
      * Get the properties of the specified type
      */
     public String[] getProperties(int type) throws SQLException {
-        String query = "select identifier from metaproperties where type & "  + type + " = " + type;
-        String[] list = getAsStringArray(query);
-        return list;
+        return getAsStringArray(SQL_GET_PROPERTIES, type, type);
     }
 
     /*
      * Get the property type of the specified node
      */
     public String getPropertyType(String identifier) throws SQLException {
-        String type = null;
-        String query = "select type from metaproperties where identifier = '" + identifier + "'";
-        type = getAsString(query);
-        return type;
+        return getAsString(SQL_GET_PROPERTY_TYPE, identifier);
     }
 
     /*
      * Check whether the property is read/only
      */
     public boolean isReadOnly(String property) throws SQLException {
-        boolean readOnly = false;
-        String query = "select readonly from metaproperties where identifier = '" + property + "'";
-        readOnly = getAsBoolean(query);
-        return readOnly;
+        return getAsBoolean(SQL_IS_READONLY, property);
     }
 
     /*
@@ -1140,16 +1683,13 @@ public class MySQLMetaStore implements MetaStore {
      * Updated to get the property value from the column named by the property name
      */
     public String getPropertyValue(String identifier, String property) throws SQLException {
-        String value = null;
         String columnName = Props.fromURI(property);
         if (columnName != null) {
-            String query = "select " + columnName + " from properties where identifier = '" + fixId(identifier) + "'";
-            value = getAsString(query);
+            // Column names come from the IVOA property list, never from the request
+            return getAsString(reader(identifier), "select " + columnName + " from properties where idhash = " + ID_HASH, fixId(identifier));
         } else {
-            String query = "select value from addl_props where identifier = '" + fixId(identifier) + "'" + " and property = '" + property + "'";
-            value = getAsString(query);
+            return getAsString(reader(identifier), SQL_GET_ADDL_PROP, fixId(identifier), property);
         }
-        return value;
     }
 
     /*
@@ -1166,24 +1706,27 @@ public class MySQLMetaStore implements MetaStore {
             else addl_props.add(s);
         }
         if (!columns.isEmpty()) {
-            String query = "select " + StringUtils.join(columns, ",") + " from properties where identifier = '" + fixId(identifier) + "'";
+            String query = "select " + StringUtils.join(columns, ",") + " from properties where idhash = " + ID_HASH;
             ResultSet result = null;
             try {
-                result = execute(query);
-                result.next();
-                for (int i = 0; i < columns.size(); i++) valMap.put(Props.getURI(columns.get(i)), result.getString(i+1));
+                result = execute(reader(identifier), query, fixId(identifier));
+                if (result.next()) {
+                    for (int i = 0; i < columns.size(); i++) valMap.put(Props.getURI(columns.get(i)), result.getString(i+1));
+                }
             } finally {
                 closeResult(result);
             }
         }
         if (!addl_props.isEmpty()) {
-            String query = "select value from addl_props where identifier = '" + fixId(identifier)
-                        + "' and property in ('" + StringUtils.join(addl_props, "','") + "')";
+            String query = "select property, value from addl_props where idhash = " + ID_HASH + " and property in ("
+                        + StringUtils.repeat("?", ",", addl_props.size()) + ")";
+            ArrayList<Object> params = new ArrayList<Object>();
+            params.add(fixId(identifier));
+            params.addAll(addl_props);
             ResultSet result = null;
             try {
-                result = execute(query);
-                result.next();
-                for (int i = 0; i < addl_props.size(); i++) valMap.put(addl_props.get(i), result.getString(i+1));
+                result = execute(reader(identifier), query, params.toArray());
+                while (result.next()) valMap.put(result.getString(1), result.getString(2));
             } finally {
                 closeResult(result);
             }
@@ -1193,14 +1736,32 @@ public class MySQLMetaStore implements MetaStore {
         return valList.toArray(new String[0]);
     }
 
+    /*
+     * Get the owner, type and sharing properties of the nearest stored node
+     * at or above the specified identifier, in a single query over all its
+     * ancestors
+     */
+    public NodeAccess getAccess(String identifier) throws SQLException {
+        List<String> lineage = NodeAccess.lineage(identifier);
+        HashMap<String, String> nodes = new HashMap<String, String>();
+        for (String node : lineage) nodes.put(fixId(node), node);
+        String query = SQL_GET_ACCESS + "(" + StringUtils.repeat(ID_HASH, ",", nodes.size()) + ") order by n.depth desc limit 1";
+        ResultSet result = null;
+        try {
+            result = execute(reader(identifier), query, nodes.keySet().toArray());
+            if (!result.next()) return null;
+            return new NodeAccess(nodes.get(result.getString(1)), result.getString(2), result.getInt(3),
+                    result.getString(4), result.getString(5), result.getString(6), result.getString(7));
+        } finally {
+            closeResult(result);
+        }
+    }
+
     /*
      * Check the status of a capability (active or not)
      */
     public int isActive(String identifier, String capability) throws SQLException {
-        int isActive = 0;
-        String query = "select active from capabilities where identifier = '" + fixId(identifier) + "' and capability = '" + capability + "'";
-        isActive = getAsInt(query);
-        return isActive;
+        return getAsInt(reader(identifier), SQL_IS_ACTIVE, fixId(identifier), capability);
     }
 
 
@@ -1208,8 +1769,8 @@ public class MySQLMetaStore implements MetaStore {
      * Set the status of a capability (active or not)
      */
     public void setActive(String identifier, String capability, int port) throws SQLException {
-        String query = "update capabilities set active = " + port + " where identifier = '" + fixId(identifier) + "' and capability = '" + capability + "'";
-        update(query);
+        update(SQL_SET_ACTIVE, port, fixId(identifier), capability);
+        written(fixId(identifier));
     }
 
 
@@ -1217,8 +1778,8 @@ public class MySQLMetaStore implements MetaStore {
      * Register the capabilities
      */
     public void registerCapability(String identifier, String capability) throws SQLException {
-        String query = "insert capabilities values('" + fixId(identifier) + "', '" + capability + "', 0)";
-        update(query);
+        update(SQL_REGISTER_CAPABILITY, fixId(identifier), capability);
+        written(fixId(identifier));
     }
 
 
@@ -1226,10 +1787,7 @@ public class MySQLMetaStore implements MetaStore {
      * Check whether the capability is registered
      */
     public boolean isKnownCapability(String capability) throws SQLException {
-        boolean known = false;
-        String query = "select identifier from capabilities where capability = '" + capability + "'";
-        known = extantEntry(query);
-        return known;
+        return extantEntry(SQL_IS_KNOWN_CAPABILITY, capability);
     }
 
 
@@ -1237,23 +1795,26 @@ public class MySQLMetaStore implements MetaStore {
      * Get next available capability port
      */
     public int getCapPort() throws SQLException {
-        int port = -1;
-        String query = "select max(active) from capabilities";
-        port = getAsInt(query);
-        //      if (port > 20000) port = port + 1;
-        //      if (port == 0) port = 20001;
-        return port;
+        return getAsInt(SQL_GET_CAP_PORT);
     }
 
 
     /*
      * Execute a query on the store
      */
-    private String getAsString(String query) throws SQLException {
+    private String getAsString(String query, Object... params) throws SQLException {
+        return getAsString(null, query, params);
+    }
+
+
+    /*
+     * Execute a query on the store, or on one of its read replicas
+     */
+    private String getAsString(ReplicaSet.Replica source, String query, Object... params) throws SQLException {
         String ans = null;
         ResultSet result = null;
         try {
-            result = execute(query);
+            result = execute(source, query, params);
             if (result.next()) ans = result.getString(1);
         } finally {
             closeResult(result);
@@ -1262,14 +1823,38 @@ public class MySQLMetaStore implements MetaStore {
     }
 
 
+    /*
+     * Execute a query on the store, or on one of its read replicas
+     * @return the bytes and nodes of the first row, or none if there is none
+     */
+    private Usage getAsUsage(ReplicaSet.Replica source, String query, Object... params) throws SQLException {
+        ResultSet result = null;
+        try {
+            result = execute(source, query, params);
+            if (result.next()) return new Usage(result.getLong(1), result.getLong(2));
+            return new Usage(0, 0);
+        } finally {
+            closeResult(result);
+        }
+    }
+
+
     /*
      * Execute a query on the store
      */
-    private int getAsInt(String query) throws SQLException {
+    private int getAsInt(String query, Object... params) throws SQLException {
+        return getAsInt(null, query, params);
+    }
+
+
+    /*
+     * Execute a query on the store, or on one of its read replicas
+     */
+    private int getAsInt(ReplicaSet.Replica source, String query, Object... params) throws SQLException {
         int ans = -1;
         ResultSet result = null;
         try {
-            result = execute(query);
+            result = execute(source, query, params);
             if (result.next()) ans = result.getInt(1);
         } finally {
             closeResult(result);
@@ -1281,11 +1866,11 @@ public class MySQLMetaStore implements MetaStore {
     /*
      * Execute a query on the store
      */
-    private boolean getAsBoolean(String query) throws SQLException {
+    private boolean getAsBoolean(String query, Object... params) throws SQLException {
         boolean ans = false;
         ResultSet result = null;
         try {
-            result = execute(query);
+            result = execute(query, params);
             if (result.next()) ans = result.getBoolean(1);
         } finally {
             closeResult(result);
@@ -1297,11 +1882,11 @@ public class MySQLMetaStore implements MetaStore {
     /*
      * Execute a query on the store
      */
-    private Date getAsDate(String query) throws SQLException {
+    private Date getAsDate(String query, Object... params) throws SQLException {
         Date ans = null;
         ResultSet result = null;
         try {
-            result = execute(query);
+            result = execute(query, params);
             if (result.next()) ans = result.getDate(1);
         } finally {
             closeResult(result);
@@ -1313,11 +1898,19 @@ public class MySQLMetaStore implements MetaStore {
     /*
      * Execute a query on the store
      */
-    private long getAsTime(String query) throws SQLException {
+    private long getAsTime(String query, Object... params) throws SQLException {
+        return getAsTime(null, query, params);
+    }
+
+
+    /*
+     * Execute a query on the store, or on one of its read replicas
+     */
+    private long getAsTime(ReplicaSet.Replica source, String query, Object... params) throws SQLException {
         long ans = 0;
         ResultSet result = null;
         try {
-            result = execute(query);
+            result = execute(source, query, params);
             if (result.next()) ans = result.getTimestamp(1).getTime();
         } finally {
             closeResult(result);
@@ -1329,12 +1922,20 @@ public class MySQLMetaStore implements MetaStore {
     /*
      * Execute a query on the store
      */
-    private String[] getAsStringArray(String query) throws SQLException {
+    private String[] getAsStringArray(String query, Object... params) throws SQLException {
+        return getAsStringArray(null, query, params);
+    }
+
+
+    /*
+     * Execute a query on the store, or on one of its read replicas
+     */
+    private String[] getAsStringArray(ReplicaSet.Replica source, String query, Object... params) throws SQLException {
         String[] ans = null;
         ResultSet result = null;
         try {
             ArrayList<String> list = new ArrayList<String>();
-            result = execute(query);
+            result = execute(source, query, params);
             while (result.next()) {
                 list.add(result.getString(1));
             }
@@ -1349,11 +1950,19 @@ public class MySQLMetaStore implements MetaStore {
     /*
      * Execute a query on the store
      */
-    private boolean extantEntry(String query) throws SQLException {
+    private boolean extantEntry(String query, Object... params) throws SQLException {
+        return extantEntry(null, query, params);
+    }
+
+
+    /*
+     * Execute a query on the store, or on one of its read replicas
+     */
+    private boolean extantEntry(ReplicaSet.Replica source, String query, Object... params) throws SQLException {
         boolean ans = false;
         ResultSet result = null;
         try {
-            result = execute(query);
+            result = execute(source, query, params);
             if (result.next()) ans = true;
         } finally {
             closeResult(result);
@@ -1361,47 +1970,81 @@ public class MySQLMetaStore implements MetaStore {
         return ans;
     }
 
+    /*
+     * Bind the parameters of a prepared statement
+     */
+    private void bind(PreparedStatement statement, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] == null) {
+                statement.setNull(i + 1, Types.VARCHAR);
+            } else {
+                statement.setObject(i + 1, params[i]);
+            }
+        }
+    }
+
+    /*
+     * Log a query that took longer than expected (or any query when debugging)
+     */
+    private void logQuery(String query, Object[] params, long dt, int retries) {
+        // We want to see what queries take more than .5 seconds
+        if (logger.isDebugEnabled() || dt >= 500) {
+            String logMsg = query + " " + Arrays.toString(params) + " t:[" + dt + "ms ] r:[" + retries + "]";
+            if (dt >= 500) {
+                logger.warn(logMsg);
+            } else {
+                logger.debug(logMsg);
+            }
+
+            if (dt >= 500 || logger.getLevel() == Level.TRACE) {
+                String trace = getTrace(Thread.currentThread().getStackTrace());
+                if (dt >= 500) {
+                    logger.warn(trace);
+                } else {
+                    logger.debug(trace);
+                }
+            }
+        }
+    }
+
     /*
      * Execute a query on the store
      */
-    private ResultSet execute(String query) throws SQLException {
-        // System.err.println(query);
+    private ResultSet execute(String query, Object... params) throws SQLException {
+        return execute(null, query, params);
+    }
+
+    /*
+     * Execute a query on the store, or on one of its read replicas. A query
+     * that fails on a replica is run again on the primary.
+     */
+    private ResultSet execute(ReplicaSet.Replica source, String query, Object... params) throws SQLException {
         Connection connection = null;
-        Statement statement = null;
+        PreparedStatement statement = null;
         ResultSet result = null;
         int retries = 5;
         while (retries > 0) {
             try {
                 long t0 = System.currentTimeMillis();
-                connection = getConnection();
-                statement = connection.createStatement();
-                boolean success = statement.execute(query);
+                connection = source == null ? getConnection() : source.getConnection();
+                statement = connection.prepareStatement(query);
+                bind(statement, params);
+                boolean success = statement.execute();
                 if (success) result = statement.getResultSet();
+                if (source != null) source.succeeded();
                 retries = 0;
-                long dt = System.currentTimeMillis() - t0;
-                // We want to see what queries take more than .5 seconds
-                if (logger.isDebugEnabled() || dt >= 500) {
-                    String logMsg = query + "t:[" +dt + "ms ] r:[" + retries + "]";
-                    if (dt >= 500) {
-                        logger.warn(logMsg);
-                    } else {
-                        logger.debug(logMsg);
-                    }
-
-                    if (dt >= 500 || logger.getLevel() == Level.TRACE) {
-                        String trace = getTrace(Thread.currentThread().getStackTrace());
-                        if (dt >= 500) {
-                            logger.warn(trace);
-                        } else {
-                            logger.debug(trace);
-                        }
-                    }
-                }
+                logQuery(query, params, System.currentTimeMillis() - t0, retries);
             } catch (SQLException e) {
-                log_error(logger, "query [" + query + "], retries [" + retries + "]",  e);
+                if (source != null) {
+                    logger.warn("query [" + query + "] failed on read replica " + source.name + ": " + e.getMessage());
+                    // Only lost connections count against the replica
+                    if (e.getSQLState() != null && e.getSQLState().startsWith("08")) source.failed(e);
+                    source = null;
+                    continue;
+                }
+                log_error(logger, "query [" + query + "] " + Arrays.toString(params) + ", retries [" + retries + "]",  e);
                 String sqlState = e.getSQLState();
                 if (retries > 0 && ("08S01".equals(sqlState) || "40001".equals(sqlState))) {
-                    // System.out.println(sqlState + " " + e.toString());
                     retries--;
                 } else {
                     throw e;
@@ -1422,44 +2065,27 @@ public class MySQLMetaStore implements MetaStore {
 
     /*
      * Insert/update query on the store
+     * @return the number of rows affected
      */
-    private void update(String query) throws SQLException {
-        // System.err.println(query);
+    private int update(String query, Object... params) throws SQLException {
         Connection connection = null;
-        Statement statement = null;
+        PreparedStatement statement = null;
+        int count = 0;
         int retries = 5;
         while (retries > 0) {
             try {
                 long t0 = System.currentTimeMillis();
                 connection = getConnection();
-                statement = connection.createStatement();
-                statement.executeUpdate(query);
+                statement = connection.prepareStatement(query);
+                bind(statement, params);
+                count = statement.executeUpdate();
+                if (replicas != null) replicas.wrote();
                 retries = 0;
-                long dt = System.currentTimeMillis() - t0;
-                // We want to see what queries take more than .5 seconds
-                if (logger.isDebugEnabled() || dt >= 500) {
-                    String logMsg = query + " t:[" + dt + "ms ] r:[" + retries + "]";
-
-                    if (dt >= 500) {
-                        logger.warn(logMsg);
-                    } else {
-                        logger.debug(logMsg);
-                    }
-
-                    if (dt >= 500 || logger.getLevel() == Level.TRACE) {
-                        String trace = getTrace(Thread.currentThread().getStackTrace());
-                        if (dt >= 500) {
-                            logger.warn(trace);
-                        } else {
-                            logger.debug(trace);
-                        }
-                    }
-                }
+                logQuery(query, params, System.currentTimeMillis() - t0, retries);
             } catch (SQLException e) {
-                log_error(logger, "query [" + query + "], retries [" + retries + "]", e);
+                log_error(logger, "query [" + query + "] " + Arrays.toString(params) + ", retries [" + retries + "]", e);
                 String sqlState = e.getSQLState();
                 if (retries > 0 && ("08S01".equals(sqlState) || "40001".equals(sqlState))) {
-                    // System.out.println(sqlState + " " + e.toString());
                     retries--;
                 } else {
                     throw e;
@@ -1471,9 +2097,147 @@ public class MySQLMetaStore implements MetaStore {
                 try { if (connection != null) {connection.close(); }} catch (SQLException e) {
                     log_error(logger, e);
                 }
-//              System.err.println("*** Closing db connection: " + STOREID + "-" + CONNID);
             }
         }
+        return count;
+    }
+
+
+    /*
+     * A unit of work run on the single connection of a transaction
+     */
+    private interface Transaction<T> {
+        T run(Connection connection) throws SQLException, VOSpaceException;
+    }
+
+    /*
+     * Run the specified work in a single transaction on one connection.
+     * The work is rolled back on any error and retried, like execute() and
+     * update(), when the transaction deadlocked or lost its connection.
+     * @return the result of the work
+     */
+    private <T> T transaction(Transaction<T> work) throws SQLException, VOSpaceException {
+        int retries = 5;
+        while (true) {
+            Connection connection = null;
+            try {
+                connection = getConnection();
+                connection.setAutoCommit(false);
+                T ans = work.run(connection);
+                connection.commit();
+                if (replicas != null) replicas.wrote();
+                return ans;
+            } catch (SQLException e) {
+                rollback(connection);
+                log_error(logger, "transaction, retries [" + retries + "]", e);
+                String sqlState = e.getSQLState();
+                if (retries > 0 && ("08S01".equals(sqlState) || "40001".equals(sqlState))) {
+                    retries--;
+                } else {
+                    throw e;
+                }
+            } catch (VOSpaceException | RuntimeException e) {
+                rollback(connection);
+                throw e;
+            } finally {
+                try { if (connection != null) { connection.setAutoCommit(true); connection.close(); } } catch (SQLException e) {
+                    log_error(logger, e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Execute a query within a transaction
+     * @return the first column of all the rows
+     */
+    private List<String> getAsStringList(Connection connection, String query, Object... params) throws SQLException {
+        long t0 = System.currentTimeMillis();
+        ArrayList<String> list = new ArrayList<String>();
+        PreparedStatement statement = connection.prepareStatement(query);
+        try {
+            bind(statement, params);
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                list.add(result.getString(1));
+            }
+            result.close();
+            logQuery(query, params, System.currentTimeMillis() - t0, 0);
+        } finally {
+            statement.close();
+        }
+        return list;
+    }
+
+    /*
+     * Execute a query within a transaction
+     * @return all the columns of all the rows
+     */
+    private List<String[]> getAsRows(Connection connection, String query, Object... params) throws SQLException {
+        long t0 = System.currentTimeMillis();
+        ArrayList<String[]> rows = new ArrayList<String[]>();
+        PreparedStatement statement = connection.prepareStatement(query);
+        try {
+            bind(statement, params);
+            ResultSet result = statement.executeQuery();
+            int columns = result.getMetaData().getColumnCount();
+            while (result.next()) {
+                String[] row = new String[columns];
+                for (int i = 0; i < columns; i++) row[i] = result.getString(i + 1);
+                rows.add(row);
+            }
+            result.close();
+            logQuery(query, params, System.currentTimeMillis() - t0, 0);
+        } finally {
+            statement.close();
+        }
+        return rows;
+    }
+
+    /*
+     * Roll back the current transaction of the connection
+     */
+    private void rollback(Connection connection) {
+        try { if (connection != null) connection.rollback(); } catch (SQLException e) {
+            log_error(logger, e);
+        }
+    }
+
+    /*
+     * Insert/update query within a transaction
+     * @return the number of rows affected
+     */
+    private int update(Connection connection, String query, Object... params) throws SQLException {
+        long t0 = System.currentTimeMillis();
+        PreparedStatement statement = connection.prepareStatement(query);
+        try {
+            bind(statement, params);
+            int count = statement.executeUpdate();
+            logQuery(query, params, System.currentTimeMillis() - t0, 0);
+            return count;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /*
+     * Run an insert/update query within a transaction once for each set of
+     * parameters, as a single JDBC batch
+     */
+    private void batch(Connection connection, String query, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) return;
+        long t0 = System.currentTimeMillis();
+        PreparedStatement statement = connection.prepareStatement(query);
+        try {
+            for (Object[] params : rows) {
+                bind(statement, params);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            logQuery(query, new Object[]{rows.size() + " rows"}, System.currentTimeMillis() - t0, 0);
+        } finally {
+            statement.close();
+        }
     }
 
 
@@ -1492,7 +2256,6 @@ public class MySQLMetaStore implements MetaStore {
                 log_error(logger, e);
             }
         }
-//      System.err.println("*** Closing db connection: " + STOREID + "-" + CONNID);
     }
 
 
@@ -1501,15 +2264,13 @@ public class MySQLMetaStore implements MetaStore {
      * Updated to store each property into a column of the properties table
      *      for IVOA standard properties.
      * Also, for a LinkNode, stores the link target in the links table.
-     * @param nodeAsString String representation of node whose properties are to be stored
+     * @param connection The connection of the enclosing transaction
+     * @param node The node whose properties are to be stored
      */
-    private void storeProperties(String nodeAsString) throws SQLException, VOSpaceException {
-        Node node = NodeFactory.getInstance().getNode(nodeAsString);
+    private void storeProperties(Connection connection, Node node) throws SQLException, VOSpaceException {
         String identifier = fixId(node.getUri());
         if (node instanceof LinkNode) {
-            String lquery = "insert into links (identifier, target) values ('" +
-                            identifier + "', '" + ((LinkNode) node).getTarget() + "')";
-            update(lquery);
+            update(connection, SQL_INSERT_LINK, identifier, ((LinkNode) node).getTarget());
         }
         HashMap<String, String> properties = node.getProperties();
         // Make sure the public read properties match at all times.
@@ -1521,7 +2282,8 @@ public class MySQLMetaStore implements MetaStore {
             node.setProperty(Props.PUBLICREAD_URI, nodeIsPub);
         }
         ArrayList<String> columns = new ArrayList<String>();
-        ArrayList<String> values = new ArrayList<String>();
+        ArrayList<Object> values = new ArrayList<Object>();
+        ArrayList<Object[]> addlProps = new ArrayList<Object[]>();
         columns.add("identifier");
         values.add(identifier);
         for (Map.Entry<String, String> prop : properties.entrySet()) {
@@ -1533,24 +2295,13 @@ public class MySQLMetaStore implements MetaStore {
                     values.add(prop.getValue());
                 }
             } else {
-                String addquery = "insert into addl_props (identifier, property, value) values ('" + identifier + "', '" + property + "', '" + prop.getValue() + "')";
-                update(addquery);
+                addlProps.add(new Object[]{identifier, property, prop.getValue()});
             }
         }
         String query = "insert into properties (" + StringUtils.join(columns, ",")
-                    + ") values ('" + StringUtils.join(values, "','") + "')";
-        update(query);
-        /*      for (Map.Entry<String, String> prop : properties.entrySet()) {
-            String query = "insert into properties (identifier, property, value) values ('" + identifier + "', '" + prop.getKey() + "', '" + prop.getValue() + "')";
-            statement.executeUpdate(query);
-        } */
-        /*      NodeType node = NodeType.Factory.parse(nodeAsString);
-        String identifier = node.getUri();
-        PropertyListType properties = node.getProperties();
-        for (PropertyType property : properties.getPropertyArray()) {
-            String query = "insert into properties (identifier, property, value) values ('" + identifier + "', '" + property.getUri() + "', '" + property.getStringValue() + "')";
-            statement.executeUpdate(query);
-        } */
+                    + ") values (" + StringUtils.repeat("?", ",", columns.size()) + ")";
+        update(connection, query, values.toArray());
+        batch(connection, SQL_INSERT_ADDL_PROP, addlProps);
     }
 
 
@@ -1559,19 +2310,23 @@ public class MySQLMetaStore implements MetaStore {
      * Updated to store each property into a column of the properties table
      *      for IVOA standard properties.
      * Also, for a LinkNode, stores the link target in the links table.
-     * @param nodeAsString String representation of node whose properties are to be stored
-     * @return string representation of node with updated properties (deleted where specified)
+     * Additional properties that are set or deleted are removed and the set
+     * ones inserted again, as two batches.
+     * @param connection The connection of the enclosing transaction
+     * @param node The node whose properties are to be updated
      */
-    private String updateProperties(String nodeAsString) throws SQLException, VOSpaceException {
-        Node node = NodeFactory.getInstance().getNode(nodeAsString);
+    private void updateProperties(Connection connection, Node node) throws SQLException, VOSpaceException {
         String identifier = fixId(node.getUri());
         if (node instanceof LinkNode) {
-            String lquery = "update links set target = '" + ((LinkNode) node).getTarget() +
-                            "' where identifier = '" + identifier + "'";
-            update(lquery);
+            update(connection, SQL_UPDATE_LINK, ((LinkNode) node).getTarget(), identifier);
         }
         HashMap<String, String> properties = node.getProperties();
         ArrayList<String> updates = new ArrayList<String>();
+        ArrayList<Object> values = new ArrayList<Object>();
+        ArrayList<Object[]> addlDeletes = new ArrayList<Object[]>();
+        ArrayList<Object[]> addlInserts = new ArrayList<Object[]>();
+        // Check for deleted properties
+        List<String> nilSet = Arrays.asList(node.get("/vos:node/vos:properties/vos:property[@xsi:nil = 'true']/@uri"));
         if (!properties.isEmpty()) {
             // Make sure the public read properties match at all times.
             String isPub = properties.get(Props.ISPUBLIC_URI);
@@ -1586,47 +2341,29 @@ public class MySQLMetaStore implements MetaStore {
                 String shortProp = Props.fromURI(property);
                 if (shortProp != null) {
                     if (!shortProp.equals("identifier")) {
-                        updates.add(shortProp + " = '" + prop.getValue() + "'");
-                    }
-                } else {
-                    if (getPropertyValue(identifier, property) != null) {
-                        String addquery = "update addl_props set value = '" + prop.getValue() + "' where identifier = '"
-                                        + identifier + "' and property = '" + property + "'";
-                        update(addquery);
-                    } else {
-                        String addquery = "insert into addl_props (identifier, property, value) values ('" + identifier + "', '" + property + "', '" + prop.getValue() + "')";
-                        update(addquery);
+                        updates.add(shortProp + " = ?");
+                        values.add(prop.getValue());
                     }
+                } else if (!nilSet.contains(property)) {
+                    addlDeletes.add(new Object[]{identifier, property});
+                    addlInserts.add(new Object[]{identifier, property, prop.getValue()});
                 }
             }
         }
-        /* for (Map.Entry<String, String> prop : properties.entrySet()) {
-            String query = "update properties set value = '" + prop.getValue() + "' where identifier = '" + identifier + "' and property = '" + prop.getKey() + "'";
-            statement.executeUpdate(query);
-        } */
-        // Check for deleted properties
-        String[] nilSet = node.get("/vos:node/vos:properties/vos:property[@xsi:nil = 'true']/@uri");
-        if (nilSet.length > 0) {
-            for (String delProp : nilSet) {
-                String shortProp = Props.fromURI(delProp);
-                if (shortProp != null) {
-                    updates.add(shortProp + " = NULL");
-                } else {
-                    String addquery = "delete from addl_props where identifier = '" + identifier + "' and property = '" + delProp + "'";
-                    update(addquery);
-                }
+        for (String delProp : nilSet) {
+            String shortProp = Props.fromURI(delProp);
+            if (shortProp != null) {
+                updates.add(shortProp + " = NULL");
+            } else {
+                addlDeletes.add(new Object[]{identifier, delProp});
             }
         }
-        /* for (String delProp : nilSet) {
-            String query = "delete from properties where identifier = '" + identifier + "' and property = '" + delProp + "'";
-            statement.executeUpdate(query);
-        } */
         if (!updates.isEmpty()) {
-            String query = "update properties set " + StringUtils.join(updates, ", ") + " where identifier = '" + identifier + "'";
-            update(query);
+            values.add(identifier);
+            update(connection, "update properties set " + StringUtils.join(updates, ", ") + " where idhash = " + ID_HASH, values.toArray());
         }
-        node.remove("/vos:node/vos:properties/vos:property[@xsi:nil = 'true']");
-        return node.toString();
+        batch(connection, SQL_DELETE_ADDL_PROP, addlDeletes);
+        batch(connection, SQL_INSERT_ADDL_PROP, addlInserts);
     }
 
 
@@ -1636,8 +2373,7 @@ public class MySQLMetaStore implements MetaStore {
      * @param result The result associated with the job
      */
     public void addResult(String identifier, String result) throws SQLException {
-        String query = "insert into results (identifier, details) values ('" + identifier + "', '" + result + "')";
-        update(query);
+        update(SQL_ADD_RESULT, identifier, result);
     }
 
 
@@ -1647,40 +2383,27 @@ public class MySQLMetaStore implements MetaStore {
      * @return result The result associated with the job
      */
     public String getResult(String identifier) throws SQLException {
-        String details = null;
-        String query = "select details from results where identifier = '" + identifier + "'";
-        details = getAsString(query);
-        return details;
+        return getAsString(SQL_GET_RESULT, identifier);
     }
 
     /**
      * Check whether transfer associated with a Job exists
      */
     public boolean isTransfer(String identifier) throws SQLException {
-        boolean transfer = false;
-        String query = "select identifier from transfers where jobid = '" + identifier + "'";
-        transfer = extantEntry(query);
-        return transfer;
+        return extantEntry(SQL_IS_TRANSFER, identifier);
     }
 
     /**
      * Check whether transfer associated with a Job exists
      */
     public boolean isTransferByEndpoint(String endpoint) throws SQLException {
-        boolean transfer = false;
-        //String query = "select identifier from transfers where endpoint like '%" + escapeStr(endpoint) + "'";
-        String query = "select identifier from transfers where rendpoint like '" +
-                new StringBuilder(escapeStr(endpoint)).reverse() + "%'";
-        if (getAsString(query) != null) transfer = true;
-        return transfer;
+        return getEndpoint(endpoint) != null;
     }
 
     /**
      * Get the last modification time of the node
      */
     public long getLastModTime(String identifier) throws SQLException {
-        String query = "select lastModificationDate from nodes where identifier = '" + fixId(identifier) + "'";
-        long lastMod = getAsTime(query);
-        return lastMod;
+        return getAsTime(reader(identifier), SQL_GET_LASTMOD, fixId(identifier));
     }
 }
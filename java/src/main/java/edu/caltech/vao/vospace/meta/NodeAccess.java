@@ -0,0 +1,102 @@
+/**
+ * NodeAccess.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents what is needed to authorize access to a node: the
+ * nearest stored node at or above the requested identifier, with its owner,
+ * type and sharing properties.
+ */
+public class NodeAccess {
+    private final String identifier;
+    private final String owner;
+    private final int type;
+    private final String isPublic;
+    private final String publicRead;
+    private final String groupRead;
+    private final String groupWrite;
+
+    /**
+     * Construct the access of a node
+     * @param identifier The identifier of the stored node
+     * @param owner The owner of the node
+     * @param type The type of the node
+     * @param isPublic The value of the ispublic property
+     * @param publicRead The value of the publicread property
+     * @param groupRead The value of the groupread property
+     * @param groupWrite The value of the groupwrite property
+     */
+    public NodeAccess(String identifier, String owner, int type, String isPublic, String publicRead, String groupRead, String groupWrite) {
+        this.identifier = identifier;
+        this.owner = owner;
+        this.type = type;
+        this.isPublic = isPublic;
+        this.publicRead = publicRead;
+        this.groupRead = groupRead;
+        this.groupWrite = groupWrite;
+    }
+
+    /*
+     * Get the identifier of the stored node
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /*
+     * Check whether this is the access of the specified node itself rather
+     * than of one of its ancestors
+     */
+    public boolean isOf(String identifier) {
+        return this.identifier.replace("~", "!").equals(identifier.replace("~", "!"));
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getIsPublic() {
+        return isPublic;
+    }
+
+    public String getPublicRead() {
+        return publicRead;
+    }
+
+    public String getGroupRead() {
+        return groupRead;
+    }
+
+    public String getGroupWrite() {
+        return groupWrite;
+    }
+
+    /*
+     * Get the specified identifier and those of all its ancestors, nearest
+     * first, up to the root of the space
+     */
+    static List<String> lineage(String identifier) {
+        List<String> lineage = new ArrayList<String>();
+        int scheme = identifier.indexOf("://");
+        int start = scheme < 0 ? 0 : scheme + 3;
+        String node = identifier;
+        lineage.add(node);
+        int slash = node.lastIndexOf("/");
+        while (slash >= start) {
+            node = node.substring(0, slash);
+            lineage.add(node);
+            slash = node.lastIndexOf("/");
+        }
+        return lineage;
+    }
+}
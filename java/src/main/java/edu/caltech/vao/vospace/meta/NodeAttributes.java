@@ -0,0 +1,46 @@
+/**
+ * NodeAttributes.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents an update of the frequently changing attributes of
+ * a node (timestamps, length, busy status) that does not need the whole
+ * node description: some property values and, optionally, the status.
+ */
+public class NodeAttributes {
+    private final Map<String, String> properties = new LinkedHashMap<String, String>();
+    private Boolean status;
+
+    /**
+     * Construct an update
+     * @param properties The property values by property URI (a null value
+     *        removes the property)
+     * @param status The new status, or null to leave it unchanged
+     */
+    public NodeAttributes(Map<String, String> properties, Boolean status) {
+        if (properties != null) this.properties.putAll(properties);
+        this.status = status;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    public Boolean getStatus() {
+        return status;
+    }
+
+    /*
+     * Fold a later update of the same node into this one
+     */
+    void merge(NodeAttributes later) {
+        properties.putAll(later.properties);
+        if (later.status != null) status = later.status;
+    }
+}
@@ -0,0 +1,372 @@
+/**
+ * NodeFilter.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import static edu.noirlab.datalab.vos.Utils.*;
+
+/**
+ * This class represents an in-memory membership filter of the stored node
+ * identifiers: one Bloom filter per user tree. It can tell that an
+ * identifier is definitely not stored without asking the store, and may
+ * wrongly answer that a missing one is (at about the configured rate).
+ *
+ * Bloom filters cannot forget, so removed nodes are only counted: a tree
+ * whose filter has seen too many removals, or more additions than it was
+ * sized for, is rebuilt from the store in the background. Until the initial
+ * build has finished every identifier is reported as possibly stored.
+ */
+public class NodeFilter {
+    private static final int MIN_CAPACITY = 1024;
+    private static Logger logger = Logger.getLogger(NodeFilter.class.getName());
+
+    private final Source source;
+    private final double fpp;
+    private final Map<String, Tree> trees = new ConcurrentHashMap<String, Tree>();
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+    private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "node-filter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean ready = false;
+    private volatile boolean building = false;
+    private final LongAdder negatives = new LongAdder();
+    private final LongAdder positives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    /*
+     * Reads the stored identifiers
+     */
+    interface Source {
+        /*
+         * Pass every stored identifier of the specified tree to the sink
+         * @param root The root of the tree, or null for all the trees
+         */
+        void scan(String root, Consumer<String> sink) throws SQLException;
+    }
+
+    /*
+     * The filter of a single user tree
+     */
+    private static class Tree {
+        volatile Bloom current;
+        // Identifiers added while the tree is being rebuilt
+        List<Long> building;
+    }
+
+    /*
+     * A Bloom filter whose bits can be set concurrently
+     */
+    private static class Bloom {
+        final AtomicLongArray bits;
+        final long size;
+        final int hashes;
+        final long capacity;
+        final LongAdder added = new LongAdder();
+        final LongAdder removed = new LongAdder();
+
+        Bloom(long capacity, double fpp) {
+            this.capacity = Math.max(MIN_CAPACITY, capacity);
+            long m = (long) Math.ceil(-this.capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+            bits = new AtomicLongArray(words);
+            size = (long) words * 64;
+            hashes = Math.max(1, (int) Math.round((double) size / this.capacity * Math.log(2)));
+        }
+
+        void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                do {
+                    old = bits.get(word);
+                    if ((old & mask) != 0) break;
+                } while (!bits.compareAndSet(word, old, old | mask));
+            }
+            added.increment();
+        }
+
+        boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        /*
+         * Estimate the false positive rate from the number of bits set
+         */
+        double expectedFpp() {
+            long set = 0;
+            for (int i = 0; i < bits.length(); i++) set += Long.bitCount(bits.get(i));
+            return Math.pow((double) set / size, hashes);
+        }
+    }
+
+
+    /**
+     * Construct a filter of the identifiers in the specified store
+     * @param source Reads the identifiers from the store
+     * @param fpp The target false positive rate
+     */
+    NodeFilter(Source source, double fpp) {
+        this.source = source;
+        this.fpp = fpp;
+    }
+
+    /*
+     * Build the filters of all the trees in the background
+     */
+    void build() {
+        rebuilder.submit(() -> {
+            long t0 = System.currentTimeMillis();
+            try {
+                HashMap<String, long[]> hashes = new HashMap<String, long[]>();
+                HashMap<String, Integer> counts = new HashMap<String, Integer>();
+                // Identifiers stored from now on are kept for the new filters
+                building = true;
+                for (Tree tree : trees.values()) {
+                    synchronized (tree) {
+                        if (tree.building == null) tree.building = new ArrayList<Long>();
+                    }
+                }
+                source.scan(null, id -> {
+                    String root = getRoot(id);
+                    long[] list = hashes.get(root);
+                    int count = counts.getOrDefault(root, 0);
+                    if (list == null) list = new long[64];
+                    if (count == list.length) list = Arrays.copyOf(list, count * 2);
+                    list[count] = hash(id);
+                    hashes.put(root, list);
+                    counts.put(root, count + 1);
+                });
+                long total = 0;
+                for (Map.Entry<String, long[]> entry : hashes.entrySet()) {
+                    int count = counts.get(entry.getKey());
+                    total += count;
+                    install(tree(entry.getKey()), entry.getValue(), count);
+                }
+                for (Tree tree : trees.values()) {
+                    if (tree.building != null) install(tree, new long[0], 0);
+                }
+                building = false;
+                ready = true;
+                logger.info("Built node filters of " + total + " identifiers in " + trees.size() + " trees in "
+                        + (System.currentTimeMillis() - t0) + "ms");
+            } catch (Exception e) {
+                log_error(logger, e);
+            }
+        });
+    }
+
+    /*
+     * Rebuild the filter of a single tree in the background
+     */
+    private void rebuild(String root) {
+        if (!ready || pending.putIfAbsent(root, Boolean.TRUE) != null) return;
+        rebuilder.submit(() -> {
+            try {
+                Tree tree = trees.get(root);
+                if (tree == null) return;
+                synchronized (tree) {
+                    tree.building = new ArrayList<Long>();
+                }
+                long[][] list = {new long[64]};
+                int[] count = {0};
+                source.scan(root, id -> {
+                    if (count[0] == list[0].length) list[0] = Arrays.copyOf(list[0], count[0] * 2);
+                    list[0][count[0]++] = hash(id);
+                });
+                install(tree, list[0], count[0]);
+                rebuilds.increment();
+                logger.debug("Rebuilt node filter of " + root + " with " + count[0] + " identifiers");
+            } catch (Exception e) {
+                log_error(logger, e);
+            } finally {
+                pending.remove(root);
+            }
+        });
+    }
+
+    /*
+     * Replace the filter of a tree with one holding the scanned identifiers
+     * and those added while the scan ran
+     */
+    private void install(Tree tree, long[] hashes, int count) {
+        synchronized (tree) {
+            List<Long> added = tree.building == null ? Collections.<Long>emptyList() : tree.building;
+            Bloom bloom = new Bloom(2L * (count + added.size()), fpp);
+            for (int i = 0; i < count; i++) bloom.add(hashes[i]);
+            for (long hash : added) bloom.add(hash);
+            tree.current = bloom;
+            tree.building = null;
+        }
+    }
+
+    /*
+     * Get the filter of a tree, creating it if needed
+     */
+    private Tree tree(String root) {
+        return trees.computeIfAbsent(root, k -> {
+            Tree tree = new Tree();
+            if (building) tree.building = new ArrayList<Long>();
+            return tree;
+        });
+    }
+
+    /*
+     * Get the root of the user tree holding an identifier, i.e. the
+     * identifier cut after the first path element below the space root
+     */
+    static String getRoot(String identifier) {
+        int start = identifier.indexOf("/", identifier.indexOf("//") + 2);
+        if (start < 0) return identifier;
+        int end = identifier.indexOf("/", start + 1);
+        return end < 0 ? identifier : identifier.substring(0, end);
+    }
+
+    /*
+     * A 64-bit hash of an identifier (FNV-1a followed by a final mix)
+     */
+    static long hash(String identifier) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : identifier.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /*
+     * Record a stored identifier
+     */
+    void add(String identifier) {
+        long hash = hash(identifier);
+        Tree tree = tree(getRoot(identifier));
+        Bloom current;
+        synchronized (tree) {
+            if (tree.current == null) tree.current = new Bloom(MIN_CAPACITY, fpp);
+            current = tree.current;
+            current.add(hash);
+            if (tree.building != null) tree.building.add(hash);
+        }
+        if (current.added.sum() > current.capacity) rebuild(getRoot(identifier));
+    }
+
+    /*
+     * Record a removed identifier
+     */
+    void remove(String identifier) {
+        String root = getRoot(identifier);
+        Tree tree = trees.get(root);
+        Bloom current = tree == null ? null : tree.current;
+        if (current == null) return;
+        current.removed.increment();
+        if (current.removed.sum() > current.capacity / 4) rebuild(root);
+    }
+
+    /*
+     * Check whether an identifier may be stored
+     * @return false if the identifier is definitely not stored
+     */
+    boolean mightContain(String identifier) {
+        if (!ready) return true;
+        Tree tree = trees.get(getRoot(identifier));
+        Bloom current = tree == null ? null : tree.current;
+        if (current == null || !current.mightContain(hash(identifier))) {
+            negatives.increment();
+            return false;
+        }
+        positives.increment();
+        return true;
+    }
+
+    /*
+     * Whether the initial build has finished, so that the filter answers
+     * lookups (once it has, it always does)
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    /*
+     * Record that an identifier the filter let through was not stored; only
+     * to be called for lookups made when the filter was ready
+     */
+    void falsePositive() {
+        falsePositives.increment();
+    }
+
+    public long getNegatives() {
+        return negatives.sum();
+    }
+
+    public long getPositives() {
+        return positives.sum();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    /*
+     * Get the observed false positive rate: the fraction of lookups of
+     * missing identifiers that the filter did not answer
+     */
+    public double getFalsePositiveRate() {
+        long fp = getFalsePositives();
+        long missing = fp + getNegatives();
+        return missing == 0 ? 0.0 : (double) fp / missing;
+    }
+
+    /*
+     * Get a summary of the filter statistics
+     */
+    public String getStatistics() {
+        double expected = 0;
+        int count = 0;
+        for (Tree tree : trees.values()) {
+            Bloom current = tree.current;
+            if (current != null) {
+                expected += current.expectedFpp();
+                count++;
+            }
+        }
+        return String.format("ready=%b trees=%d negatives=%d positives=%d falsePositives=%d fpRate=%.4f expectedFpRate=%.4f rebuilds=%d",
+                ready, trees.size(), getNegatives(), getPositives(), getFalsePositives(), getFalsePositiveRate(),
+                count == 0 ? 0.0 : expected / count, rebuilds.sum());
+    }
+}
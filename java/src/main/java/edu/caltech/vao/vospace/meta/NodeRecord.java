@@ -0,0 +1,145 @@
+/**
+ * NodeRecord.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.nrc.cadc.vos.NodeProperty;
+import ca.nrc.cadc.vos.VOSURI;
+import org.apache.log4j.Logger;
+
+import edu.caltech.vao.vospace.xml.Node;
+import edu.caltech.vao.vospace.xml.NodeFactory;
+import edu.caltech.vao.vospace.xml.LinkNode;
+import edu.caltech.vao.vospace.xml.DataNode;
+import edu.caltech.vao.vospace.NodeType;
+import edu.caltech.vao.vospace.Props;
+import edu.caltech.vao.vospace.VOSpaceException;
+import edu.caltech.vao.vospace.VOSpaceManager;
+
+/**
+ * This class holds the stored metadata of a single node as it comes back
+ * from the metadata store: the nodes row, the IVOA property columns, any
+ * additional properties and the link target. It is the intermediate form
+ * from which the node representations are built.
+ */
+class NodeRecord {
+
+    private static Logger logger = Logger.getLogger(NodeRecord.class.getName());
+
+    static final List<NodeType> VIEWS_AND_CAPS = Arrays.asList(
+            NodeType.DATA_NODE,
+            NodeType.CONTAINER_NODE,
+            NodeType.STRUCTURED_DATA_NODE,
+            NodeType.UNSTRUCTURED_DATA_NODE);
+
+    final String identifier;
+    final int type;
+    String target;
+    String view;
+    String owner;
+    String location;
+    boolean status;
+    long created;
+    long lastModified;
+    final Map<String, String> properties = new LinkedHashMap<String, String>();
+    final Map<String, String> addlProperties = new LinkedHashMap<String, String>();
+
+    /*
+     * Construct a record for the specified node
+     * @param identifier The identifier of the node
+     * @param type The type of the node
+     */
+    NodeRecord(String identifier, int type) {
+        this.identifier = identifier;
+        this.type = type;
+    }
+
+    /*
+     * Copy this record under the specified identifier
+     * @param newIdentifier The identifier of the copy
+     */
+    NodeRecord copy(String newIdentifier) {
+        NodeRecord record = new NodeRecord(newIdentifier, type);
+        record.target = target;
+        record.view = view;
+        record.owner = owner;
+        record.location = location;
+        record.status = status;
+        record.created = created;
+        record.lastModified = lastModified;
+        record.properties.putAll(properties);
+        record.addlProperties.putAll(addlProperties);
+        return record;
+    }
+
+    /*
+     * Create the node string for this record
+     */
+    String toNode() throws VOSpaceException {
+        // Create a new Node object of the proper type
+        Node node = NodeFactory.getInstance().getNodeByType(NodeType.getUriById(type));
+        // Set the URI for the node to the identifier
+        node.setUri(identifier.replace("~", "!"));
+        // Set the property values in the Node
+        for (Map.Entry<String, String> prop : properties.entrySet()) {
+            node.setProperty(Props.getURI(prop.getKey()), prop.getValue());
+        }
+        for (Map.Entry<String, String> prop : addlProperties.entrySet()) {
+            node.setProperty(prop.getKey(), prop.getValue());
+        }
+        if (node instanceof LinkNode) ((LinkNode) node).setTarget(target);
+        // Set the Views and Capabilities; unfortunately requires the VOSpaceManager
+        if (node instanceof DataNode) VOSpaceManager.getInstance().addViewsAndCapabilities((DataNode) node);
+        // Return the Node cast back to String
+        return node.toString();
+    }
+
+    /*
+     * Create the node object for this record
+     * This node object can later be serialized to XML in one swap.
+     */
+    ca.nrc.cadc.vos.Node toNodeJDOM2() throws VOSpaceException {
+        // Create a new Node object of the proper type
+        ca.nrc.cadc.vos.Node node = null;
+        try {
+            node = NodeFactory.getInstance().getJDOM2NodeByType(type, new VOSURI(identifier.replace("~", "!")));
+            List<NodeProperty> nodeProperties = new ArrayList<>();
+            for (Map.Entry<String, String> prop : properties.entrySet()) {
+                nodeProperties.add(new NodeProperty("ivo://ivoa.net/vospace/core#" + prop.getKey(), prop.getValue()));
+            }
+            for (Map.Entry<String, String> prop : addlProperties.entrySet()) {
+                nodeProperties.add(new NodeProperty("ivo://ivoa.net/vospace/core#" + prop.getKey(), prop.getValue()));
+            }
+            node.setProperties(nodeProperties);
+            if (node instanceof ca.nrc.cadc.vos.LinkNode) {
+                URI targetURI = new URI("null");
+                if (target != null) {
+                    targetURI = new URI(target);
+                } else {
+                    logger.warn("LinkFoundFault: no target for [" + identifier + "]");
+                }
+                ((ca.nrc.cadc.vos.LinkNode) node).setTarget(targetURI);
+            }
+            // Set the Views and Capabilities; unfortunately requires the VOSpaceManager
+            NodeType nodeType = MetaStore.getNodeType(type);
+            if (VIEWS_AND_CAPS.contains(nodeType)) {
+                VOSpaceManager.getInstance().addViewsAndCapabilitiesJDOM2(node, nodeType);
+            }
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            throw new VOSpaceException(VOSpaceException.VOFault.InvalidURI, e.getLocalizedMessage());
+        }
+        // Return the Node
+        return node;
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * ReplicaSet.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+import static edu.noirlab.datalab.vos.Utils.*;
+
+/**
+ * This class represents the read replicas of a MySQL metadata store.
+ *
+ * Reads are spread round robin over the healthy replicas. A replica is
+ * ejected after a number of consecutive connection failures, or by the
+ * periodic health check when it cannot be reached or lags too far behind
+ * the primary, and is taken back once the health check passes again.
+ *
+ * Replication is asynchronous, so reads made shortly after a write must go
+ * to the primary: for a few seconds after a write both the writing thread
+ * (the request or job) and the user tree holding the written nodes stick to
+ * the primary. The time of the last write of a thread is carried over to
+ * the threads of AsyncMetaStore that make calls on its behalf.
+ */
+class ReplicaSet {
+    private static final int DEFAULT_STICKY = 5;
+    private static final int DEFAULT_CHECK = 10;
+    private static final int DEFAULT_FAILURES = 3;
+    private static final int DEFAULT_MAX_LAG = 30;
+    private static Logger logger = Logger.getLogger(ReplicaSet.class.getName());
+
+    private final List<Replica> replicas = new ArrayList<Replica>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final long sticky;
+    private final int maxFailures;
+    private final int maxLag;
+    // The time of the last write of the current thread
+    private final ThreadLocal<long[]> threadWrite = ThreadLocal.withInitial(() -> new long[1]);
+    // The time of the last write to each user tree
+    private final Map<String, Long> treeWrites = new ConcurrentHashMap<String, Long>();
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "replica-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryReads = new LongAdder();
+    private final LongAdder stickyReads = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+
+    /*
+     * A single replica
+     */
+    class Replica {
+        final String name;
+        final DataSource dataSource;
+        final AtomicInteger failures = new AtomicInteger();
+        volatile boolean healthy = true;
+
+        Replica(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+
+        Connection getConnection() throws SQLException {
+            return dataSource.getConnection();
+        }
+
+        /*
+         * Record a failed connection or query, ejecting the replica after
+         * too many in a row
+         */
+        void failed(SQLException e) {
+            if (failures.incrementAndGet() >= maxFailures && healthy) {
+                eject(e.getMessage());
+            }
+        }
+
+        /*
+         * Record a successful query
+         */
+        void succeeded() {
+            if (failures.get() != 0) failures.set(0);
+        }
+
+        void eject(String reason) {
+            if (healthy) {
+                healthy = false;
+                ejections.increment();
+                logger.warn("Ejected read replica " + name + ": " + reason);
+            }
+        }
+    }
+
+
+    /**
+     * Construct an empty replica set
+     * @param props The properties of the service
+     */
+    ReplicaSet(Properties props) {
+        sticky = 1000L * Integer.parseInt(props.getProperty("server.meta.replica.sticky", String.valueOf(DEFAULT_STICKY)).trim());
+        maxFailures = Integer.parseInt(props.getProperty("server.meta.replica.failures", String.valueOf(DEFAULT_FAILURES)).trim());
+        maxLag = Integer.parseInt(props.getProperty("server.meta.replica.maxlag", String.valueOf(DEFAULT_MAX_LAG)).trim());
+        int check = Integer.parseInt(props.getProperty("server.meta.replica.check", String.valueOf(DEFAULT_CHECK)).trim());
+        checker.scheduleWithFixedDelay(this::check, check, check, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Add a replica
+     */
+    void add(String name, DataSource dataSource) {
+        replicas.add(new Replica(name, dataSource));
+    }
+
+    /*
+     * Choose where to read metadata of the specified identifier from
+     * @param identifier The (fixed) identifier read, or null if the read is
+     *        not about a single user tree
+     * @return a healthy replica, or null to read from the primary
+     */
+    Replica reader(String identifier) {
+        long now = System.currentTimeMillis();
+        if (now - threadWrite.get()[0] < sticky || (identifier != null && isTreeSticky(identifier, now))) {
+            stickyReads.increment();
+            return null;
+        }
+        int size = replicas.size();
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            if (replica.healthy) {
+                replicaReads.increment();
+                return replica;
+            }
+        }
+        primaryReads.increment();
+        return null;
+    }
+
+    private boolean isTreeSticky(String identifier, long now) {
+        Long written = treeWrites.get(NodeFilter.getRoot(identifier));
+        return written != null && now - written < sticky;
+    }
+
+    /*
+     * Record a write made by the current thread
+     */
+    void wrote() {
+        threadWrite.get()[0] = System.currentTimeMillis();
+    }
+
+    /*
+     * Get the time of the last write of the current thread
+     */
+    long getThreadWrite() {
+        return threadWrite.get()[0];
+    }
+
+    /*
+     * Set the time of the last write of the current thread, that of the
+     * thread it makes calls for
+     */
+    void setThreadWrite(long time) {
+        threadWrite.get()[0] = time;
+    }
+
+    /*
+     * Record a write of the specified (fixed) identifiers
+     */
+    void wrote(String... identifiers) {
+        long now = System.currentTimeMillis();
+        threadWrite.get()[0] = now;
+        for (String identifier : identifiers) {
+            treeWrites.put(NodeFilter.getRoot(identifier), now);
+        }
+    }
+
+    /*
+     * Check the health of every replica, taking back those that have
+     * recovered, and forget old tree writes
+     */
+    private void check() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = treeWrites.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() >= sticky) it.remove();
+        }
+        for (Replica replica : replicas) {
+            String problem;
+            try {
+                problem = probe(replica);
+            } catch (SQLException e) {
+                problem = e.getMessage();
+            } catch (Exception e) {
+                log_error(logger, e);
+                problem = e.getMessage();
+            }
+            if (problem != null) {
+                replica.eject(problem);
+            } else if (!replica.healthy) {
+                replica.failures.set(0);
+                replica.healthy = true;
+                logger.info("Read replica " + replica.name + " is back in service");
+            }
+        }
+    }
+
+    /*
+     * Probe a replica
+     * @return what is wrong with it, or null if it can serve reads
+     */
+    private String probe(Replica replica) throws SQLException {
+        Connection connection = replica.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                if (maxLag <= 0) {
+                    statement.execute("select 1");
+                    return null;
+                }
+                ResultSet result = statement.executeQuery("show slave status");
+                try {
+                    // Not a replica (e.g. a standby copy): nothing to lag behind
+                    if (!result.next()) return null;
+                    long lag = result.getLong("Seconds_Behind_Master");
+                    if (result.wasNull()) return "replication is not running";
+                    if (lag > maxLag) return "replication lag of " + lag + "s";
+                    return null;
+                } finally {
+                    result.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /*
+     * Get a summary of the routing statistics
+     */
+    String getStatistics() {
+        int healthy = 0;
+        for (Replica replica : replicas) {
+            if (replica.healthy) healthy++;
+        }
+        return String.format("replicas=%d healthy=%d replicaReads=%d primaryReads=%d stickyReads=%d ejections=%d",
+                replicas.size(), healthy, replicaReads.sum(), primaryReads.sum(), stickyReads.sum(), ejections.sum());
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * TransferDetails.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+/**
+ * This class represents a transfer endpoint handed out for a job, with what
+ * is needed to serve a request made to it: the target node, its location,
+ * the requested view and the owner of the node. They are captured when the
+ * endpoint is registered, so that the data requests made to the endpoint
+ * need not read and parse the transfer document.
+ */
+public class TransferDetails {
+    private final String endpoint;
+    private final String token;
+    private final String jobId;
+    private final String target;
+    private final String location;
+    private final String view;
+    private final String owner;
+    private final long created;
+    private volatile boolean completed;
+
+    /**
+     * Construct the details of a new transfer endpoint
+     * @param jobId The identifier of the job
+     * @param endpoint The endpoint URL
+     * @param target The identifier of the target node
+     * @param location The location of the bytes of the target node
+     * @param view The URI of the requested view, or null if there is none
+     * @param owner The owner of the target node
+     */
+    public TransferDetails(String jobId, String endpoint, String target, String location, String view, String owner) {
+        this(jobId, endpoint, target, location, view, owner, System.currentTimeMillis(), false);
+    }
+
+    TransferDetails(String jobId, String endpoint, String target, String location, String view, String owner, long created, boolean completed) {
+        this.endpoint = endpoint;
+        this.token = TransferRegistry.token(endpoint);
+        this.jobId = jobId;
+        this.target = target;
+        this.location = location;
+        this.view = view;
+        this.owner = owner;
+        this.created = created;
+        this.completed = completed;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /*
+     * Get the token of the endpoint: the last part of its URL
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public String getView() {
+        return view;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /*
+     * Check whether the transfer was known to have completed when these
+     * details were read
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    void setCompleted() {
+        completed = true;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * TransferRegistry.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class represents the live transfer endpoints known to the service,
+ * by the token of their URL: the last part of it, which for the endpoints
+ * the service hands out (/data/{token}) is a random UUID.
+ *
+ * Endpoints are held in memory for a fixed time after they are created, so
+ * that resolving one does not need the db. The db remains the authority:
+ * endpoints created by another service instance, or older than the time
+ * they are held for, are looked up there by their (indexed) token.
+ */
+class TransferRegistry {
+    private final Map<String, TransferDetails> endpoints = new ConcurrentHashMap<String, TransferDetails>();
+    private final Map<String, TransferDetails> jobs = new ConcurrentHashMap<String, TransferDetails>();
+    private final long ttl;
+
+
+    /**
+     * Construct an empty registry
+     * @param ttl The milliseconds endpoints are held for
+     */
+    TransferRegistry(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /*
+     * Get the token of an endpoint URL (or of a token itself)
+     */
+    static String token(String endpoint) {
+        return endpoint.substring(endpoint.lastIndexOf("/") + 1);
+    }
+
+    /*
+     * Hold an endpoint
+     */
+    void add(TransferDetails endpoint) {
+        endpoints.put(endpoint.getToken(), endpoint);
+        jobs.put(endpoint.getJobId(), endpoint);
+    }
+
+    /*
+     * Get a held endpoint by its token
+     */
+    TransferDetails get(String token) {
+        return live(endpoints.get(token));
+    }
+
+    /*
+     * Get a held endpoint by its job
+     */
+    TransferDetails getByJob(String jobId) {
+        return live(jobs.get(jobId));
+    }
+
+    private TransferDetails live(TransferDetails endpoint) {
+        if (endpoint != null && System.currentTimeMillis() - endpoint.getCreated() >= ttl) {
+            remove(endpoint);
+            return null;
+        }
+        return endpoint;
+    }
+
+    private void remove(TransferDetails endpoint) {
+        endpoints.remove(endpoint.getToken(), endpoint);
+        jobs.remove(endpoint.getJobId(), endpoint);
+    }
+
+    /*
+     * Drop the endpoints held for longer than the time to live
+     */
+    void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<TransferDetails> it = endpoints.values().iterator(); it.hasNext(); ) {
+            TransferDetails endpoint = it.next();
+            if (now - endpoint.getCreated() >= ttl) {
+                it.remove();
+                jobs.remove(endpoint.getJobId(), endpoint);
+            }
+        }
+    }
+
+    int size() {
+        return endpoints.size();
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Usage.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+/**
+ * This class represents the space used under a container, or by an owner:
+ * the bytes of the data nodes and the number of nodes of all types.
+ */
+public class Usage {
+    private final long bytes;
+    private final long nodes;
+
+    /**
+     * Construct the usage of a container or an owner
+     * @param bytes The bytes of the data nodes
+     * @param nodes The number of nodes
+     */
+    public Usage(long bytes, long nodes) {
+        this.bytes = bytes;
+        this.nodes = nodes;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+}
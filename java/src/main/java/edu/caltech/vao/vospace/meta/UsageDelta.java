@@ -0,0 +1,74 @@
+/**
+ * UsageDelta.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class represents the change a write makes to the usage of the
+ * containers above the nodes it touches and of their owners. Changes are
+ * summed by container and by owner, so that each usage row is updated
+ * once, in key order, by the transaction of the write.
+ */
+class UsageDelta {
+    private final TreeMap<String, long[]> containers = new TreeMap<String, long[]>();
+    private final TreeMap<String, long[]> owners = new TreeMap<String, long[]>();
+
+    /*
+     * Count the bytes and nodes of a subtree added at (or, when negative,
+     * removed from) the specified identifier in every container above it
+     * and for its owner. The root of the space is left out: every write
+     * would update its row.
+     */
+    void add(String identifier, String owner, long bytes, long nodes) {
+        if (bytes == 0 && nodes == 0) return;
+        List<String> lineage = NodeAccess.lineage(identifier);
+        for (int i = 1; i < lineage.size() - 1; i++) {
+            sum(containers, lineage.get(i), bytes, nodes);
+        }
+        if (owner != null) sum(owners, owner, bytes, nodes);
+    }
+
+    private static void sum(Map<String, long[]> usage, String key, long bytes, long nodes) {
+        long[] total = usage.computeIfAbsent(key, k -> new long[2]);
+        total[0] += bytes;
+        total[1] += nodes;
+    }
+
+    /*
+     * Drop the changes of the specified containers, whose rows are deleted
+     */
+    void drop(Collection<String> identifiers) {
+        containers.keySet().removeAll(identifiers);
+    }
+
+    /*
+     * Get the (key, bytes, nodes) rows of the containers that change
+     */
+    List<Object[]> getContainerRows() {
+        return rows(containers);
+    }
+
+    /*
+     * Get the (key, bytes, nodes) rows of the owners that change
+     */
+    List<Object[]> getOwnerRows() {
+        return rows(owners);
+    }
+
+    private static List<Object[]> rows(Map<String, long[]> usage) {
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (Map.Entry<String, long[]> entry : usage.entrySet()) {
+            long[] total = entry.getValue();
+            if (total[0] != 0 || total[1] != 0) rows.add(new Object[]{entry.getKey(), total[0], total[1]});
+        }
+        return rows;
+    }
+}
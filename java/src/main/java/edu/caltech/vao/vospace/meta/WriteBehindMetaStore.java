@@ -0,0 +1,700 @@
+/**
+ * WriteBehindMetaStore.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.meta;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.vao.vospace.Props;
+import edu.caltech.vao.vospace.VOSpaceException;
+
+import static edu.noirlab.datalab.vos.Utils.*;
+
+/**
+ * This class represents a metadata store that holds back the attribute
+ * updates (timestamps, length, status) of another store for a short while,
+ * so that repeated updates of the same node are folded into one and the
+ * updates of many nodes are written together.
+ *
+ * The held back updates are written every few hundred milliseconds, when
+ * too many have piled up, before any read that could see them or any other
+ * change of the same nodes, and when the store is closed (as the service
+ * shuts down). The update of a node that the store keeps rejecting is
+ * dropped after a few attempts.
+ */
+public class WriteBehindMetaStore implements MetaStore {
+    private static final int DEFAULT_DELAY = 500;
+    private static final int DEFAULT_BATCH = 500;
+    // Failed writes of the update of a node before it is dropped
+    private static final int MAX_ATTEMPTS = 3;
+    private static Logger logger = Logger.getLogger(WriteBehindMetaStore.class.getName());
+
+    private final MetaStore store;
+    private final int batch;
+    private final Map<String, NodeAttributes> pending = new ConcurrentHashMap<String, NodeAttributes>();
+    // The nodes whose updates are being written
+    private volatile Set<String> flushing = Collections.emptySet();
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // The failed writes of the updates held back again, by node
+    private final Map<String, Integer> attempts = new ConcurrentHashMap<String, Integer>();
+    // The updates setting the length of a node, i.e. one per upload
+    private final LongAdder uploads = new LongAdder();
+    private volatile boolean closed = false;
+
+
+    /**
+     * Construct a write-behind buffer in front of the specified store
+     * @param store The store to write to
+     * @param props The service properties
+     */
+    public WriteBehindMetaStore(MetaStore store, Properties props) {
+        this.store = store;
+        long delay = Long.parseLong(props.getProperty("server.meta.writebehind.delay", String.valueOf(DEFAULT_DELAY)).trim());
+        batch = Integer.parseInt(props.getProperty("server.meta.writebehind.batch", String.valueOf(DEFAULT_BATCH)).trim());
+        flusher.scheduleWithFixedDelay(this::flushQuietly, delay, delay, TimeUnit.MILLISECONDS);
+        logger.info("Holding back node attribute updates for up to " + delay + "ms");
+    }
+
+    /*
+     * Get the wrapped store
+     */
+    public MetaStore getStore() {
+        return store;
+    }
+
+    /*
+     * Standardize the VOSpace identifier
+     */
+    private String fixId(String identifier) {
+        return identifier.replace("~", "!");
+    }
+
+    /*
+     * Write the held back updates of the specified nodes, waiting for any
+     * update of them already being written
+     */
+    private void flush(Collection<String> identifiers) throws SQLException {
+        boolean held = false;
+        for (String identifier : identifiers) {
+            if (pending.containsKey(identifier) || flushing.contains(identifier)) {
+                held = true;
+                break;
+            }
+        }
+        if (!held) return;
+        synchronized (flushLock) {
+            write(new HashSet<String>(identifiers), false);
+        }
+    }
+
+    private void flush(String identifier) throws SQLException {
+        flush(Collections.singleton(fixId(identifier)));
+    }
+
+    /*
+     * Write the held back updates of the nodes listed by the identifiers
+     * (all of them if there is a wildcard)
+     */
+    private void flush(String[] identifiers) throws SQLException {
+        if (identifiers == null) {
+            flushAll();
+            return;
+        }
+        HashSet<String> ids = new HashSet<String>();
+        for (String identifier : identifiers) {
+            if (identifier.contains("*")) {
+                flushAll();
+                return;
+            }
+            ids.add(fixId(identifier));
+        }
+        flush(ids);
+    }
+
+    /*
+     * Write the held back updates of the direct children of the specified
+     * node
+     */
+    private void flushChildren(String identifier) throws SQLException {
+        String prefix = fixId(identifier) + "/";
+        flush(id -> id.startsWith(prefix) && id.indexOf("/", prefix.length()) < 0, false);
+    }
+
+    /*
+     * Write the held back updates of the lengths of the nodes below the
+     * specified node
+     */
+    private void flushUsage(String identifier) throws SQLException {
+        String prefix = fixId(identifier) + "/";
+        flush(id -> id.startsWith(prefix), true);
+    }
+
+    /*
+     * Write the held back updates of the lengths of the nodes in the tree
+     * of the specified user; the nodes the user owns in other trees are
+     * counted once their updates are written in turn
+     */
+    private void flushOwnerUsage(String owner) throws SQLException {
+        String tree = "/" + owner;
+        flush(id -> NodeFilter.getRoot(id).endsWith(tree), true);
+    }
+
+    /*
+     * Write the held back updates of the nodes that pass the specified test
+     * (only those setting a length if asked), waiting for any of them
+     * already being written
+     */
+    private void flush(Predicate<String> test, boolean lengths) throws SQLException {
+        HashSet<String> ids = new HashSet<String>();
+        for (String identifier : pending.keySet()) {
+            if (!test.test(identifier)) continue;
+            if (!lengths) {
+                ids.add(identifier);
+            } else if (pending.computeIfPresent(identifier, (id, held) -> {
+                        // Looked at under the lock of the entry, as a later update may be folding in
+                        if (held.getProperties().containsKey(Props.LENGTH_URI)) ids.add(id);
+                        return held;
+                    }) == null) {
+                // Taken to be written in the mean time
+                ids.add(identifier);
+            }
+        }
+        for (String identifier : flushing) {
+            if (test.test(identifier)) ids.add(identifier);
+        }
+        flush(ids);
+    }
+
+    /*
+     * Write all the held back updates; the updates that cannot be written
+     * are logged and held back (until dropped) rather than failing the
+     * call, so that they do not hold up changes of other nodes
+     */
+    public void flushAll() throws SQLException {
+        if (pending.isEmpty() && flushing.isEmpty()) return;
+        synchronized (flushLock) {
+            write(new HashSet<String>(pending.keySet()), true);
+        }
+    }
+
+    private void flushQuietly() {
+        flushQueued.set(false);
+        try {
+            flushAll();
+        } catch (Exception e) {
+            log_error(logger, e);
+        }
+    }
+
+    /*
+     * Write the held back updates of the specified nodes to the store. The
+     * nodes are marked as being written before their updates leave the
+     * buffer, so that a read never misses them. If the batch fails for
+     * anything but a lost connection or a rolled back transaction, its
+     * nodes are written one at a time, so that a node that cannot be
+     * written does not hold back the others.
+     * @param quiet Whether to log rather than throw the failures
+     */
+    private void write(Set<String> identifiers, boolean quiet) throws SQLException {
+        flushing = identifiers;
+        HashMap<String, NodeAttributes> batch = new HashMap<String, NodeAttributes>();
+        for (String identifier : identifiers) {
+            NodeAttributes attributes = pending.remove(identifier);
+            if (attributes != null) batch.put(identifier, attributes);
+        }
+        try {
+            if (batch.isEmpty()) return;
+            SQLException failure = write(batch);
+            if (failure != null && batch.size() > 1 && !isTransient(failure)) {
+                failure = null;
+                for (Map.Entry<String, NodeAttributes> entry : batch.entrySet()) {
+                    SQLException failed = write(Collections.singletonMap(entry.getKey(), entry.getValue()));
+                    if (failed != null) failure = failed;
+                }
+            }
+            if (failure != null) {
+                if (!quiet) throw failure;
+                log_error(logger, failure);
+            }
+        } finally {
+            flushing = Collections.emptySet();
+        }
+    }
+
+    /*
+     * Write a batch of updates in one call to the store, returning the
+     * failure if any. The updates of a failed batch are held back again, so
+     * that later updates still fold into them, unless it is a lone update
+     * that has failed too often, which is dropped.
+     */
+    private SQLException write(Map<String, NodeAttributes> batch) {
+        try {
+            store.updateAttributes(batch);
+            flushes.increment();
+            written.add(batch.size());
+            if (!attempts.isEmpty()) attempts.keySet().removeAll(batch.keySet());
+            return null;
+        } catch (SQLException | VOSpaceException | RuntimeException e) {
+            SQLException failure = e instanceof SQLException ? (SQLException) e : new SQLException(e.getMessage(), e);
+            for (Map.Entry<String, NodeAttributes> entry : batch.entrySet()) {
+                String identifier = entry.getKey();
+                if (batch.size() == 1 && !isTransient(failure)
+                        && attempts.merge(identifier, 1, Integer::sum) >= MAX_ATTEMPTS) {
+                    attempts.remove(identifier);
+                    dropped.increment();
+                    logger.error("Dropping the update of " + identifier + " after " + MAX_ATTEMPTS
+                            + " failed writes: " + failure.getMessage());
+                    continue;
+                }
+                pending.merge(identifier, entry.getValue(), (later, failed) -> {
+                    failed.merge(later);
+                    return failed;
+                });
+            }
+            return failure;
+        }
+    }
+
+    /*
+     * Whether a failure is likely to pass (a lost connection or a rolled
+     * back transaction) rather than to be caused by the updates themselves
+     */
+    private static boolean isTransient(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                || (state != null && (state.startsWith("08") || state.startsWith("40")));
+    }
+
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getUploads() {
+        return uploads.sum();
+    }
+
+    /*
+     * Get a summary of the buffer statistics, with the batches (database
+     * writes) and node updates written per uploaded file
+     */
+    public String getStatistics() {
+        long files = getUploads();
+        return String.format("pending=%d updates=%d coalesced=%d flushes=%d written=%d dropped=%d uploads=%d flushes/upload=%.2f written/upload=%.2f",
+                pending.size(), getUpdates(), getCoalesced(), getFlushes(), written.sum(), getDropped(), files,
+                files == 0 ? 0.0 : (double) getFlushes() / files, files == 0 ? 0.0 : (double) written.sum() / files);
+    }
+
+    public void addStatistics(Map<String, String> statistics) {
+        statistics.put("writebehind", getStatistics());
+        store.addStatistics(statistics);
+    }
+
+    /*
+     * Stop the writer and write the updates still held back; any later
+     * update is written straight away
+     */
+    public void close() throws SQLException {
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+        logger.info("Write-behind buffer closed: " + getStatistics());
+        store.close();
+    }
+
+
+    /*
+     * Hold back the updates, folding them into any held back update of the
+     * same node
+     */
+    public void updateAttributes(Map<String, NodeAttributes> attributes) throws SQLException, VOSpaceException {
+        for (NodeAttributes update : attributes.values()) {
+            if (update.getProperties().containsKey(Props.LENGTH_URI)) uploads.increment();
+        }
+        for (Map.Entry<String, NodeAttributes> update : attributes.entrySet()) {
+            updates.increment();
+            NodeAttributes copy = new NodeAttributes(update.getValue().getProperties(), update.getValue().getStatus());
+            pending.merge(fixId(update.getKey()), copy, (held, later) -> {
+                coalesced.increment();
+                held.merge(later);
+                return held;
+            });
+        }
+        if (closed) {
+            flushAll();
+        } else if (pending.size() >= batch && flushQueued.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                // Closed in the mean time
+                flushAll();
+            }
+        }
+    }
+
+    public void setStoreID(int id) {
+        store.setStoreID(id);
+    }
+
+    public long getThreadWrite() {
+        return store.getThreadWrite();
+    }
+
+    public void setThreadWrite(long time) {
+        store.setThreadWrite(time);
+    }
+
+    public String getJob(String jobID) throws SQLException {
+        return store.getJob(jobID);
+    }
+
+    public void addJob(String jobID, String job) throws SQLException {
+        store.addJob(jobID, job);
+    }
+
+    public boolean isStored(String identifier) throws SQLException {
+        return store.isStored(identifier);
+    }
+
+    public void storeData(String identifier, int type, Object metadata) throws SQLException, VOSpaceException {
+        store.storeData(identifier, type, metadata);
+    }
+
+    public void storeData(String identifier, int type, String owner, Object metadata) throws SQLException, VOSpaceException {
+        store.storeData(identifier, type, owner, metadata);
+    }
+
+    public void storeData(String identifier, int type, String owner, String location, Object metadata) throws SQLException, VOSpaceException {
+        store.storeData(identifier, type, owner, location, metadata);
+    }
+
+    public void storeData(String identifier, int type, String view, String owner, String location, Object metadata) throws SQLException, VOSpaceException {
+        store.storeData(identifier, type, view, owner, location, metadata);
+    }
+
+    public String checkData(String[] identifiers, int limit) throws SQLException {
+        return store.checkData(identifiers, limit);
+    }
+
+    public boolean getAllData(String token, int limit) throws SQLException {
+        return store.getAllData(token, limit);
+    }
+
+    public String[] getData(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        flush(token == null ? identifiers : null);
+        return store.getData(identifiers, token, limit);
+    }
+
+    public ca.nrc.cadc.vos.Node[] getDataJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        flush(token == null ? identifiers : null);
+        return store.getDataJDOM2(identifiers, token, limit);
+    }
+
+    public ListingPage<String> getDataPage(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        flush(token == null ? identifiers : null);
+        return store.getDataPage(identifiers, token, limit);
+    }
+
+    public ListingPage<ca.nrc.cadc.vos.Node> getDataPageJDOM2(String[] identifiers, String token, int limit) throws SQLException, VOSpaceException {
+        flush(token == null ? identifiers : null);
+        return store.getDataPageJDOM2(identifiers, token, limit);
+    }
+
+    public String getTarget(String linkId) throws SQLException {
+        return store.getTarget(linkId);
+    }
+
+    public String[] removeData(String identifier, boolean container) throws SQLException, VOSpaceException {
+        flushAll();
+        return store.removeData(identifier, container);
+    }
+
+    public void updateData(String identifier, Object metadata) throws SQLException, VOSpaceException {
+        flush(identifier);
+        store.updateData(identifier, metadata);
+    }
+
+    public void updateData(String identifier, String newIdentifier, Object metadata) throws SQLException, VOSpaceException {
+        flushAll();
+        store.updateData(identifier, newIdentifier, metadata);
+    }
+
+    public void updateData(String identifier, String newIdentifier, String newLocation, Object metadata) throws SQLException, VOSpaceException {
+        flushAll();
+        store.updateData(identifier, newIdentifier, newLocation, metadata);
+    }
+
+    public void moveTree(String identifier, String newIdentifier, String newLocation, Map<String, String> properties) throws SQLException, VOSpaceException {
+        flushAll();
+        store.moveTree(identifier, newIdentifier, newLocation, properties);
+    }
+
+    public void copyTree(String identifier, String newIdentifier, String newLocation, String owner, Map<String, String> properties) throws SQLException, VOSpaceException {
+        flushAll();
+        store.copyTree(identifier, newIdentifier, newLocation, owner, properties);
+    }
+
+    public String getToken(String[] identifiers) throws SQLException {
+        return store.getToken(identifiers);
+    }
+
+    public String getLocation(String identifier) throws SQLException {
+        return store.getLocation(identifier);
+    }
+
+    public void setLocation(String identifier, String location) {
+        store.setLocation(identifier, location);
+    }
+
+    public boolean getStatus(String identifier) throws SQLException {
+        flush(identifier);
+        return store.getStatus(identifier);
+    }
+
+    public void setStatus(String identifier, boolean status) throws SQLException {
+        flush(identifier);
+        store.setStatus(identifier, status);
+    }
+
+    public int getType(String identifier) throws SQLException {
+        return store.getType(identifier);
+    }
+
+    public String getOwner(String identifier) throws SQLException {
+        return store.getOwner(identifier);
+    }
+
+    public boolean isKnownProperty(String identifier) throws SQLException {
+        return store.isKnownProperty(identifier);
+    }
+
+    public void registerProperty(String property, int type, boolean readOnly) throws SQLException {
+        store.registerProperty(property, type, readOnly);
+    }
+
+    public void storeTransfer(String identifier, String endpoint) throws SQLException {
+        store.storeTransfer(identifier, endpoint);
+    }
+
+    public void storeTransfer(TransferDetails transfer) throws SQLException {
+        store.storeTransfer(transfer);
+    }
+
+    public String getTransfer(String endpoint) throws SQLException {
+        return store.getTransfer(endpoint);
+    }
+
+    public TransferDetails getTransferDetails(String endpoint) throws SQLException, VOSpaceException {
+        return store.getTransferDetails(endpoint);
+    }
+
+    public boolean isCompleted(String jobid) throws SQLException {
+        return store.isCompleted(jobid);
+    }
+
+    public boolean isCompletedByEndpoint(String endpoint) throws SQLException {
+        return store.isCompletedByEndpoint(endpoint);
+    }
+
+    public void setView(String identifier, String view) throws SQLException {
+        store.setView(identifier, view);
+    }
+
+    public String getView(String identifier) throws SQLException {
+        return store.getView(identifier);
+    }
+
+    public String resolveLocation(String endpoint) throws SQLException {
+        return store.resolveLocation(endpoint);
+    }
+
+    public void completeTransfer(String endpoint) throws SQLException {
+        store.completeTransfer(endpoint);
+    }
+
+    public void completeTransfer(String endpoint, boolean updateStatus) throws SQLException {
+        store.completeTransfer(endpoint, updateStatus);
+    }
+
+    public String resolveTransfer(String endpoint) throws SQLException {
+        return store.resolveTransfer(endpoint);
+    }
+
+    public long getCreated(String endpoint) throws SQLException {
+        return store.getCreated(endpoint);
+    }
+
+    public String resolveIdentifier(String location) throws SQLException {
+        return store.resolveIdentifier(location);
+    }
+
+    public void updateProperty(String property, int type) throws SQLException {
+        store.updateProperty(property, type);
+    }
+
+    public void updateProperty(String property, int type, boolean readOnly) throws SQLException {
+        store.updateProperty(property, type, readOnly);
+    }
+
+    public String[] getProperties(int type) throws SQLException {
+        return store.getProperties(type);
+    }
+
+    public String getPropertyType(String identifier) throws SQLException {
+        return store.getPropertyType(identifier);
+    }
+
+    public boolean isReadOnly(String property) throws SQLException {
+        return store.isReadOnly(property);
+    }
+
+    public String getPropertyValue(String identifier, String property) throws SQLException {
+        flush(identifier);
+        return store.getPropertyValue(identifier, property);
+    }
+
+    public List<String> getLinkChain(String linkId) throws SQLException {
+        return store.getLinkChain(linkId);
+    }
+
+    public NodeAccess getAccess(String identifier) throws SQLException {
+        ArrayList<String> nodes = new ArrayList<String>();
+        for (String node : NodeAccess.lineage(identifier)) nodes.add(fixId(node));
+        flush(nodes);
+        return store.getAccess(identifier);
+    }
+
+    public Usage getUsage(String identifier) throws SQLException {
+        flushUsage(identifier);
+        return store.getUsage(identifier);
+    }
+
+    public Usage getOwnerUsage(String owner) throws SQLException {
+        flushOwnerUsage(owner);
+        return store.getOwnerUsage(owner);
+    }
+
+    public String[] getPropertyValues(String identifier, String[] properties) throws SQLException {
+        flush(identifier);
+        return store.getPropertyValues(identifier, properties);
+    }
+
+    public String[] getChildren(String identifier) throws SQLException, VOSpaceException {
+        return store.getChildren(identifier);
+    }
+
+    public String[] getChildrenNodes(String identifier) throws SQLException, VOSpaceException {
+        flushChildren(identifier);
+        return store.getChildrenNodes(identifier);
+    }
+
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier) throws SQLException, VOSpaceException {
+        flushChildren(identifier);
+        return store.getChildrenNodesJDOM2(identifier);
+    }
+
+    public ca.nrc.cadc.vos.Node[] getChildrenNodesJDOM2(String identifier, String token, int limit) throws SQLException, VOSpaceException {
+        flushChildren(identifier);
+        return store.getChildrenNodesJDOM2(identifier, token, limit);
+    }
+
+    public String[] getAllChildren(String identifier) throws SQLException, VOSpaceException {
+        return store.getAllChildren(identifier);
+    }
+
+    public void addResult(String identifier, String result) throws SQLException {
+        store.addResult(identifier, result);
+    }
+
+    public String getResult(String identifier) throws SQLException {
+        return store.getResult(identifier);
+    }
+
+    public String getNode(String identifier) throws SQLException, VOSpaceException {
+        flush(identifier);
+        return store.getNode(identifier);
+    }
+
+    public int isActive(String identifier, String capability) throws SQLException {
+        return store.isActive(identifier, capability);
+    }
+
+    public void setActive(String identifier, String capability, int port) throws SQLException {
+        store.setActive(identifier, capability, port);
+    }
+
+    public void registerCapability(String identifier, String capability) throws SQLException {
+        store.registerCapability(identifier, capability);
+    }
+
+    public boolean isKnownCapability(String capability) throws SQLException {
+        return store.isKnownCapability(capability);
+    }
+
+    public int getCapPort() throws SQLException {
+        return store.getCapPort();
+    }
+
+    public boolean isTransfer(String identifier) throws SQLException {
+        return store.isTransfer(identifier);
+    }
+
+    public boolean isTransferByEndpoint(String endpoint) throws SQLException {
+        return store.isTransferByEndpoint(endpoint);
+    }
+
+    public long getLastModTime(String identifier) throws SQLException {
+        flush(identifier);
+        return store.getLastModTime(identifier);
+    }
+}
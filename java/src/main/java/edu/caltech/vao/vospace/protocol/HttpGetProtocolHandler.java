@@ -9,6 +9,7 @@ package edu.caltech.vao.vospace.protocol;
 import edu.caltech.vao.vospace.VOSpaceException;
 import edu.caltech.vao.vospace.VOSpaceManager;
 import edu.caltech.vao.vospace.storage.StorageManager;
+import edu.caltech.vao.vospace.storage.StoredBytes;
 
 import java.io.InputStream;
 import java.io.IOException;
@@ -71,7 +72,14 @@ public class HttpGetProtocolHandler implements ProtocolHandler {
      * Invoke the protocol handler and transfer data
      */
     public boolean invoke(Protocol protocol, String location, StorageManager backend) throws IOException {
-	boolean success = false;
+	return retrieve(protocol, location, backend) != null;
+    }
+
+    /*
+     * Invoke the protocol handler and transfer data, digesting it as it is stored
+     */
+    public StoredBytes retrieve(Protocol protocol, String location, StorageManager backend) throws IOException {
+	StoredBytes stored = null;
 	try {
 	    HttpClient client = new HttpClient();
 	    GetMethod get = new GetMethod(protocol.getEndpoint());
@@ -83,7 +91,7 @@ public class HttpGetProtocolHandler implements ProtocolHandler {
 		}
 	    //	    URI uri = new URI(location);
 	    InputStream in = get.getResponseBodyAsStream();
-	    backend.putBytes(location, in);
+	    stored = backend.storeBytes(location, in);
             /*
 	    BufferedInputStream bis = new BufferedInputStream(in);
 	    FileOutputStream fos = new FileOutputStream(uri.getPath());
@@ -100,14 +108,13 @@ public class HttpGetProtocolHandler implements ProtocolHandler {
 	    bis.close();
 	    */
 	    get.releaseConnection();
-	    success = true;
 	    //	} catch (URISyntaxException e) {
 	    //	    throw new IOException(e.getMessage());
 	} catch (VOSpaceException e) {
 		log_error(logger, e);
 	    throw new IOException(e.getMessage());
 	}
-	return success;
+	return stored;
     }
 
 }
@@ -0,0 +1,61 @@
+/**
+ * HttpResumablePutProtocolHandler.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.protocol;
+
+import edu.caltech.vao.vospace.VOSpaceException;
+import edu.caltech.vao.vospace.storage.StorageManager;
+import edu.noirlab.datalab.xml.Protocol;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * This class handles the implementation details for resumable uploads over
+ * HTTP: the data is PUT to the endpoint in chunks, in order or each at its
+ * offset, the offset committed so far can be asked for with a GET, and a
+ * POST ends the upload and puts the data in place (see UploadResource).
+ * The service only takes the server role in this protocol.
+ */
+public class HttpResumablePutProtocolHandler implements ProtocolHandler {
+
+    private static String BASE_URL = "http://localhost:7007";
+
+    /*
+     * Return the registered identifier for this protocol
+     */
+    public String getUri() {
+        return "ivo://datalab.noirlab/vospace/core#resumableput";
+    }
+
+    /*
+     * Set the base url for the protocol
+     */
+    public void setBaseUrl(String baseurl) {
+        BASE_URL = baseurl;
+    }
+
+    /*
+     * Fill in the details for a ProtocolType
+     */
+    public Protocol admin(String nodeUri, Protocol protocol, int mode) throws VOSpaceException {
+        try {
+            if (mode == SERVER) protocol.setEndpoint(BASE_URL + "/" + UUID.randomUUID());
+            return protocol;
+        } catch (VOSpaceException ve) {
+            throw ve;
+        } catch (Exception e) {
+            throw new VOSpaceException(e, nodeUri);
+        }
+    }
+
+    /*
+     * Invoke the protocol handler and transfer data
+     */
+    public boolean invoke(Protocol protocol, String location, StorageManager backend) throws IOException {
+        throw new IOException("Resumable uploads can only be made to the service");
+    }
+
+}
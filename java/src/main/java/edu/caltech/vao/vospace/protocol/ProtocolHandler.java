@@ -8,6 +8,7 @@ package edu.caltech.vao.vospace.protocol;
 
 import edu.caltech.vao.vospace.VOSpaceException;
 import edu.caltech.vao.vospace.storage.StorageManager;
+import edu.caltech.vao.vospace.storage.StoredBytes;
 import edu.noirlab.datalab.xml.Protocol;
 
 import java.io.IOException;
@@ -40,4 +41,18 @@ public interface ProtocolHandler {
      * Invoke the protocol handler and transfer data 
      */ 
     public boolean invoke(Protocol protocol, String location, StorageManager backend) throws IOException;
+
+    /*
+     * Invoke the protocol handler to bring data into the space, and return
+     * the size and MD5 sum of the bytes stored (the sum is null if the
+     * handler does not digest them), or null if the transfer failed
+     */
+    public default StoredBytes retrieve(Protocol protocol, String location, StorageManager backend) throws IOException {
+        if (!invoke(protocol, location, backend)) return null;
+        try {
+            return new StoredBytes(backend.size(location), null);
+        } catch (VOSpaceException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
 }
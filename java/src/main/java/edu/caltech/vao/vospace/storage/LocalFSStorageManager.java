@@ -3,35 +3,74 @@ package edu.caltech.vao.vospace.storage;
 
 import edu.caltech.vao.vospace.VOSpaceException;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.security.MessageDigest;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 /**
  * Backend storage manager for local filesystem
  */
 public class LocalFSStorageManager implements StorageManager {
 
+    private static final int MAX_ATTRIBUTES = 100000;
+    // Bytes read from an upload before each write of it
+    private static final int COPY_BUFFER = 1 << 20;
+    // Group writable, like the containers, for the Tomcat and manager users
+    private static final Set<PosixFilePermission> FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-rw-r--");
+
+    // Sizes and modification times by location, when they are cached
+    private final Map<String, Attributes> attributes = new ConcurrentHashMap<String, Attributes>();
+    private final long ttl;
+    private final LongAdder stats = new LongAdder();
+    private final LongAdder saved = new LongAdder();
+
     /**
      * Construct a basic LocalFSStorageManager
      */
-    public LocalFSStorageManager(Properties props) {}
+    public LocalFSStorageManager(Properties props) {
+        ttl = Long.parseLong(props.getProperty("backend.localfs.cache.ttl", "0"));
+    }
+
+    /*
+     * The size and modification time of a file, as of a stat of it
+     */
+    private static class Attributes {
+        final long size;
+        final long lastModified;
+        final long expires;
+
+        Attributes(long size, long lastModified, long expires) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+    }
 
 
     /**
@@ -107,6 +146,7 @@ public class LocalFSStorageManager implements StorageManager {
         try {
             File file = new File(new URI(location));
             FileUtils.touch(file);
+            forget(location, false);
         } catch (Exception e) {
             if (!e.getMessage().contains("last modification date")) throw new VOSpaceException(e, location);
         }
@@ -127,6 +167,8 @@ public class LocalFSStorageManager implements StorageManager {
             } else {
                 FileUtils.moveDirectory(oldFile, new File(new URI(newLocation)));
             }
+            forget(oldLocation, true);
+            forget(newLocation, true);
         } catch (Exception e) {
             throw new VOSpaceException(e, newLocation);
         }
@@ -146,6 +188,7 @@ public class LocalFSStorageManager implements StorageManager {
             } else {
                 FileUtils.copyDirectory(oldFile, new File(new URI(newLocation)));
             }
+            forget(newLocation, true);
         } catch (Exception e) {
             throw new VOSpaceException(e, newLocation);
         }
@@ -158,26 +201,121 @@ public class LocalFSStorageManager implements StorageManager {
      * @param stream The stream containing the bytes
      */
     public void putBytes(String location, InputStream stream) throws VOSpaceException {
+        Path part = null;
         try {
-            URI uri = new URI(location);
-            BufferedInputStream bis = new BufferedInputStream(stream);
-            FileOutputStream fos = new FileOutputStream(uri.getPath());
-            byte[] buffer = new byte[8192];
-            int count = bis.read(buffer);
-            while (count != -1 && count <= 8192) {
-                fos.write(buffer, 0, count);
-                count = bis.read(buffer);
+            Path path = Paths.get(new URI(location));
+            // Written next to the target and renamed into place, so readers
+            // never see a partial file and a failed write leaves the old one
+            part = Files.createTempFile(path.getParent(), "." + path.getFileName(), ".part");
+            Files.setPosixFilePermissions(part, Files.exists(path) ? Files.getPosixFilePermissions(path) : FILE_PERMISSIONS);
+            try (FileChannel out = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                copy(stream, out);
+            } finally {
+                stream.close();
             }
-            if (count != -1) {
-                fos.write(buffer, 0, count);
+            replace(part, path);
+            part = null;
+            forget(location, false);
+        } catch (Exception e) {
+            throw new VOSpaceException(e, location);
+        } finally {
+            if (part != null) {
+                try {
+                    Files.deleteIfExists(part);
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the bytes from the specified input stream into the bytes at the specified
+     * location, from the specified offset on, creating the location if necessary
+     * @param location The location for the bytes
+     * @param stream The stream containing the bytes
+     * @param offset The position at which to write the first byte
+     * @return the number of bytes written
+     */
+    public long putBytes(String location, InputStream stream, long offset) throws VOSpaceException {
+        try {
+            Path path = Paths.get(new URI(location));
+            boolean created = !Files.exists(path);
+            long count;
+            try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (created) Files.setPosixFilePermissions(path, FILE_PERMISSIONS);
+                out.position(offset);
+                count = copy(stream, out);
+            } finally {
+                stream.close();
+                forget(location, false);
             }
-            fos.close();
-            bis.close();
+            return count;
         } catch (Exception e) {
             throw new VOSpaceException(e, location);
         }
     }
 
+    /**
+     * Move the bytes at the specified old location over the bytes at the specified
+     * new location, with a single rename
+     * @param oldLocation The old location of the bytes
+     * @param newLocation The new location of the bytes
+     */
+    public void replaceBytes(String oldLocation, String newLocation) throws VOSpaceException {
+        try {
+            Path path = Paths.get(new URI(newLocation));
+            Path old = Paths.get(new URI(oldLocation));
+            if (Files.exists(path)) Files.setPosixFilePermissions(old, Files.getPosixFilePermissions(path));
+            replace(old, path);
+            forget(oldLocation, false);
+            forget(newLocation, false);
+        } catch (Exception e) {
+            throw new VOSpaceException(e, newLocation);
+        }
+    }
+
+    /*
+     * Rename a file over another, atomically unless the filesystem cannot
+     */
+    private static void replace(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /*
+     * Copy a stream to a channel, reading it in large fills so that it is
+     * written in few calls
+     * @return the number of bytes copied
+     */
+    private static long copy(InputStream stream, FileChannel out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER];
+        long total = 0;
+        int filled = 0;
+        int count;
+        while ((count = stream.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += count;
+            if (filled == buffer.length) {
+                write(out, buffer, filled);
+                total += filled;
+                filled = 0;
+            }
+        }
+        write(out, buffer, filled);
+        return total + filled;
+    }
+
+    /*
+     * Write the first bytes of a buffer to a channel
+     */
+    private static void write(FileChannel out, byte[] buffer, int count) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+        while (bytes.hasRemaining()) out.write(bytes);
+    }
+
     /**
      * Get the bytes from the specified location in the current backend storage
      * @param location The location of the bytes
@@ -193,6 +331,42 @@ public class LocalFSStorageManager implements StorageManager {
         }
     }
 
+    /**
+     * Get part of the bytes from the specified location in the current backend
+     * storage, from a channel positioned at the offset
+     * @param location The location of the bytes
+     * @param offset The position of the first byte
+     * @param length How many bytes (at most) to read
+     * @return a stream containing the requested bytes
+     */
+    public InputStream getBytes(String location, long offset, long length) throws VOSpaceException {
+        try {
+            SeekableByteChannel channel = Files.newByteChannel(Paths.get(new URI(location)), StandardOpenOption.READ);
+            try {
+                channel.position(offset);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return new BoundedInputStream(Channels.newInputStream(channel), length);
+        } catch (Exception e) {
+            throw new VOSpaceException(e, location);
+        }
+    }
+
+    /**
+     * Get the local file holding the bytes at the specified location
+     * @param location The location of the bytes
+     * @return the file
+     */
+    public File getFile(String location) throws VOSpaceException {
+        try {
+            return new File(new URI(location));
+        } catch (Exception e) {
+            throw new VOSpaceException(e, location);
+        }
+    }
+
     /**
      * Remove the bytes at the specified location in the current backend storage
      * @param location The location of the bytes
@@ -205,6 +379,7 @@ public class LocalFSStorageManager implements StorageManager {
             } else {
                 boolean success = file.delete();
             }
+            forget(location, isContainer);
         } catch (Exception e) {
             throw new VOSpaceException(e, location);
         }
@@ -219,8 +394,7 @@ public class LocalFSStorageManager implements StorageManager {
      */
     public long lastModified(String location) throws VOSpaceException {
         try {
-            long lastModified = new File(new URI(location)).lastModified();
-            return lastModified;
+            return stat(location).lastModified;
         } catch (Exception e) {
             e.printStackTrace(System.err);
             throw new VOSpaceException(e, location);
@@ -234,8 +408,7 @@ public class LocalFSStorageManager implements StorageManager {
      */
     public long size(String location) throws VOSpaceException {
         try {
-            long size = new File(new URI(location)).length();
-            return size;
+            return stat(location).size;
         } catch (Exception e) {
             throw new VOSpaceException(e, location);
         }
@@ -272,4 +445,60 @@ public class LocalFSStorageManager implements StorageManager {
     }
 
 
+    /*
+     * Get the size and modification time of the specified location, from
+     * the cache if they were read within the time to live
+     */
+    private Attributes stat(String location) throws Exception {
+        long now = System.currentTimeMillis();
+        if (ttl > 0) {
+            Attributes cached = attributes.get(location);
+            if (cached != null && cached.expires > now) {
+                saved.increment();
+                return cached;
+            }
+        }
+        stats.increment();
+        Attributes stat;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(Paths.get(new URI(location)), BasicFileAttributes.class);
+            stat = new Attributes(attrs.size(), attrs.lastModifiedTime().toMillis(), now + ttl);
+        } catch (IOException e) {
+            // As with File, a missing (or unreadable) file has no size or
+            // time; it is not cached as it may be about to be created
+            return new Attributes(0, 0, now);
+        }
+        if (ttl > 0) {
+            if (attributes.size() >= MAX_ATTRIBUTES) attributes.clear();
+            attributes.put(location, stat);
+        }
+        return stat;
+    }
+
+    /*
+     * Drop the cached attributes of the specified location, and of all the
+     * locations under it if it is a directory
+     */
+    private void forget(String location, boolean tree) {
+        if (ttl <= 0) return;
+        attributes.remove(location);
+        if (tree) {
+            String prefix = location.endsWith("/") ? location : location + "/";
+            attributes.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    /*
+     * Get a summary of the stat statistics, with the stats made and saved
+     * per service request
+     */
+    public String getStatistics(long requests) {
+        long made = stats.sum();
+        long hit = saved.sum();
+        return String.format("cached=%d stats=%d saved=%d stats/request=%.2f saved/request=%.2f",
+                attributes.size(), made, hit, requests == 0 ? 0.0 : (double) made / requests,
+                requests == 0 ? 0.0 : (double) hit / requests);
+    }
+
+
 }
@@ -3,9 +3,19 @@ package edu.caltech.vao.vospace.storage;
 
 import edu.caltech.vao.vospace.VOSpaceException;
 
+import java.io.File;
 import java.io.InputStream;
+import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 
+import org.apache.commons.codec.binary.Hex;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+
 /**
  * Interface for communicating with backend storage
  */
@@ -60,6 +70,51 @@ public interface StorageManager {
      */
     public void putBytes(String location, InputStream stream) throws VOSpaceException;
 
+    /**
+     * Write the bytes from the specified input stream into the bytes at the specified
+     * location in the current backend storage, from the specified offset on. The
+     * location is created if it does not exist, and bytes past those written are
+     * left as they are.
+     * @param location The location for the bytes
+     * @param stream The stream containing the bytes
+     * @param offset The position at which to write the first byte
+     * @return the number of bytes written
+     */
+    public default long putBytes(String location, InputStream stream, long offset) throws VOSpaceException {
+        throw new VOSpaceException(VOSpaceException.VOFault.InternalFault, "The backend storage does not support writes at an offset", location);
+    }
+
+    /**
+     * Move the bytes at the specified old location over the bytes at the specified
+     * new location in the current backend storage, replacing them in one step where
+     * the storage allows it
+     * @param oldLocation The old location of the bytes
+     * @param newLocation The new location of the bytes
+     */
+    public default void replaceBytes(String oldLocation, String newLocation) throws VOSpaceException {
+        removeBytes(newLocation, false);
+        moveBytes(oldLocation, newLocation);
+    }
+
+    /**
+     * Put the bytes from the specified input stream at the specified location in
+     * the current backend storage, counting and digesting them as they are put
+     * @param location The location for the bytes
+     * @param stream The stream containing the bytes
+     * @return the size and MD5 sum of the bytes put
+     */
+    public default StoredBytes storeBytes(String location, InputStream stream) throws VOSpaceException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new VOSpaceException(e, location);
+        }
+        CountingInputStream counted = new CountingInputStream(new DigestInputStream(stream, md));
+        putBytes(location, counted);
+        return new StoredBytes(counted.getByteCount(), new String(Hex.encodeHex(md.digest())));
+    }
+
     /**
      * Get the bytes from the specified location in the current backend storage
      * @param location The location of the bytes
@@ -67,6 +122,54 @@ public interface StorageManager {
      */
     public InputStream getBytes(String location) throws VOSpaceException;
 
+    /**
+     * Get part of the bytes from the specified location in the current backend
+     * storage. Backends that cannot seek skip to the offset in the whole stream.
+     * @param location The location of the bytes
+     * @param offset The position of the first byte
+     * @param length How many bytes (at most) to read
+     * @return a stream containing the requested bytes
+     */
+    public default InputStream getBytes(String location, long offset, long length) throws VOSpaceException {
+        InputStream in = getBytes(location);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) break;
+                skipped += n;
+            }
+        } catch (IOException e) {
+            try {
+                in.close();
+            } catch (IOException ce) {
+                ;
+            }
+            throw new VOSpaceException(e, location);
+        }
+        return new BoundedInputStream(in, length);
+    }
+
+    /**
+     * Get the local file holding the bytes at the specified location, for
+     * backends whose storage is a (local or mounted) filesystem
+     * @param location The location of the bytes
+     * @return the file, or null if the bytes are not in a local file
+     */
+    public default File getFile(String location) throws VOSpaceException {
+        return null;
+    }
+
+    /**
+     * Get a summary of the statistics of the backend storage
+     * @param requests The number of service requests made so far, to report
+     *        the statistics per request
+     * @return the summary, or null if the backend keeps no statistics
+     */
+    public default String getStatistics(long requests) {
+        return null;
+    }
+
     /**
      * Remove the bytes at the specified location in the current backend storage
      * @param location The location of the bytes
@@ -0,0 +1,33 @@
+/**
+ * StoredBytes.java
+ * Version: Original (0.1) - 18 October 2026
+ */
+
+package edu.caltech.vao.vospace.storage;
+
+/**
+ * This class represents bytes written to the backend storage, as counted and
+ * digested while they were written: their size and MD5 sum.
+ */
+public class StoredBytes {
+    private final long size;
+    private final String md5;
+
+    /**
+     * Construct the description of bytes written
+     * @param size The number of bytes
+     * @param md5 The hex MD5 sum of the bytes
+     */
+    public StoredBytes(long size, String md5) {
+        this.size = size;
+        this.md5 = md5;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getMD5() {
+        return md5;
+    }
+}
@@ -66,6 +66,15 @@ public class Transfer {
 	return new View(blank);
     }
 
+    /**
+     * Get the URI of the view of the transfer
+     * @return The URI of the view, or null if there is none
+     */
+    public String getViewURI() throws VOSpaceException {
+	String[] uris = transfer.xpath("/vos:transfer/vos:view/@uri");
+	return uris.length > 0 ? uris[0] : null;
+    }
+
     /**
      * Get the protocols of the transfer
      * @return The protocols of the transfer
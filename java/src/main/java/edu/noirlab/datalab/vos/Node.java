@@ -7,10 +7,23 @@ import org.apache.log4j.Logger;
 public class Node {
     private static Logger log = Logger.getLogger(edu.noirlab.datalab.vos.Node.class);
     ca.nrc.cadc.vos.Node node;
+    String nextToken;
     public Node(ca.nrc.cadc.vos.Node node) {
         this.node = node;
     }
 
+    /**
+     * The token of the next page of children when the listing was limited,
+     * or null when all the children have been returned.
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    public void setNextToken(String nextToken) {
+        this.nextToken = nextToken;
+    }
+
     public String toString() {
         // use the VTDXML version of the writer so the new XML
         // looks as similar as possible as the VOSpace 2.0 xml
@@ -0,0 +1,103 @@
+--
+-- Benchmark of the child listing queries
+--
+-- Run in an empty scratch database created with vospace_create.sql, e.g.
+--   mysql -u dba -p vospace_bench < vospace_create.sql
+--   mysql -u dba -p vospace_bench < vospace_children_bench.sql
+--
+-- One user ('bench') holds 1M nodes: 10k containers directly under the
+-- user's root, 100 data nodes in each. The listing of a sample of 200
+-- containers is then timed with the former query (owner + depth + LIKE
+-- under a forced index) and with the parent hash query used now, each run
+-- twice so that the second run is served from a warm buffer pool. The
+-- plan of a page of the 10k-entry root listing is shown last.
+--
+
+SET @root = 'vos://datalab.noirlab!vospace/bench';
+
+DROP PROCEDURE IF EXISTS bench_fill;
+DROP PROCEDURE IF EXISTS bench_list;
+DROP TABLE IF EXISTS bench_results;
+CREATE TABLE bench_results (
+  `query` varchar(32),
+  `run` int,
+  `containers` int,
+  `rows` bigint,
+  `seconds` decimal(12,6)
+);
+
+DELIMITER //
+CREATE PROCEDURE bench_fill()
+BEGIN
+  DECLARE c INT DEFAULT 0;
+  DECLARE f INT;
+  INSERT INTO nodes (identifier, depth, type, owner, creationDate) VALUES (@root, 0, 3, 'bench', now());
+  WHILE c < 10000 DO
+    START TRANSACTION;
+    INSERT INTO nodes (identifier, depth, type, owner, creationDate)
+      VALUES (concat(@root, '/dir', lpad(c, 5, '0')), 1, 3, 'bench', now());
+    SET f = 0;
+    WHILE f < 100 DO
+      INSERT INTO nodes (identifier, depth, type, owner, creationDate)
+        VALUES (concat(@root, '/dir', lpad(c, 5, '0'), '/file', lpad(f, 3, '0'), '.fits'), 2, 1, 'bench', now());
+      SET f = f + 1;
+    END WHILE;
+    COMMIT;
+    SET c = c + 1;
+  END WHILE;
+END //
+
+CREATE PROCEDURE bench_list(IN run INT)
+BEGIN
+  DECLARE c INT DEFAULT 0;
+  DECLARE n BIGINT DEFAULT 0;
+  DECLARE t0 DATETIME(6);
+  DECLARE parent VARCHAR(4096);
+
+  SET c = 0, n = 0, t0 = now(6);
+  WHILE c < 10000 DO
+    SET parent = concat(@root, '/dir', lpad(c, 5, '0'));
+    SELECT n + count(*) INTO n FROM (
+      SELECT identifier FROM nodes FORCE INDEX (nod_own_dep_id_idx)
+      WHERE owner = 'bench' AND depth = 2 AND identifier LIKE concat(parent, '/%')) t;
+    SET c = c + 50;
+  END WHILE;
+  INSERT INTO bench_results VALUES ('owner_depth_like', run, 200, n, timestampdiff(microsecond, t0, now(6)) / 1e6);
+
+  SET c = 0, n = 0, t0 = now(6);
+  WHILE c < 10000 DO
+    SET parent = concat(@root, '/dir', lpad(c, 5, '0'));
+    SELECT n + count(*) INTO n FROM (
+      SELECT identifier FROM nodes WHERE parenthash = unhex(md5(parent))) t;
+    SET c = c + 50;
+  END WHILE;
+  INSERT INTO bench_results VALUES ('parenthash', run, 200, n, timestampdiff(microsecond, t0, now(6)) / 1e6);
+
+  -- Listing of the user's root: 10k siblings in one container
+  SET t0 = now(6);
+  SELECT count(*) INTO n FROM nodes FORCE INDEX (nod_own_dep_id_idx)
+    WHERE owner = 'bench' AND depth = 1 AND identifier LIKE concat(@root, '/%');
+  INSERT INTO bench_results VALUES ('owner_depth_like_root', run, 1, n, timestampdiff(microsecond, t0, now(6)) / 1e6);
+  SET t0 = now(6);
+  SELECT count(*) INTO n FROM nodes WHERE parenthash = unhex(md5(@root));
+  INSERT INTO bench_results VALUES ('parenthash_root', run, 1, n, timestampdiff(microsecond, t0, now(6)) / 1e6);
+END //
+DELIMITER ;
+
+CALL bench_fill();
+ANALYZE TABLE nodes;
+CALL bench_list(1);
+CALL bench_list(2);
+
+EXPLAIN SELECT identifier FROM nodes FORCE INDEX (nod_own_dep_id_idx)
+  WHERE owner = 'bench' AND depth = 2 AND identifier LIKE concat(@root, '/dir00042/%');
+EXPLAIN SELECT identifier FROM nodes WHERE parenthash = unhex(md5(concat(@root, '/dir00042')));
+-- A page of the listing of the user's root, as read by the service: no
+-- filesort is expected in the Extra column
+EXPLAIN SELECT identifier FROM nodes WHERE parenthash = unhex(md5(@root))
+  AND name > 'dir04999' ORDER BY name LIMIT 100;
+
+SELECT * FROM bench_results ORDER BY run, `query`;
+
+DROP PROCEDURE bench_fill;
+DROP PROCEDURE bench_list;
@@ -0,0 +1,69 @@
+--
+-- Add the node name to an existing VOSpace database
+--
+-- The children of a container are listed a page at a time in identifier
+-- order. Within a container that is the order of the last part of the
+-- identifier, the node name, so nodes get a `name` column and the index
+-- (parenthash, name) in place of (parenthash, identifier(250)): a page is
+-- then read in index order, where the 250 character prefix of the
+-- identifier could not give the order and every listing was sorted. Names
+-- are at most 255 bytes, as in the file systems that hold the data (the
+-- service rejects longer ones as invalid URIs), and compare as bytes so that the last name of a page marks exactly where the
+-- next one starts.
+--
+-- The migration runs online like vospace_idhash.sql: the column and index
+-- are added in place, the triggers set the name of the rows written from
+-- then on and the existing rows are backfilled in small batches. Deploy
+-- the service version that lists by name once the script has finished;
+-- the old index is dropped last.
+--
+
+ALTER TABLE nodes
+  ADD COLUMN `name` varchar(255) COLLATE latin1_bin DEFAULT NULL,
+  ADD INDEX nod_par_nam_idx (`parenthash`, `name`),
+  ALGORITHM=INPLACE, LOCK=NONE;
+
+DROP TRIGGER IF EXISTS nod_hash_ins;
+DROP TRIGGER IF EXISTS nod_hash_upd;
+
+CREATE TRIGGER nod_hash_ins BEFORE INSERT ON nodes FOR EACH ROW
+  SET NEW.idhash = unhex(md5(NEW.identifier)),
+      NEW.parenthash = unhex(md5(substring(NEW.identifier, 1, length(NEW.identifier) - length(substring_index(NEW.identifier, '/', -1)) - 1))),
+      NEW.name = substring_index(NEW.identifier, '/', -1);
+CREATE TRIGGER nod_hash_upd BEFORE UPDATE ON nodes FOR EACH ROW
+  SET NEW.idhash = unhex(md5(NEW.identifier)),
+      NEW.parenthash = unhex(md5(substring(NEW.identifier, 1, length(NEW.identifier) - length(substring_index(NEW.identifier, '/', -1)) - 1))),
+      NEW.name = substring_index(NEW.identifier, '/', -1);
+
+--
+-- Backfill the existing rows in batches of 5000, each in its own short
+-- transaction. The rows are walked in idhash order through nod_idh_idx, so
+-- each batch starts where the last one ended rather than scanning past
+-- the rows already filled; rows written in the mean time are named by the
+-- triggers.
+--
+
+DROP PROCEDURE IF EXISTS backfill_name;
+DELIMITER //
+CREATE PROCEDURE backfill_name()
+BEGIN
+  DECLARE last varbinary(16) DEFAULT '';
+  DECLARE upto varbinary(16);
+  batches: LOOP
+    SELECT max(idhash) INTO upto FROM
+      (SELECT idhash FROM nodes WHERE idhash > last ORDER BY idhash LIMIT 5000) AS batch;
+    IF upto IS NULL THEN
+      LEAVE batches;
+    END IF;
+    UPDATE nodes SET name = substring_index(identifier, '/', -1)
+      WHERE idhash > last AND idhash <= upto AND name IS NULL;
+    SET last = upto;
+  END LOOP;
+END //
+DELIMITER ;
+
+SET autocommit = 1;
+CALL backfill_name();
+DROP PROCEDURE backfill_name;
+
+ALTER TABLE nodes DROP INDEX nod_par_idx, ALGORITHM=INPLACE, LOCK=NONE;
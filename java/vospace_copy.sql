@@ -2,7 +2,7 @@
 -- Insert data from the old VOSpace schema into the new schema
 --
 
-INSERT INTO capabilities SELECT * from vospace.capabilities;
+INSERT INTO capabilities (identifier, capability, active) SELECT identifier, capability, active from vospace.capabilities;
 INSERT INTO jobs SELECT * from vospace.jobs;
 INSERT INTO listings SELECT * from vospace.listings;
 INSERT INTO results SELECT * from vospace.results;
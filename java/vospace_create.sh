@@ -20,5 +20,8 @@ prop_create='CREATE TABLE `properties` (`identifier` varchar(4096) NOT NULL'
 for c in $(echo "select identifier from metaproperties" | $P_MYSQL $db -N | cut -f2 -d'#'); do
     prop_create=$prop_create', `'${c}'` varchar(256) DEFAULT NULL'
 done
-prop_create=$prop_create', INDEX prop_id_idx (`identifier`(767)) ) ENGINE=InnoDB DEFAULT CHARSET=latin1;'
+prop_create=$prop_create', `idhash` binary(16) DEFAULT NULL'
+prop_create=$prop_create', INDEX prop_id_idx (`identifier`(767)), INDEX prop_idh_idx (`idhash`) ) ENGINE=InnoDB DEFAULT CHARSET=latin1;'
 echo $prop_create | $P_MYSQL $db
+echo 'CREATE TRIGGER prop_hash_ins BEFORE INSERT ON properties FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));' | $P_MYSQL $db
+echo 'CREATE TRIGGER prop_hash_upd BEFORE UPDATE ON properties FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));' | $P_MYSQL $db
@@ -12,6 +12,8 @@ DROP TABLE IF EXISTS `results`;
 DROP TABLE IF EXISTS `transfers`;
 DROP TABLE IF EXISTS `nodes`;
 DROP TABLE IF EXISTS `links`;
+DROP TABLE IF EXISTS `container_usage`;
+DROP TABLE IF EXISTS `owner_usage`;
 
 --
 -- Table structure for table `capabilities`
@@ -21,7 +23,9 @@ CREATE TABLE `capabilities` (
   `identifier` varchar(4096) DEFAULT NULL,
   `capability` varchar(128) DEFAULT NULL,
   `active` int(4) DEFAULT NULL,
+  `idhash` binary(16) DEFAULT NULL,
   INDEX cap_id_idx (`identifier`(767)),
+  INDEX cap_idh_idx (`idhash`),
   INDEX cap_cap_idx (`capability`)
 ) ENGINE=InnoDB DEFAULT CHARSET=latin1;
 
@@ -84,10 +88,19 @@ CREATE TABLE `results` (
 CREATE TABLE `transfers` (
   `identifier` int(11) NOT NULL AUTO_INCREMENT,
   `jobid` varchar(128) DEFAULT NULL,
-  `endpoint` varchar(4096) NOT NULL,
+  `rendpoint` varchar(4096) NOT NULL,
+  `token` varchar(255) DEFAULT NULL,
+  `target` varchar(4096) DEFAULT NULL,
+  `location` varchar(4096) DEFAULT NULL,
+  `view` varchar(128) DEFAULT NULL,
+  `owner` varchar(128) DEFAULT NULL,
   `created` datetime DEFAULT NULL,
   `completed` datetime DEFAULT NULL,
-  PRIMARY KEY (`identifier`)
+  PRIMARY KEY (`identifier`),
+  KEY `tra_jid_idx` (`jobid`),
+  KEY `tra_tok_idx` (`token`),
+  KEY `tra_cre_idx` (`created`),
+  KEY `tra_com_idx` (`completed`)
 ) ENGINE=InnoDB DEFAULT CHARSET=latin1;
 
 --
@@ -104,7 +117,12 @@ CREATE TABLE `nodes` (
   `location` varchar(4096) DEFAULT NULL,
   `creationDate` datetime DEFAULT NULL,
   `lastModificationDate` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+  `idhash` binary(16) DEFAULT NULL,
+  `parenthash` binary(16) DEFAULT NULL,
+  `name` varchar(255) COLLATE latin1_bin DEFAULT NULL,
   INDEX nod_id_idx (`identifier`(767)),
+  INDEX nod_idh_idx (`idhash`),
+  INDEX nod_par_nam_idx (`parenthash`, `name`),
   INDEX nod_dep_idx (`depth`),
   INDEX nod_typ_idx (`type`),
   INDEX nod_own_idx (`owner`),
@@ -120,7 +138,9 @@ CREATE TABLE `nodes` (
 CREATE TABLE `links` (
   `identifier` varchar(4096) NOT NULL,
   `target` varchar(4096) DEFAULT NULL,
+  `idhash` binary(16) DEFAULT NULL,
   INDEX lnk_id_idx (`identifier`(767)),
+  INDEX lnk_idh_idx (`idhash`),
   INDEX lnk_tgt_idx (`target`(767))
 ) ENGINE=InnoDB DEFAULT CHARSET=latin1;
 
@@ -132,5 +152,60 @@ CREATE TABLE `addl_props` (
   `identifier` varchar(4096) NOT NULL,
   `property` varchar(128) NOT NULL,
   `value` varchar(256) NOT NULL,
-  INDEX add_id_idx (`identifier`(767))
+  `idhash` binary(16) DEFAULT NULL,
+  INDEX add_id_idx (`identifier`(767)),
+  INDEX add_idh_prop_idx (`idhash`, `property`)
 ) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+--
+-- Table structure for table `container_usage`: the bytes of the data nodes
+-- and the number of nodes under each container (but the root of the space),
+-- kept up to date by the service as nodes are written (see vospace_usage.sql)
+--
+
+CREATE TABLE `container_usage` (
+  `identifier` varchar(4096) NOT NULL,
+  `bytes` bigint NOT NULL DEFAULT '0',
+  `nodes` bigint NOT NULL DEFAULT '0',
+  `idhash` binary(16) DEFAULT NULL,
+  UNIQUE KEY use_idh_idx (`idhash`),
+  INDEX use_id_idx (`identifier`(767))
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+--
+-- Table structure for table `owner_usage`: the bytes of the data nodes and
+-- the number of nodes of each owner
+--
+
+CREATE TABLE `owner_usage` (
+  `owner` varchar(128) NOT NULL,
+  `bytes` bigint NOT NULL DEFAULT '0',
+  `nodes` bigint NOT NULL DEFAULT '0',
+  PRIMARY KEY (`owner`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+--
+-- Keep the identifier hashes in step with the identifiers: idhash is the
+-- MD5 of the identifier and parenthash that of its parent (the identifier
+-- up to its last '/'); name is the last part of the identifier (at most
+-- 255 characters, longer names are rejected by the service), by which
+-- the children of a container are listed in order from nod_par_nam_idx.
+-- The properties table is created (with its triggers) by vospace_create.sh.
+--
+
+CREATE TRIGGER nod_hash_ins BEFORE INSERT ON nodes FOR EACH ROW
+  SET NEW.idhash = unhex(md5(NEW.identifier)),
+      NEW.parenthash = unhex(md5(substring(NEW.identifier, 1, length(NEW.identifier) - length(substring_index(NEW.identifier, '/', -1)) - 1))),
+      NEW.name = substring_index(NEW.identifier, '/', -1);
+CREATE TRIGGER nod_hash_upd BEFORE UPDATE ON nodes FOR EACH ROW
+  SET NEW.idhash = unhex(md5(NEW.identifier)),
+      NEW.parenthash = unhex(md5(substring(NEW.identifier, 1, length(NEW.identifier) - length(substring_index(NEW.identifier, '/', -1)) - 1))),
+      NEW.name = substring_index(NEW.identifier, '/', -1);
+CREATE TRIGGER lnk_hash_ins BEFORE INSERT ON links FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER lnk_hash_upd BEFORE UPDATE ON links FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER add_hash_ins BEFORE INSERT ON addl_props FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER add_hash_upd BEFORE UPDATE ON addl_props FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER cap_hash_ins BEFORE INSERT ON capabilities FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER cap_hash_upd BEFORE UPDATE ON capabilities FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER use_hash_ins BEFORE INSERT ON container_usage FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER use_hash_upd BEFORE UPDATE ON container_usage FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
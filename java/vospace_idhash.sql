@@ -0,0 +1,95 @@
+--
+-- Add fixed-width identifier hashes to an existing VOSpace database
+--
+-- The nodes, properties, addl_props, links and capabilities tables are
+-- looked up by `idhash`, the MD5 of the identifier, rather than by a prefix
+-- index on the 4096 character identifier; nodes also get `parenthash`, the
+-- MD5 of the parent identifier. Triggers keep both in step with the
+-- identifier, so the service (old or new) never writes them itself.
+--
+-- The migration runs online: the columns and indexes are added in place
+-- without locking the tables, the triggers cover rows written from then on
+-- and the existing rows are backfilled in small batches. Deploy the service
+-- version that reads the hashes once the script has finished.
+--
+
+ALTER TABLE nodes
+  ADD COLUMN `idhash` binary(16) DEFAULT NULL,
+  ADD COLUMN `parenthash` binary(16) DEFAULT NULL,
+  ADD INDEX nod_idh_idx (`idhash`),
+  ADD INDEX nod_par_idx (`parenthash`, `identifier`(250)),
+  ALGORITHM=INPLACE, LOCK=NONE;
+ALTER TABLE properties ADD COLUMN `idhash` binary(16) DEFAULT NULL, ADD INDEX prop_idh_idx (`idhash`), ALGORITHM=INPLACE, LOCK=NONE;
+ALTER TABLE addl_props ADD COLUMN `idhash` binary(16) DEFAULT NULL, ADD INDEX add_idh_prop_idx (`idhash`, `property`), ALGORITHM=INPLACE, LOCK=NONE;
+ALTER TABLE links ADD COLUMN `idhash` binary(16) DEFAULT NULL, ADD INDEX lnk_idh_idx (`idhash`), ALGORITHM=INPLACE, LOCK=NONE;
+ALTER TABLE capabilities ADD COLUMN `idhash` binary(16) DEFAULT NULL, ADD INDEX cap_idh_idx (`idhash`), ALGORITHM=INPLACE, LOCK=NONE;
+
+DROP TRIGGER IF EXISTS nod_hash_ins;
+DROP TRIGGER IF EXISTS nod_hash_upd;
+DROP TRIGGER IF EXISTS prop_hash_ins;
+DROP TRIGGER IF EXISTS prop_hash_upd;
+DROP TRIGGER IF EXISTS add_hash_ins;
+DROP TRIGGER IF EXISTS add_hash_upd;
+DROP TRIGGER IF EXISTS lnk_hash_ins;
+DROP TRIGGER IF EXISTS lnk_hash_upd;
+DROP TRIGGER IF EXISTS cap_hash_ins;
+DROP TRIGGER IF EXISTS cap_hash_upd;
+
+CREATE TRIGGER nod_hash_ins BEFORE INSERT ON nodes FOR EACH ROW
+  SET NEW.idhash = unhex(md5(NEW.identifier)),
+      NEW.parenthash = unhex(md5(substring(NEW.identifier, 1, length(NEW.identifier) - length(substring_index(NEW.identifier, '/', -1)) - 1)));
+CREATE TRIGGER nod_hash_upd BEFORE UPDATE ON nodes FOR EACH ROW
+  SET NEW.idhash = unhex(md5(NEW.identifier)),
+      NEW.parenthash = unhex(md5(substring(NEW.identifier, 1, length(NEW.identifier) - length(substring_index(NEW.identifier, '/', -1)) - 1)));
+CREATE TRIGGER prop_hash_ins BEFORE INSERT ON properties FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER prop_hash_upd BEFORE UPDATE ON properties FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER add_hash_ins BEFORE INSERT ON addl_props FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER add_hash_upd BEFORE UPDATE ON addl_props FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER lnk_hash_ins BEFORE INSERT ON links FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER lnk_hash_upd BEFORE UPDATE ON links FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER cap_hash_ins BEFORE INSERT ON capabilities FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER cap_hash_upd BEFORE UPDATE ON capabilities FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+
+--
+-- Backfill the existing rows in batches of 5000, each in its own short
+-- transaction; the rows still to do are found through the new (null)
+-- hash index.
+--
+
+DROP PROCEDURE IF EXISTS backfill_idhash;
+DELIMITER //
+CREATE PROCEDURE backfill_idhash()
+BEGIN
+  DECLARE n INT DEFAULT 1;
+  WHILE n > 0 DO
+    UPDATE nodes SET idhash = unhex(md5(identifier)),
+        parenthash = unhex(md5(substring(identifier, 1, length(identifier) - length(substring_index(identifier, '/', -1)) - 1)))
+      WHERE idhash IS NULL LIMIT 5000;
+    SET n = ROW_COUNT();
+  END WHILE;
+  SET n = 1;
+  WHILE n > 0 DO
+    UPDATE properties SET idhash = unhex(md5(identifier)) WHERE idhash IS NULL LIMIT 5000;
+    SET n = ROW_COUNT();
+  END WHILE;
+  SET n = 1;
+  WHILE n > 0 DO
+    UPDATE addl_props SET idhash = unhex(md5(identifier)) WHERE idhash IS NULL LIMIT 5000;
+    SET n = ROW_COUNT();
+  END WHILE;
+  SET n = 1;
+  WHILE n > 0 DO
+    UPDATE links SET idhash = unhex(md5(identifier)) WHERE idhash IS NULL LIMIT 5000;
+    SET n = ROW_COUNT();
+  END WHILE;
+  SET n = 1;
+  WHILE n > 0 DO
+    UPDATE capabilities SET idhash = unhex(md5(identifier)) WHERE idhash IS NULL AND identifier IS NOT NULL LIMIT 5000;
+    SET n = ROW_COUNT();
+  END WHILE;
+END //
+DELIMITER ;
+
+SET autocommit = 1;
+CALL backfill_idhash();
+DROP PROCEDURE backfill_idhash;
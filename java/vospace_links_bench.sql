@@ -0,0 +1,122 @@
+--
+-- Benchmark of link resolution and of listing containers full of links
+--
+-- Run in an empty scratch database created with vospace_create.sql, e.g.
+--   mysql -u dba -p vospace_bench < vospace_create.sql
+--   mysql -u dba -p vospace_bench < vospace_links_bench.sql
+--
+-- One user ('bench') shares a dataset folder: 'shared' holds 2000 links,
+-- each pointing to a link in 'mid', which points to a data node in 'data'.
+-- A sample of 200 chains is followed one hop per query (as resolveLinks
+-- used to) and with the single recursive query used now; the 'shared'
+-- listing is then timed with a target lookup per link child and with the
+-- listing query joining the links table. Each is run twice so that the
+-- second run is served from a warm buffer pool. Needs MySQL 8.0 or later.
+--
+
+SET @root = 'vos://datalab.noirlab!vospace/bench';
+
+DROP PROCEDURE IF EXISTS bench_fill;
+DROP PROCEDURE IF EXISTS bench_links;
+DROP TABLE IF EXISTS bench_results;
+CREATE TABLE bench_results (
+  `query` varchar(32),
+  `run` int,
+  `links` int,
+  `rows` bigint,
+  `seconds` decimal(12,6)
+);
+
+DELIMITER //
+CREATE PROCEDURE bench_fill()
+BEGIN
+  DECLARE f INT DEFAULT 0;
+  DECLARE name VARCHAR(16);
+  INSERT INTO nodes (identifier, depth, type, owner, creationDate) VALUES
+    (@root, 0, 3, 'bench', now()),
+    (concat(@root, '/shared'), 1, 3, 'bench', now()),
+    (concat(@root, '/mid'), 1, 3, 'bench', now()),
+    (concat(@root, '/data'), 1, 3, 'bench', now());
+  START TRANSACTION;
+  WHILE f < 2000 DO
+    SET name = lpad(f, 4, '0');
+    INSERT INTO nodes (identifier, depth, type, owner, creationDate) VALUES
+      (concat(@root, '/shared/link', name), 2, 2, 'bench', now()),
+      (concat(@root, '/mid/link', name), 2, 2, 'bench', now()),
+      (concat(@root, '/data/file', name, '.fits'), 2, 1, 'bench', now());
+    INSERT INTO links (identifier, target) VALUES
+      (concat(@root, '/shared/link', name), concat(@root, '/mid/link', name)),
+      (concat(@root, '/mid/link', name), concat(@root, '/data/file', name, '.fits'));
+    SET f = f + 1;
+  END WHILE;
+  COMMIT;
+END //
+
+CREATE PROCEDURE bench_links(IN run INT)
+BEGIN
+  DECLARE f INT DEFAULT 0;
+  DECLARE n BIGINT DEFAULT 0;
+  DECLARE t0 DATETIME(6);
+  DECLARE node VARCHAR(4096);
+  DECLARE target VARCHAR(4096);
+  DECLARE done INT DEFAULT 0;
+  DECLARE children CURSOR FOR
+    SELECT identifier FROM nodes WHERE parenthash = unhex(md5(concat(@root, '/shared')));
+  DECLARE CONTINUE HANDLER FOR NOT FOUND SET done = 1;
+
+  -- Follow each chain one link per query
+  SET f = 0, n = 0, t0 = now(6);
+  WHILE f < 2000 DO
+    SET node = concat(@root, '/shared/link', lpad(f, 4, '0'));
+    WHILE node IS NOT NULL DO
+      SET target = NULL;
+      SELECT l.target INTO target FROM links l WHERE l.idhash = unhex(md5(node));
+      SET node = target, n = n + 1;
+    END WHILE;
+    SET f = f + 10;
+  END WHILE;
+  INSERT INTO bench_results VALUES ('chain_per_hop', run, 200, n, timestampdiff(microsecond, t0, now(6)) / 1e6);
+
+  -- Follow each chain in one recursive query
+  SET f = 0, n = 0, t0 = now(6);
+  WHILE f < 2000 DO
+    SET node = concat(@root, '/shared/link', lpad(f, 4, '0'));
+    WITH RECURSIVE link_chain (target, hops) AS (
+      SELECT l.target, 0 FROM links l WHERE l.idhash = unhex(md5(node))
+      UNION ALL SELECT l.target, c.hops + 1 FROM links l, link_chain c
+      WHERE l.idhash = unhex(md5(replace(c.target, '~', '!'))) AND c.hops < 32)
+    SELECT n + count(*) INTO n FROM link_chain;
+    SET f = f + 10;
+  END WHILE;
+  INSERT INTO bench_results VALUES ('chain_recursive', run, 200, n, timestampdiff(microsecond, t0, now(6)) / 1e6);
+
+  -- List 'shared', then look up the target of every link child
+  SET n = 0, done = 0, t0 = now(6);
+  OPEN children;
+  fetch_loop: LOOP
+    FETCH children INTO node;
+    IF done THEN LEAVE fetch_loop; END IF;
+    SELECT l.target INTO target FROM links l WHERE l.idhash = unhex(md5(node));
+    SET n = n + 1;
+  END LOOP;
+  CLOSE children;
+  INSERT INTO bench_results VALUES ('listing_per_link', run, 2000, n, timestampdiff(microsecond, t0, now(6)) / 1e6);
+
+  -- List 'shared' with the link targets joined in
+  SET t0 = now(6);
+  SELECT count(l.target) INTO n FROM nodes c
+    LEFT JOIN links l ON l.idhash = c.idhash
+    WHERE c.parenthash = unhex(md5(concat(@root, '/shared')));
+  INSERT INTO bench_results VALUES ('listing_joined', run, 2000, n, timestampdiff(microsecond, t0, now(6)) / 1e6);
+END //
+DELIMITER ;
+
+CALL bench_fill();
+ANALYZE TABLE nodes, links;
+CALL bench_links(1);
+CALL bench_links(2);
+
+SELECT * FROM bench_results ORDER BY run, `query`;
+
+DROP PROCEDURE bench_fill;
+DROP PROCEDURE bench_links;
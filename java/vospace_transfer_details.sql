@@ -0,0 +1,16 @@
+--
+-- Keep the details needed to serve a transfer endpoint with the transfer
+--
+-- The target node, its location, the requested view and the owner of the
+-- node are written when the endpoint is registered, so that the data
+-- requests made to it need not read and parse the transfer document.
+-- Transfers registered before this change have no details; the service
+-- reads them from the transfer document instead. Runs online.
+--
+
+ALTER TABLE transfers
+  ADD COLUMN `target` varchar(4096) DEFAULT NULL,
+  ADD COLUMN `location` varchar(4096) DEFAULT NULL,
+  ADD COLUMN `view` varchar(128) DEFAULT NULL,
+  ADD COLUMN `owner` varchar(128) DEFAULT NULL,
+  ALGORITHM=INPLACE, LOCK=NONE;
@@ -0,0 +1,44 @@
+--
+-- Look up transfers by the token of their endpoint
+--
+-- The endpoints the service hands out end in a random UUID token
+-- (/data/{token}); transfers are now found by an exact match on that token
+-- rather than by a 'LIKE' on the reversed endpoint. The created and
+-- completed columns are indexed so that the service can purge the
+-- transfers it is done with (see server.meta.transfer.retention).
+--
+-- The migration runs online. The token is only backfilled for transfers
+-- of the last week: older ones are past the default retention and are
+-- purged by the service once it runs. The reversed endpoint is still
+-- written, so older service versions keep working until they are replaced.
+--
+
+ALTER TABLE transfers
+  ADD COLUMN `token` varchar(255) DEFAULT NULL,
+  ADD INDEX tra_tok_idx (`token`),
+  ADD INDEX tra_cre_idx (`created`),
+  ADD INDEX tra_com_idx (`completed`),
+  ALGORITHM=INPLACE, LOCK=NONE;
+
+--
+-- Backfill the recent rows in batches of 5000, each in its own short
+-- transaction; the token is the last part of the endpoint, i.e. the
+-- reversed first part of the reversed endpoint.
+--
+
+DROP PROCEDURE IF EXISTS backfill_token;
+DELIMITER //
+CREATE PROCEDURE backfill_token()
+BEGIN
+  DECLARE n INT DEFAULT 1;
+  WHILE n > 0 DO
+    UPDATE transfers SET token = reverse(substring_index(rendpoint, '/', 1))
+      WHERE token IS NULL AND created >= now() - interval 7 day LIMIT 5000;
+    SET n = ROW_COUNT();
+  END WHILE;
+END //
+DELIMITER ;
+
+SET autocommit = 1;
+CALL backfill_token();
+DROP PROCEDURE backfill_token;
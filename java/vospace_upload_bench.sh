@@ -0,0 +1,84 @@
+#!/bin/bash
+
+# Benchmark of uploads through the /data endpoint: files of 1 MB, 100 MB
+# and 10 GB are each pushed a few times to a scratch container of the user,
+# through a negotiated httpput transfer, and the time and rate curl reports
+# for the PUT itself are printed. The files are sparse, so reading them
+# costs the client little.
+
+# Arguments are <hostname> <username> [<runs>] [<sizes>]
+if [ $# -lt 1 ]; then h="dldev.datalab.noao.edu"; else h=$1; fi
+if [ $# -lt 2 ]; then u=$USER; else u=$2; fi
+if [ $# -lt 3 ]; then runs=3; else runs=$3; fi
+if [ $# -lt 4 ]; then sizes="1M 100M 10G"; else sizes=$4; fi
+
+wd=$(dirname $0)
+if [ $h == "localhost" ]; then pf="docker"; else pf=${h%%.*}; fi
+for f in ./vospace.properties.${pf} ${wd}/vospace.properties.${pf} \
+        ./vospace.properties.default ${wd}/vospace.properties.default; do
+    if [ -e $f ]; then conffile=$f; break; fi
+done
+if [ -z $conffile ]; then echo "No vospace configuration found." 1>&2; exit 1; fi
+
+ROOT=$(grep -E "^space.rootnode" $conffile | cut -d'=' -f2)
+BASE="http://${h}:8080/vospace-2.0/vospace"
+AUTH=$(grep -E "^server.auth.url" $conffile | cut -d'=' -f2)
+
+if [ ${AUTH:0:7} = "http://" ]; then
+    if [ ! -e $HOME/.datalab/id_token.${u} ]; then
+        echo "No token file $HOME/.datalab/id_token.${u}." 1>&2; exit
+    fi
+    token="X-Dl-Authtoken: $(cat $HOME/.datalab/id_token.${u})"
+else
+    token="X-Dl-Authtoken: $u.1.1.\$1\$salt\$checksum"
+fi
+echo "Config: $u $h $conffile runs=$runs sizes=$sizes"
+
+read -r -d '' CONTAINER <<'EOF'
+<ns0:node xmlns:ns0="http://www.ivoa.net/xml/VOSpace/v2.0"
+    xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance" uri="URI" xsi:type="vos:ContainerNode">
+  <ns0:properties />
+  <ns0:accepts />
+  <ns0:provides />
+  <ns0:capabilities />
+</ns0:node>
+EOF
+
+read -r -d '' TRANSFER <<'EOF'
+<vos:transfer xmlns:vos="http://www.ivoa.net/xml/VOSpace/v2.0" version="2.0">
+  <vos:target>URI</vos:target>
+  <vos:direction>pushToVoSpace</vos:direction>
+  <vos:protocol uri="ivo://ivoa.net/vospace/core#httpput" />
+</vos:transfer>
+EOF
+
+bench="${u}/upload_bench"
+tmp=$(mktemp -d)
+trap "rm -rf $tmp" EXIT
+
+echo "$CONTAINER" | sed -e "s|URI|${ROOT}/${bench}|g" | \
+    curl -s -o /dev/null -H "${token}" -H "Content-type: text/xml" -X PUT -d @- "${BASE}/nodes/${bench}"
+
+# Negotiate an upload of the given node and print its endpoint
+function endpoint {
+    echo "$TRANSFER" | sed -e "s|URI|${ROOT}/${1}|g" | \
+        curl -sL -H "${token}" -H "Content-type: text/xml" -X POST -d @- "${BASE}/sync" | \
+        sed -n -e 's|.*<[a-z0-9]*:*endpoint>\([^<]*\)</[a-z0-9]*:*endpoint>.*|\1|p' | head -1
+}
+
+printf "%-6s %-4s %-10s %-12s %s\n" "size" "run" "seconds" "MB/s" "status"
+for size in $sizes; do
+    file="${tmp}/${size}"
+    truncate -s $size $file
+    for run in $(seq 1 $runs); do
+        url=$(endpoint "${bench}/file_${size}_${run}")
+        if [ -z "$url" ]; then echo "No endpoint negotiated for ${size}." 1>&2; exit 1; fi
+        out=$(curl -s -o /dev/null -T $file -w '%{http_code} %{time_total} %{speed_upload}' "$url")
+        set -- $out
+        printf "%-6s %-4s %-10s %-12s %s\n" $size $run $2 $(echo "$3 / 1048576" | bc -l | xargs printf "%.1f") $1
+        curl -s -o /dev/null -H "${token}" -X DELETE "${BASE}/nodes/${bench}/file_${size}_${run}"
+    done
+    rm -f $file
+done
+
+curl -s -o /dev/null -H "${token}" -X DELETE "${BASE}/nodes/${bench}"
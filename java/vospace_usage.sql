@@ -0,0 +1,55 @@
+--
+-- Keep the space used under each container and by each owner
+--
+-- container_usage holds the bytes of the data nodes and the number of
+-- nodes (of all types) under each container but the root of the space;
+-- owner_usage holds the same for each owner. The service changes them in
+-- the transaction of every write that creates, deletes, moves, copies or
+-- resizes nodes, so they are read with a single key lookup.
+--
+-- The backfill reads the whole nodes table: run it with the service
+-- stopped, as writes made while it runs would be missed or counted twice.
+--
+
+CREATE TABLE IF NOT EXISTS `container_usage` (
+  `identifier` varchar(4096) NOT NULL,
+  `bytes` bigint NOT NULL DEFAULT '0',
+  `nodes` bigint NOT NULL DEFAULT '0',
+  `idhash` binary(16) DEFAULT NULL,
+  UNIQUE KEY use_idh_idx (`idhash`),
+  INDEX use_id_idx (`identifier`(767))
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+CREATE TABLE IF NOT EXISTS `owner_usage` (
+  `owner` varchar(128) NOT NULL,
+  `bytes` bigint NOT NULL DEFAULT '0',
+  `nodes` bigint NOT NULL DEFAULT '0',
+  PRIMARY KEY (`owner`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+DROP TRIGGER IF EXISTS use_hash_ins;
+DROP TRIGGER IF EXISTS use_hash_upd;
+CREATE TRIGGER use_hash_ins BEFORE INSERT ON container_usage FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+CREATE TRIGGER use_hash_upd BEFORE UPDATE ON container_usage FOR EACH ROW SET NEW.idhash = unhex(md5(NEW.identifier));
+
+--
+-- Backfill. A node counts its length unless it is a container; lengths
+-- that are not numbers count as nothing, as they do in the service.
+--
+
+TRUNCATE TABLE container_usage;
+TRUNCATE TABLE owner_usage;
+
+INSERT INTO owner_usage (owner, bytes, nodes)
+  SELECT n.owner, sum(if(n.type = 3 OR p.length NOT REGEXP '^[0-9]+$', 0, cast(p.length AS unsigned))), count(*)
+  FROM nodes n LEFT JOIN properties p ON p.idhash = n.idhash
+  WHERE n.owner IS NOT NULL
+  GROUP BY n.owner;
+
+INSERT INTO container_usage (identifier, bytes, nodes)
+  SELECT c.identifier, sum(if(d.type = 3 OR p.length NOT REGEXP '^[0-9]+$', 0, cast(p.length AS unsigned))), count(*)
+  FROM nodes c
+  JOIN nodes d ON d.identifier LIKE concat(replace(replace(c.identifier, '%', '\\%'), '_', '\\_'), '/%')
+  LEFT JOIN properties p ON p.idhash = d.idhash
+  WHERE c.type = 3 AND c.depth > 0
+  GROUP BY c.identifier;